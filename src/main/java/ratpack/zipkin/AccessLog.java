@@ -0,0 +1,316 @@
+/*
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin;
+
+import brave.propagation.TraceContext;
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ratpack.service.Service;
+import ratpack.service.StopEvent;
+
+/**
+ * Access log of traced requests, correlated with their trace by ID.
+ *
+ * The server tracing handler records each request when its server span finishes, for sampled
+ * and unsampled requests alike, into a bounded lock-free ring buffer. A daemon thread formats
+ * and appends the entries, so compute threads never format, block or wait on the log; entries
+ * are dropped, and counted, when the buffer is full. An entry is a line of {@code key=value}
+ * pairs:
+ *
+ * <pre>{@code
+ * method=GET route=items/:id status=200 latency_ms=12.345 bytes=512 trace_id=5af7183fb1d4cf5f span_id=5af7183fb1d4cf5f
+ * }</pre>
+ *
+ * The route is the description of the path binding, or the path outside of path handlers;
+ * {@code bytes} is the response's {@code Content-Length}, {@code -} for chunked responses.
+ * Entries are logged at info level by the {@code ratpack.zipkin.AccessLog} logger by default.
+ *
+ * Enable with {@link ServerTracingModule.Config#accessLog(boolean)}. The appender thread is
+ * stopped when the server stops.
+ */
+public final class AccessLog implements Service, Closeable {
+
+  /**
+   * @return an access log which logs nothing
+   */
+  public static AccessLog disabled() {
+    return new AccessLog(null);
+  }
+
+  /**
+   * @return an access log with default settings
+   */
+  public static AccessLog create() {
+    return newBuilder().build();
+  }
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    private Consumer<String> appender;
+    private int bufferSize = 8192;
+    private Duration idleWait = Duration.ofMillis(10);
+
+    Builder() {
+    }
+
+    /**
+     * Where to append formatted entries, called from the appender thread only. Defaults to the
+     * {@code ratpack.zipkin.AccessLog} logger, at info level.
+     *
+     * @param appender the appender of entries
+     * @return this builder
+     */
+    public Builder appender(Consumer<String> appender) {
+      if (appender == null) throw new NullPointerException("appender == null");
+      this.appender = appender;
+      return this;
+    }
+
+    /**
+     * The number of entries buffered, rounded up to a power of two. Defaults to 8192.
+     *
+     * @param bufferSize the capacity of the ring buffer
+     * @return this builder
+     */
+    public Builder bufferSize(int bufferSize) {
+      if (bufferSize <= 0 || bufferSize > 1 << 30) throw new IllegalArgumentException("bufferSize out of range");
+      this.bufferSize = bufferSize;
+      return this;
+    }
+
+    /**
+     * How long the appender thread sleeps when the buffer is empty. Defaults to ten milliseconds.
+     *
+     * @param idleWait the wait for new entries
+     * @return this builder
+     */
+    public Builder idleWait(Duration idleWait) {
+      if (idleWait.isNegative() || idleWait.isZero()) throw new IllegalArgumentException("idleWait <= 0");
+      this.idleWait = idleWait;
+      return this;
+    }
+
+    public AccessLog build() {
+      return new AccessLog(this);
+    }
+  }
+
+  private static final Logger logger = LoggerFactory.getLogger(AccessLog.class);
+
+  private final boolean enabled;
+  private final Consumer<String> appender;
+  private final long idleWaitNanos;
+  private final int mask;
+  // bounded multi-producer queue after Dmitry Vyukov's: each slot's sequence says whether it is
+  // free for the producer of that position, or ready for the consumer
+  private final Entry[] entries;
+  private final AtomicLongArray sequences;
+  private final AtomicLong tail = new AtomicLong();
+  private long head; // appender thread only
+  private final Thread thread;
+  private volatile boolean closed;
+
+  private final LongAdder entriesLogged = new LongAdder();
+  private final LongAdder entriesDropped = new LongAdder();
+
+  private AccessLog(final Builder builder) {
+    this.enabled = builder != null;
+    if (!enabled) {
+      this.appender = null;
+      this.idleWaitNanos = 0L;
+      this.mask = 0;
+      this.entries = null;
+      this.sequences = null;
+      this.thread = null;
+      return;
+    }
+    this.appender = builder.appender != null ? builder.appender : logger::info;
+    this.idleWaitNanos = builder.idleWait.toNanos();
+    int size = Integer.highestOneBit(builder.bufferSize);
+    if (size < builder.bufferSize) size <<= 1;
+    this.mask = size - 1;
+    this.entries = new Entry[size];
+    this.sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      entries[i] = new Entry();
+      sequences.set(i, i);
+    }
+    this.thread = new Thread(this::run, "AccessLog");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * @return true if entries are logged
+   */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Record a request, called by the server tracing handler. Never blocks.
+   *
+   * @param method the HTTP method
+   * @param route the route or path of the request
+   * @param status the response status code
+   * @param latencyNanos the time to handle the request
+   * @param contentLength the response's {@code Content-Length} header, or null
+   * @param context the trace context of the server span
+   * @return false if the entry was dropped
+   */
+  public boolean record(final String method, final String route, final int status, final long latencyNanos,
+                        final String contentLength, final TraceContext context) {
+    if (!enabled || closed) {
+      return false;
+    }
+    long position = tail.get();
+    while (true) {
+      int index = (int) position & mask;
+      long available = sequences.get(index) - position;
+      if (available == 0L) {
+        if (tail.compareAndSet(position, position + 1)) {
+          Entry entry = entries[index];
+          entry.method = method;
+          entry.route = route;
+          entry.status = status;
+          entry.latencyNanos = latencyNanos;
+          entry.contentLength = contentLength;
+          entry.context = context;
+          sequences.set(index, position + 1); // publish
+          return true;
+        }
+        position = tail.get();
+      } else if (available < 0L) {
+        entriesDropped.increment(); // full
+        return false;
+      } else {
+        position = tail.get();
+      }
+    }
+  }
+
+  private void run() {
+    StringBuilder line = new StringBuilder(192);
+    while (!closed) {
+      if (!drain(line)) {
+        LockSupport.parkNanos(this, idleWaitNanos);
+      }
+    }
+    drain(line);
+  }
+
+  /**
+   * @return false if there was nothing to append
+   */
+  private boolean drain(final StringBuilder line) {
+    boolean appended = false;
+    while (true) {
+      int index = (int) head & mask;
+      if (sequences.get(index) != head + 1) {
+        return appended;
+      }
+      Entry entry = entries[index];
+      line.setLength(0);
+      entry.format(line);
+      entry.clear();
+      sequences.set(index, head + mask + 1); // free for the producer of the next lap
+      head++;
+      try {
+        appender.accept(line.toString());
+        entriesLogged.increment();
+      } catch (RuntimeException e) {
+        entriesDropped.increment();
+      }
+      appended = true;
+    }
+  }
+
+  /**
+   * @return the number of entries appended
+   */
+  public long entriesLogged() {
+    return entriesLogged.sum();
+  }
+
+  /**
+   * @return the number of entries dropped, as the buffer was full or the appender failed
+   */
+  public long entriesDropped() {
+    return entriesDropped.sum();
+  }
+
+  @Override
+  public void onStop(final StopEvent event) {
+    close();
+  }
+
+  /**
+   * Stop the appender thread, after appending the entries buffered.
+   */
+  @Override
+  public void close() {
+    if (!enabled || closed) {
+      return;
+    }
+    closed = true;
+    LockSupport.unpark(thread);
+    try {
+      thread.join(TimeUnit.SECONDS.toMillis(5));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static final class Entry {
+    String method;
+    String route;
+    int status;
+    long latencyNanos;
+    String contentLength;
+    TraceContext context;
+
+    void format(final StringBuilder line) {
+      long micros = TimeUnit.NANOSECONDS.toMicros(latencyNanos);
+      line.append("method=").append(method)
+          .append(" route=").append(route)
+          .append(" status=").append(status)
+          .append(" latency_ms=").append(micros / 1000).append('.');
+      long fraction = micros % 1000;
+      if (fraction < 100) line.append('0');
+      if (fraction < 10) line.append('0');
+      line.append(fraction)
+          .append(" bytes=").append(contentLength != null ? contentLength : "-")
+          .append(" trace_id=").append(context.traceIdString())
+          .append(" span_id=").append(context.spanIdString());
+    }
+
+    void clear() {
+      method = null;
+      route = null;
+      contentLength = null;
+      context = null;
+    }
+  }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin;
+
+import brave.http.HttpRequest;
+import brave.sampler.Sampler;
+import brave.sampler.SamplerFunction;
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Sampler targeting a number of sampled traces per second on this node, whatever the traffic.
+ *
+ * Once per interval, the sampling probability is recomputed as the target divided by the observed
+ * (smoothed) rate of new traces, and reduced further while the reporter backlog, if configured, is
+ * filling up. Between updates, decisions only read the current probability. New traces are counted
+ * with a striped counter, so the sampler scales across event loop threads; the interval update is
+ * done by whichever thread first notices the interval has passed.
+ *
+ * Use as the trace sampler ({@link ServerTracingModule.Config#sampler(Sampler)}), or as the
+ * server sampler through {@link #httpSampler()}.
+ */
+public final class AdaptiveSampler extends Sampler {
+
+  /**
+   * Create a sampler targeting the given number of sampled traces per second, updated every
+   * second.
+   *
+   * @param tracesPerSecond the target number of sampled traces per second
+   * @return the sampler
+   */
+  public static AdaptiveSampler create(int tracesPerSecond) {
+    return newBuilder(tracesPerSecond).build();
+  }
+
+  /**
+   * @param tracesPerSecond the target number of sampled traces per second
+   * @return a builder for the sampler
+   */
+  public static Builder newBuilder(int tracesPerSecond) {
+    return new Builder(tracesPerSecond);
+  }
+
+  public static final class Builder {
+    private final int tracesPerSecond;
+    private Duration interval = Duration.ofSeconds(1);
+    private LongSupplier queuedSpans;
+    private long maxQueuedSpans;
+    LongSupplier nanoTime = System::nanoTime;
+
+    Builder(int tracesPerSecond) {
+      if (tracesPerSecond < 0) throw new IllegalArgumentException("tracesPerSecond < 0");
+      this.tracesPerSecond = tracesPerSecond;
+    }
+
+    /**
+     * How often the probability is recomputed. Defaults to one second.
+     *
+     * @param interval the update interval
+     * @return this builder
+     */
+    public Builder interval(Duration interval) {
+      if (interval.isNegative() || interval.isZero()) throw new IllegalArgumentException("interval <= 0");
+      this.interval = interval;
+      return this;
+    }
+
+    /**
+     * Reduce the probability as the reporter backlog grows, down to nothing when it reaches the
+     * maximum. For example, with {@code InMemoryReporterMetrics} passed to the reporter, use
+     * {@code metrics::queuedSpans}.
+     *
+     * @param queuedSpans the number of spans waiting to be reported
+     * @param maxQueuedSpans the backlog at which sampling stops
+     * @return this builder
+     */
+    public Builder backlog(LongSupplier queuedSpans, long maxQueuedSpans) {
+      if (maxQueuedSpans <= 0) throw new IllegalArgumentException("maxQueuedSpans <= 0");
+      this.queuedSpans = queuedSpans;
+      this.maxQueuedSpans = maxQueuedSpans;
+      return this;
+    }
+
+    public AdaptiveSampler build() {
+      return new AdaptiveSampler(this);
+    }
+  }
+
+  // weight of the latest interval in the smoothed rate of new traces
+  static final double SMOOTHING = 0.5;
+
+  private final int tracesPerSecond;
+  private final long intervalNanos;
+  private final LongSupplier queuedSpans;
+  private final long maxQueuedSpans;
+  private final LongSupplier nanoTime;
+
+  private final LongAdder traces = new LongAdder();
+  private final AtomicLong nextUpdate;
+  // only written by the thread winning the update of nextUpdate
+  private volatile long lastUpdate;
+  private volatile double smoothedRate = -1;
+
+  private volatile double probability = 1.0;
+  private volatile long threshold = Long.MAX_VALUE;
+
+  AdaptiveSampler(Builder builder) {
+    this.tracesPerSecond = builder.tracesPerSecond;
+    this.intervalNanos = builder.interval.toNanos();
+    this.queuedSpans = builder.queuedSpans;
+    this.maxQueuedSpans = builder.maxQueuedSpans;
+    this.nanoTime = builder.nanoTime;
+    this.lastUpdate = nanoTime.getAsLong();
+    this.nextUpdate = new AtomicLong(lastUpdate + intervalNanos);
+  }
+
+  @Override
+  public boolean isSampled(long traceId) {
+    traces.increment();
+    long now = nanoTime.getAsLong();
+    long next = nextUpdate.get();
+    if (now - next >= 0 && nextUpdate.compareAndSet(next, now + intervalNanos)) {
+      update(now);
+    }
+    long threshold = this.threshold;
+    return threshold == Long.MAX_VALUE || (traceId & Long.MAX_VALUE) < threshold;
+  }
+
+  private void update(long now) {
+    long elapsed = now - lastUpdate;
+    lastUpdate = now;
+    double observed = traces.sumThenReset() * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+    smoothedRate = smoothedRate < 0 ? observed : SMOOTHING * observed + (1 - SMOOTHING) * smoothedRate;
+
+    double probability = smoothedRate <= tracesPerSecond ? 1.0 : tracesPerSecond / smoothedRate;
+    if (queuedSpans != null) {
+      double backlog = Math.min(1.0, Math.max(0.0, queuedSpans.getAsLong() / (double) maxQueuedSpans));
+      probability *= 1.0 - backlog;
+    }
+    this.probability = probability;
+    this.threshold = probability >= 1.0 ? Long.MAX_VALUE : (long) (probability * Long.MAX_VALUE);
+  }
+
+  /**
+   * @return the sampling probability currently applied
+   */
+  public double probability() {
+    return probability;
+  }
+
+  /**
+   * Adapt this sampler for server requests, for use with
+   * {@link ServerTracingModule.Config#serverSampler(SamplerFunction)}. Server requests and new
+   * traces from {@link #isSampled(long)} count against the same target.
+   *
+   * @return a server request sampler backed by this sampler
+   */
+  public SamplerFunction<HttpRequest> httpSampler() {
+    return request -> isSampled(ThreadLocalRandom.current().nextLong());
+  }
+
+  @Override
+  public String toString() {
+    return "AdaptiveSampler{tracesPerSecond=" + tracesPerSecond + ", probability=" + probability + "}";
+  }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin;
+
+import brave.http.HttpRequest;
+import brave.sampler.Sampler;
+import brave.sampler.SamplerFunction;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import ratpack.server.ServerConfig;
+
+/**
+ * Server request sampler whose rate and per-route rules can be changed at runtime.
+ *
+ * Rules are matched in order against the request method and path prefix; the first match decides.
+ * Requests matching no rule use the default rate, or defer to the trace sampler
+ * ({@link ServerTracingModule.Config#sampler}) when no default rate is set.
+ *
+ * Sampling decisions read an immutable snapshot, so they never lock. Updates replace the snapshot
+ * atomically, either directly, from the {@link ServerConfig} (see
+ * {@link ServerTracingModule.Config#samplingConfigPath(String)}) or through
+ * {@link AdjustableSamplerHandler}.
+ */
+public final class AdjustableSampler implements SamplerFunction<HttpRequest> {
+
+  /**
+   * Create a sampler with no rules and no default rate, deferring every decision to the trace
+   * sampler until it is updated.
+   *
+   * @return the sampler
+   */
+  public static AdjustableSampler create() {
+    return new AdjustableSampler(new Settings());
+  }
+
+  /**
+   * Create a sampler with the given initial settings.
+   *
+   * @param settings the initial settings
+   * @return the sampler
+   */
+  public static AdjustableSampler create(Settings settings) {
+    return new AdjustableSampler(settings);
+  }
+
+  private final AtomicReference<Snapshot> snapshot;
+
+  private AdjustableSampler(Settings settings) {
+    this.snapshot = new AtomicReference<>(new Snapshot(settings, null, 0L));
+  }
+
+  @Override
+  public Boolean trySample(HttpRequest request) {
+    Snapshot current = snapshot.get();
+    if (current.previous != null && System.nanoTime() - current.expiresAt >= 0) {
+      snapshot.compareAndSet(current, current.previous);
+      current = snapshot.get();
+    }
+    String method = request.method();
+    String path = request.path();
+    for (CompiledRule rule : current.rules) {
+      if (rule.matches(method, path)) {
+        return rule.sampler.isSampled(0L);
+      }
+    }
+    return current.defaultSampler != null ? current.defaultSampler.isSampled(0L) : null;
+  }
+
+  /**
+   * Replace the settings.
+   *
+   * @param settings the new settings
+   */
+  public void update(Settings settings) {
+    snapshot.set(new Snapshot(settings, null, 0L));
+  }
+
+  /**
+   * Replace the settings for a limited time, after which the current settings are restored.
+   *
+   * @param settings the temporary settings
+   * @param ttl how long the temporary settings apply
+   */
+  public void update(Settings settings, Duration ttl) {
+    Snapshot current;
+    Snapshot next;
+    do {
+      current = snapshot.get();
+      // don't stack temporary settings: always revert to the last permanent ones
+      Snapshot permanent = current.previous != null ? current.previous : current;
+      next = new Snapshot(settings, permanent, System.nanoTime() + ttl.toNanos());
+    } while (!snapshot.compareAndSet(current, next));
+  }
+
+  /**
+   * Replace the settings with those found in the server config, if present.
+   *
+   * @param serverConfig the server config
+   * @param pointer a JSON pointer to the settings, e.g. {@code /zipkin/sampling}
+   * @return true if settings were found and applied
+   */
+  public boolean update(ServerConfig serverConfig, String pointer) {
+    if (serverConfig.getRootNode().at(pointer).isMissingNode()) {
+      return false;
+    }
+    update(serverConfig.get(pointer, Settings.class));
+    return true;
+  }
+
+  /**
+   * @return a copy of the settings currently in effect
+   */
+  public Settings settings() {
+    return snapshot.get().settings.copy();
+  }
+
+  private static final class Snapshot {
+    private final Settings settings;
+    private final Sampler defaultSampler;
+    private final CompiledRule[] rules;
+    private final Snapshot previous;
+    private final long expiresAt;
+
+    private Snapshot(Settings settings, Snapshot previous, long expiresAt) {
+      this.settings = settings.copy();
+      this.defaultSampler = settings.rate != null ? Sampler.create(settings.rate) : null;
+      this.rules = new CompiledRule[settings.rules.size()];
+      for (int i = 0; i < rules.length; i++) {
+        rules[i] = new CompiledRule(settings.rules.get(i));
+      }
+      this.previous = previous;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  private static final class CompiledRule {
+    private final String method;
+    private final String path;
+    private final Sampler sampler;
+
+    private CompiledRule(Rule rule) {
+      this.method = rule.method;
+      this.path = rule.path;
+      this.sampler = Sampler.create(rule.rate);
+    }
+
+    private boolean matches(String method, String path) {
+      if (this.method != null && !this.method.equalsIgnoreCase(method)) {
+        return false;
+      }
+      return this.path == null || (path != null && path.startsWith(this.path));
+    }
+  }
+
+  /**
+   * Sampling settings. Can be bound from the {@link ServerConfig}, e.g.
+   *
+   * <pre>{@code
+   * zipkin:
+   *   sampling:
+   *     rate: 0.01
+   *     rules:
+   *       - method: POST
+   *         path: /orders
+   *         rate: 1.0
+   * }</pre>
+   */
+  public static final class Settings {
+    private Float rate;
+    private List<Rule> rules = new ArrayList<>();
+
+    public Settings() {
+    }
+
+    /**
+     * @return the rate for requests matching no rule, or null to defer to the trace sampler
+     */
+    public Float getRate() {
+      return rate;
+    }
+
+    /**
+     * @param rate the rate for requests matching no rule, or null to defer to the trace sampler
+     */
+    public void setRate(Float rate) {
+      this.rate = rate;
+    }
+
+    /**
+     * @return the rules, matched in order
+     */
+    public List<Rule> getRules() {
+      return rules;
+    }
+
+    /**
+     * @param rules the rules, matched in order
+     */
+    public void setRules(List<Rule> rules) {
+      this.rules = rules != null ? rules : new ArrayList<>();
+    }
+
+    /**
+     * Set the rate for requests matching no rule.
+     *
+     * @param rate the rate, or null to defer to the trace sampler
+     * @return the settings
+     */
+    public Settings rate(Float rate) {
+      setRate(rate);
+      return this;
+    }
+
+    /**
+     * Add a rule.
+     *
+     * @param method the HTTP method to match, or null for any
+     * @param path the path prefix to match, or null for any
+     * @param rate the sampling rate of matching requests
+     * @return the settings
+     */
+    public Settings rule(String method, String path, float rate) {
+      rules.add(new Rule(method, path, rate));
+      return this;
+    }
+
+    Settings copy() {
+      Settings copy = new Settings();
+      copy.rate = rate;
+      for (Rule rule : rules) {
+        copy.rules.add(new Rule(rule.method, rule.path, rule.rate));
+      }
+      return copy;
+    }
+
+    @Override
+    public String toString() {
+      return "Settings{rate=" + rate + ", rules=" + rules + "}";
+    }
+  }
+
+  /**
+   * Sampling rule for requests with a method and path prefix.
+   */
+  public static final class Rule {
+    private String method;
+    private String path;
+    private float rate;
+
+    public Rule() {
+    }
+
+    public Rule(String method, String path, float rate) {
+      this.method = method;
+      this.path = path;
+      this.rate = rate;
+    }
+
+    public String getMethod() {
+      return method;
+    }
+
+    public void setMethod(String method) {
+      this.method = method;
+    }
+
+    public String getPath() {
+      return path;
+    }
+
+    public void setPath(String path) {
+      this.path = path;
+    }
+
+    public float getRate() {
+      return rate;
+    }
+
+    public void setRate(float rate) {
+      this.rate = rate;
+    }
+
+    @Override
+    public String toString() {
+      return (method != null ? method + ":" : "") + (path != null ? path : "") + "=" + rate;
+    }
+  }
+}
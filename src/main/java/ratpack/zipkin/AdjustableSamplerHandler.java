@@ -0,0 +1,80 @@
+/*
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin;
+
+import java.time.Duration;
+import ratpack.handling.Context;
+import ratpack.handling.Handler;
+import ratpack.util.MultiValueMap;
+
+/**
+ * Optional admin {@link Handler} for changing an {@link AdjustableSampler} at runtime.
+ *
+ * {@code GET} shows the current settings. {@code POST} replaces them from query parameters:
+ * <ul>
+ *   <li>{@code rate} - the default rate; omit to defer to the trace sampler</li>
+ *   <li>{@code rule} - repeatable, {@code [METHOD:]PATH_PREFIX=RATE}, e.g. {@code GET:/orders=1.0}</li>
+ *   <li>{@code ttl} - optional number of seconds after which the previous settings are restored</li>
+ * </ul>
+ *
+ * The handler is not bound by {@link ServerTracingModule}; mount it on a protected path, e.g.
+ * {@code chain.path("admin/sampling", new AdjustableSamplerHandler(sampler))}.
+ */
+public final class AdjustableSamplerHandler implements Handler {
+
+  private final AdjustableSampler sampler;
+
+  public AdjustableSamplerHandler(final AdjustableSampler sampler) {
+    this.sampler = sampler;
+  }
+
+  @Override
+  public void handle(Context ctx) throws Exception {
+    ctx.byMethod(m -> m
+        .get(c -> c.getResponse().send(sampler.settings().toString()))
+        .post(this::update));
+  }
+
+  private void update(Context ctx) {
+    MultiValueMap<String, String> params = ctx.getRequest().getQueryParams();
+    AdjustableSampler.Settings settings = new AdjustableSampler.Settings();
+    try {
+      String rate = params.get("rate");
+      if (rate != null && !rate.isEmpty()) {
+        settings.rate(Float.parseFloat(rate));
+      }
+      for (String rule : params.getAll("rule")) {
+        int eq = rule.lastIndexOf('=');
+        if (eq < 0) {
+          throw new IllegalArgumentException("rule must be [METHOD:]PATH=RATE: " + rule);
+        }
+        String target = rule.substring(0, eq);
+        int colon = target.startsWith("/") ? -1 : target.indexOf(':');
+        String method = colon > 0 ? target.substring(0, colon) : null;
+        String path = colon > 0 ? target.substring(colon + 1) : target;
+        settings.rule(method, path.isEmpty() ? null : path, Float.parseFloat(rule.substring(eq + 1)));
+      }
+      String ttl = params.get("ttl");
+      if (ttl != null && !ttl.isEmpty()) {
+        sampler.update(settings, Duration.ofSeconds(Long.parseLong(ttl)));
+      } else {
+        sampler.update(settings);
+      }
+    } catch (IllegalArgumentException e) {
+      ctx.getResponse().status(400).send(e.getMessage());
+      return;
+    }
+    ctx.getResponse().send(sampler.settings().toString());
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin;
+
+import io.netty.buffer.ByteBuf;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Sends a message of encoded spans held in a {@link ByteBuf}, for {@link Proto3Reporter}.
+ *
+ * The message is only valid until {@link #send(ByteBuf)} returns: the reporter reuses the buffer
+ * for the next message, so implementations must be done with it, or have copied it, by then.
+ */
+@FunctionalInterface
+public interface ByteBufSender {
+
+  /**
+   * Send a message.
+   *
+   * @param message the readable bytes of the message
+   * @throws IOException if the message could not be sent
+   */
+  void send(ByteBuf message) throws IOException;
+
+  /**
+   * Create a sender posting Proto3 messages to a zipkin server.
+   *
+   * The message is written from the buffer to the connection's output stream, without copying it
+   * to a byte array first.
+   *
+   * @param endpoint the spans endpoint, e.g. {@code http://localhost:9411/api/v2/spans}
+   * @return the sender
+   */
+  static ByteBufSender http(final String endpoint) {
+    return message -> {
+      HttpURLConnection connection = (HttpURLConnection) new URL(endpoint).openConnection();
+      connection.setRequestMethod("POST");
+      connection.setRequestProperty("Content-Type", "application/x-protobuf");
+      connection.setDoOutput(true);
+      connection.setFixedLengthStreamingMode(message.readableBytes());
+      try (OutputStream out = connection.getOutputStream()) {
+        message.getBytes(message.readerIndex(), out, message.readableBytes());
+      }
+      int status = connection.getResponseCode();
+      // drain the response, so the connection is kept alive for the next message
+      try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+        if (in != null) {
+          byte[] discard = new byte[256];
+          while (in.read(discard) != -1) {
+            // discard
+          }
+        }
+      }
+      if (status >= 400) {
+        throw new IOException("POST " + endpoint + " returned " + status);
+      }
+    };
+  }
+}
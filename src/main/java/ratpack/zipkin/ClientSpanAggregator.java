@@ -0,0 +1,428 @@
+/*
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin;
+
+import java.io.Flushable;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import zipkin2.Span;
+import zipkin2.reporter.Reporter;
+
+/**
+ * Reporter coalescing repeated client calls into one summary span, e.g. when a request calls the
+ * same downstream route hundreds of times.
+ *
+ * Client spans with the same parent and the same method and route are grouped. The first call of
+ * a group is held back; the others are counted and dropped. When the parent span is reported,
+ * the held span is reported as the summary: its timestamp and duration cover all calls, and it is
+ * tagged with {@code aggregate.count}, {@code aggregate.min_duration},
+ * {@code aggregate.max_duration} and {@code aggregate.total_duration} (in microseconds). A call
+ * which is never repeated is reported unchanged.
+ *
+ * Calls which failed, or took longer than the outlier factor times the group's mean duration, are
+ * reported in full as well as counted. When every call of a group was reported in full, the
+ * summary is a copy of the first call with a new span ID. Groups whose parent is not reported
+ * here, e.g. when it is remote, are reported after a maximum age.
+ *
+ * Reported spans are remembered for the maximum age, so that client spans finishing after their
+ * parent, e.g. fire-and-forget calls, are reported right away instead of being held.
+ *
+ * Enable with {@link ServerTracingModule.Config#aggregateClientSpans(boolean)}, or wrap a reporter
+ * to tune the aggregation.
+ */
+public final class ClientSpanAggregator implements Reporter<Span>, Flushable {
+
+  /**
+   * Create an aggregator with default settings.
+   *
+   * @param delegate the reporter of full and summary spans
+   * @return the aggregator
+   */
+  public static ClientSpanAggregator create(Reporter<Span> delegate) {
+    return newBuilder(delegate).build();
+  }
+
+  /**
+   * @param delegate the reporter of full and summary spans
+   * @return a builder for the aggregator
+   */
+  public static Builder newBuilder(Reporter<Span> delegate) {
+    return new Builder(delegate);
+  }
+
+  public static final class Builder {
+    private final Reporter<Span> delegate;
+    private Function<Span, String> route = ClientSpanAggregator::defaultRoute;
+    private double outlierFactor = 3.0;
+    private Duration maxAge = Duration.ofSeconds(10);
+    private int maxGroups = 10_000;
+    LongSupplier nanoTime = System::nanoTime;
+
+    Builder(Reporter<Span> delegate) {
+      if (delegate == null) throw new NullPointerException("delegate == null");
+      this.delegate = delegate;
+    }
+
+    /**
+     * How to identify the route of a client span, along with its name (the HTTP method by
+     * default). Defaults to the {@code http.path} tag; use a function mapping paths to templates,
+     * e.g. {@code /items/1} to {@code /items/:id}, to group calls for different resources.
+     *
+     * @param route the route of a client span
+     * @return this builder
+     */
+    public Builder route(Function<Span, String> route) {
+      if (route == null) throw new NullPointerException("route == null");
+      this.route = route;
+      return this;
+    }
+
+    /**
+     * Calls taking longer than this factor times the mean duration of their group are reported in
+     * full. Defaults to 3.
+     *
+     * @param outlierFactor the outlier factor
+     * @return this builder
+     */
+    public Builder outlierFactor(double outlierFactor) {
+      if (outlierFactor < 1.0) throw new IllegalArgumentException("outlierFactor < 1");
+      this.outlierFactor = outlierFactor;
+      return this;
+    }
+
+    /**
+     * How long a group waits for its parent span before being reported. Defaults to ten seconds.
+     *
+     * @param maxAge the maximum age of a group
+     * @return this builder
+     */
+    public Builder maxAge(Duration maxAge) {
+      if (maxAge.isNegative()) throw new IllegalArgumentException("maxAge < 0");
+      this.maxAge = maxAge;
+      return this;
+    }
+
+    /**
+     * The maximum number of groups held at once; client spans are reported unchanged beyond it.
+     * As many reported spans are remembered as parents. Defaults to 10000.
+     *
+     * @param maxGroups the maximum number of groups
+     * @return this builder
+     */
+    public Builder maxGroups(int maxGroups) {
+      if (maxGroups <= 0) throw new IllegalArgumentException("maxGroups <= 0");
+      this.maxGroups = maxGroups;
+      return this;
+    }
+
+    public ClientSpanAggregator build() {
+      return new ClientSpanAggregator(this);
+    }
+  }
+
+  static final String COUNT_TAG = "aggregate.count";
+  static final String MIN_DURATION_TAG = "aggregate.min_duration";
+  static final String MAX_DURATION_TAG = "aggregate.max_duration";
+  static final String TOTAL_DURATION_TAG = "aggregate.total_duration";
+
+  private final Reporter<Span> delegate;
+  private final Function<Span, String> route;
+  private final double outlierFactor;
+  private final long maxAgeNanos;
+  private final int maxGroups;
+  private final LongSupplier nanoTime;
+
+  // groups by parent span, and the reported spans remembered as parents
+  private final ConcurrentMap<String, Parent> parents = new ConcurrentHashMap<>();
+  // parents in the order they were added, so that a sweep only visits the expired ones
+  private final Queue<Parent> byAge = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger groupCount = new AtomicInteger();
+  private final AtomicInteger reportedCount = new AtomicInteger();
+  private final AtomicLong nextSweep;
+  private final AtomicBoolean sweeping = new AtomicBoolean();
+  private final LongAdder spansCoalesced = new LongAdder();
+  // returned when there are too many groups, doesn't aggregate
+  private final Group overflow = new Group(false);
+
+  private ClientSpanAggregator(Builder builder) {
+    this.delegate = builder.delegate;
+    this.route = builder.route;
+    this.outlierFactor = builder.outlierFactor;
+    this.maxAgeNanos = builder.maxAge.toNanos();
+    this.maxGroups = builder.maxGroups;
+    this.nanoTime = builder.nanoTime;
+    this.nextSweep = new AtomicLong(nanoTime.getAsLong() + sweepIntervalNanos());
+  }
+
+  private long sweepIntervalNanos() {
+    return Math.max(TimeUnit.MILLISECONDS.toNanos(100), maxAgeNanos / 10);
+  }
+
+  static String defaultRoute(Span span) {
+    String path = span.tags().get("http.path");
+    return path != null ? path : "";
+  }
+
+  @Override
+  public void report(Span span) {
+    long now = nanoTime.getAsLong();
+    sweep(now);
+    if (span.kind() == Span.Kind.CLIENT && span.parentId() != null) {
+      aggregate(span, now);
+    } else {
+      // children usually finish before their parent: report their summaries first
+      String key = parentKey(span.traceId(), span.id());
+      Parent children;
+      if (reportedCount.incrementAndGet() <= maxGroups) {
+        Parent reported = new Parent(key, now, true);
+        children = parents.put(key, reported);
+        byAge.add(reported);
+      } else {
+        reportedCount.decrementAndGet();
+        children = parents.remove(key);
+      }
+      if (children != null) {
+        flush(children);
+      }
+      delegate.report(span);
+    }
+  }
+
+  private void aggregate(Span span, long now) {
+    String parentKey = parentKey(span.traceId(), span.parentId());
+    String groupKey = span.name() + ' ' + route.apply(span);
+    while (true) {
+      Parent parent = parents.get(parentKey);
+      if (parent == null) {
+        Parent added = new Parent(parentKey, now, false);
+        parent = parents.putIfAbsent(parentKey, added);
+        if (parent == null) {
+          byAge.add(added);
+          parent = added;
+        }
+      }
+      Group group = parent.group(groupKey);
+      if (group == null) {
+        if (parent.reported) {
+          delegate.report(span); // the parent was already reported
+          return;
+        }
+        continue; // the parent was flushed concurrently
+      }
+      if (!group.add(span)) {
+        delegate.report(span); // too many groups, or the group was just flushed
+      }
+      return;
+    }
+  }
+
+  private void sweep(long now) {
+    long next = nextSweep.get();
+    if (now - next < 0 || !nextSweep.compareAndSet(next, now + sweepIntervalNanos())
+        || !sweeping.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      Parent parent;
+      while ((parent = byAge.peek()) != null && now - parent.createdAt >= maxAgeNanos) {
+        byAge.poll();
+        if (parent.reported) {
+          reportedCount.decrementAndGet();
+        }
+        if (parents.remove(parent.key, parent)) {
+          flush(parent);
+        }
+      }
+    } finally {
+      sweeping.set(false);
+    }
+  }
+
+  private void flush(Parent parent) {
+    for (Group group : parent.close()) {
+      Span summary = group.summary();
+      if (summary != null) {
+        delegate.report(summary);
+      }
+    }
+  }
+
+  /**
+   * Report all groups, without waiting for their parent spans.
+   */
+  @Override
+  public void flush() {
+    for (Map.Entry<String, Parent> parent : parents.entrySet()) {
+      if (!parent.getValue().reported && parents.remove(parent.getKey(), parent.getValue())) {
+        flush(parent.getValue());
+      }
+    }
+  }
+
+  /**
+   * @return the number of client spans dropped, as they were summarized by another span
+   */
+  public long spansCoalesced() {
+    return spansCoalesced.sum();
+  }
+
+  private static String parentKey(String traceId, String spanId) {
+    return traceId + '/' + spanId;
+  }
+
+  private final class Parent {
+    private final String key;
+    private final long createdAt;
+    // true if the parent span was reported: its late children are reported right away
+    private final boolean reported;
+    // in the order of their first call
+    private final Map<String, Group> groups = new LinkedHashMap<>();
+    private boolean closed;
+
+    private Parent(String key, long createdAt, boolean reported) {
+      this.key = key;
+      this.createdAt = createdAt;
+      this.reported = reported;
+      this.closed = reported;
+    }
+
+    /**
+     * @return the group, a group which doesn't aggregate when there are too many groups, or null
+     *         if the parent was flushed or reported
+     */
+    synchronized Group group(String key) {
+      if (closed) {
+        return null;
+      }
+      Group group = groups.get(key);
+      if (group == null) {
+        if (groupCount.incrementAndGet() > maxGroups) {
+          groupCount.decrementAndGet();
+          return overflow;
+        }
+        group = new Group(true);
+        groups.put(key, group);
+      }
+      return group;
+    }
+
+    synchronized Collection<Group> close() {
+      if (closed) {
+        return Collections.emptyList();
+      }
+      closed = true;
+      groupCount.addAndGet(-groups.size());
+      return groups.values();
+    }
+  }
+
+  private final class Group {
+    private final boolean aggregating;
+    // the span reported as the summary, the first call which was neither an error nor an outlier
+    private Span exemplar;
+    // the summary's base when every call was reported in full
+    private Span first;
+    private long count;
+    private long minDuration = Long.MAX_VALUE;
+    private long maxDuration;
+    private long totalDuration;
+    private long firstTimestamp = Long.MAX_VALUE;
+    private long lastEnd;
+    private boolean closed;
+
+    private Group(boolean aggregating) {
+      this.aggregating = aggregating;
+    }
+
+    /**
+     * @return false if the span was not aggregated
+     */
+    synchronized boolean add(Span span) {
+      if (!aggregating || closed) {
+        return false;
+      }
+      long duration = span.durationAsLong();
+      boolean outlier = count > 0 && duration > outlierFactor * totalDuration / count;
+      count++;
+      minDuration = Math.min(minDuration, duration);
+      maxDuration = Math.max(maxDuration, duration);
+      totalDuration += duration;
+      if (first == null) {
+        first = span;
+      }
+      if (span.timestampAsLong() != 0L) {
+        firstTimestamp = Math.min(firstTimestamp, span.timestampAsLong());
+        lastEnd = Math.max(lastEnd, span.timestampAsLong() + duration);
+      }
+
+      if (outlier || span.tags().containsKey("error")) {
+        delegate.report(span);
+      } else if (exemplar == null) {
+        exemplar = span;
+      } else {
+        spansCoalesced.increment();
+      }
+      return true;
+    }
+
+    /**
+     * @return the summary span, or null if there is nothing left to report
+     */
+    synchronized Span summary() {
+      closed = true;
+      if (count <= 1) {
+        return exemplar;
+      }
+      Span.Builder summary;
+      if (exemplar != null) {
+        summary = exemplar.toBuilder();
+      } else {
+        // every call was reported in full: don't merge the summary into the first one
+        summary = first.toBuilder().id(newSpanId());
+      }
+      summary
+          .putTag(COUNT_TAG, Long.toString(count))
+          .putTag(MIN_DURATION_TAG, Long.toString(minDuration))
+          .putTag(MAX_DURATION_TAG, Long.toString(maxDuration))
+          .putTag(TOTAL_DURATION_TAG, Long.toString(totalDuration));
+      if (firstTimestamp != Long.MAX_VALUE) {
+        summary.timestamp(firstTimestamp).duration(Math.max(1L, lastEnd - firstTimestamp));
+      }
+      return summary.build();
+    }
+  }
+
+  private static long newSpanId() {
+    long id;
+    do {
+      id = ThreadLocalRandom.current().nextLong();
+    } while (id == 0L);
+    return id;
+  }
+}
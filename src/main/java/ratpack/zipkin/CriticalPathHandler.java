@@ -0,0 +1,634 @@
+/*
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin;
+
+import brave.Span.Kind;
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler;
+import brave.propagation.TraceContext;
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import ratpack.service.Service;
+import ratpack.service.StopEvent;
+
+/**
+ * Tags each server span with the downstream calls which set its latency, e.g. the slowest of
+ * several concurrent calls, rather than the one which merely took long in parallel with it.
+ *
+ * The client and local spans finished under a server span, in this process, are collected until
+ * the server span finishes. The critical path is then walked back from the end of the server
+ * span: the child finishing last is on it, then whichever child finished last before that one
+ * started, and so on, descending into the children of local spans. Time on the path covered by
+ * no child is the server's own. The server span is tagged with {@code critical_path}, the top
+ * contributors and their time on the path in microseconds, e.g.
+ * {@code get /prices=120000,get /stock=30000}, and {@code critical_path.self}, the server's own
+ * time.
+ *
+ * The critical path is computed on a background thread, which then passes the server span to
+ * the delegate handler, and also forgets expired traces, so none of this work runs on the event
+ * loop. Memory is bounded: each trace keeps its longest child spans up to a maximum, and traces
+ * whose server span never finishes are forgotten after a maximum age. Local roots which ended
+ * are remembered for as long, so that their late children, e.g. of a fire-and-forget call, are
+ * passed on without starting a new trace.
+ *
+ * This handler must be the last one: it returns from {@code end} before passing the server span
+ * on, then tags it on the background thread. Handlers which change spans, e.g. {@link SpanLimits},
+ * must be added before it, or they would change the server span concurrently with it. Enable with
+ * {@link ServerTracingModule.Config#criticalPath(boolean)}, which adds it after the span limits,
+ * or add it to a tracer with the reporting handler as its delegate, and close it when done:
+ *
+ * <pre>{@code
+ * Tracing.newBuilder()
+ *     .addSpanHandler(CriticalPathHandler.create(ZipkinSpanHandler.create(reporter)))
+ *     .build();
+ * }</pre>
+ */
+public final class CriticalPathHandler extends SpanHandler implements Service, Closeable {
+
+  /**
+   * @return a handler which passes spans on to nothing, and has no background thread
+   */
+  public static CriticalPathHandler disabled() {
+    return new CriticalPathHandler(new Builder(SpanHandler.NOOP), false);
+  }
+
+  /**
+   * Create a handler with default settings.
+   *
+   * @param delegate the handler reporting spans, e.g. a {@code ZipkinSpanHandler}
+   * @return the handler
+   */
+  public static CriticalPathHandler create(SpanHandler delegate) {
+    return newBuilder(delegate).build();
+  }
+
+  /**
+   * @param delegate the handler reporting spans, e.g. a {@code ZipkinSpanHandler}
+   * @return a builder for the handler
+   */
+  public static Builder newBuilder(SpanHandler delegate) {
+    return new Builder(delegate);
+  }
+
+  public static final class Builder {
+    private final SpanHandler delegate;
+    private int topContributors = 3;
+    private int maxSpansPerTrace = 64;
+    private int maxTraces = 10_000;
+    private int queuedMaxTraces = 1_000;
+    private Duration maxAge = Duration.ofSeconds(10);
+    LongSupplier nanoTime = System::nanoTime;
+
+    Builder(SpanHandler delegate) {
+      if (delegate == null) throw new NullPointerException("delegate == null");
+      this.delegate = delegate;
+    }
+
+    /**
+     * The number of contributors tagged, the longest first. Defaults to 3.
+     *
+     * @param topContributors the number of contributors
+     * @return this builder
+     */
+    public Builder topContributors(int topContributors) {
+      if (topContributors <= 0) throw new IllegalArgumentException("topContributors <= 0");
+      this.topContributors = topContributors;
+      return this;
+    }
+
+    /**
+     * The maximum number of child spans kept for each trace; beyond it, the shortest are
+     * forgotten. Defaults to 64.
+     *
+     * @param maxSpansPerTrace the maximum number of child spans of a trace
+     * @return this builder
+     */
+    public Builder maxSpansPerTrace(int maxSpansPerTrace) {
+      if (maxSpansPerTrace <= 0) throw new IllegalArgumentException("maxSpansPerTrace <= 0");
+      this.maxSpansPerTrace = maxSpansPerTrace;
+      return this;
+    }
+
+    /**
+     * The maximum number of traces collected at once; server spans of other traces are passed on
+     * untagged. As many ended local roots are remembered. Defaults to 10000.
+     *
+     * @param maxTraces the maximum number of traces
+     * @return this builder
+     */
+    public Builder maxTraces(int maxTraces) {
+      if (maxTraces <= 0) throw new IllegalArgumentException("maxTraces <= 0");
+      this.maxTraces = maxTraces;
+      return this;
+    }
+
+    /**
+     * The maximum number of finished traces waiting for the background thread; server spans of
+     * other traces are passed on untagged. Defaults to 1000.
+     *
+     * @param queuedMaxTraces the maximum number of queued traces
+     * @return this builder
+     */
+    public Builder queuedMaxTraces(int queuedMaxTraces) {
+      if (queuedMaxTraces <= 0) throw new IllegalArgumentException("queuedMaxTraces <= 0");
+      this.queuedMaxTraces = queuedMaxTraces;
+      return this;
+    }
+
+    /**
+     * How long the child spans of a trace are kept, waiting for its server span. Defaults to ten
+     * seconds.
+     *
+     * @param maxAge the maximum age of a trace
+     * @return this builder
+     */
+    public Builder maxAge(Duration maxAge) {
+      if (maxAge.isNegative()) throw new IllegalArgumentException("maxAge < 0");
+      this.maxAge = maxAge;
+      return this;
+    }
+
+    public CriticalPathHandler build() {
+      return new CriticalPathHandler(this, true);
+    }
+  }
+
+  static final String CRITICAL_PATH_TAG = "critical_path";
+  static final String SELF_TAG = "critical_path.self";
+
+  private final boolean enabled;
+  private final SpanHandler delegate;
+  private final int topContributors;
+  private final int maxSpansPerTrace;
+  private final int maxTraces;
+  private final long maxAgeNanos;
+  private final LongSupplier nanoTime;
+  private final ThreadPoolExecutor executor;
+
+  // child spans by local root, and the local roots which ended or weren't tracked
+  private final ConcurrentMap<Long, Trace> traces = new ConcurrentHashMap<>();
+  private final AtomicInteger collectingCount = new AtomicInteger();
+  private final AtomicInteger endedCount = new AtomicInteger();
+  private final AtomicInteger untrackedCount = new AtomicInteger();
+  private final AtomicLong nextSweep;
+  private final LongAdder tracesTagged = new LongAdder();
+  private final LongAdder tracesSkipped = new LongAdder();
+  private final LongAdder spansEvicted = new LongAdder();
+
+  private CriticalPathHandler(Builder builder, boolean enabled) {
+    this.enabled = enabled;
+    this.delegate = builder.delegate;
+    this.topContributors = builder.topContributors;
+    this.maxSpansPerTrace = builder.maxSpansPerTrace;
+    this.maxTraces = builder.maxTraces;
+    this.maxAgeNanos = builder.maxAge.toNanos();
+    this.nanoTime = builder.nanoTime;
+    this.nextSweep = new AtomicLong(nanoTime.getAsLong() + sweepIntervalNanos());
+    this.executor = enabled ? new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(builder.queuedMaxTraces), r -> {
+          Thread thread = new Thread(r, "CriticalPathHandler");
+          thread.setDaemon(true);
+          return thread;
+        }) : null;
+  }
+
+  private long sweepIntervalNanos() {
+    return Math.max(TimeUnit.MILLISECONDS.toNanos(100), maxAgeNanos / 10);
+  }
+
+  @Override
+  public boolean end(final TraceContext context, final MutableSpan span, final Cause cause) {
+    if (!enabled) {
+      return delegate.end(context, span, cause);
+    }
+    long now = nanoTime.getAsLong();
+    scheduleSweep(now);
+    if (!context.isLocalRoot()) {
+      if (cause == Cause.FINISHED && span.startTimestamp() != 0L && span.finishTimestamp() != 0L) {
+        collect(context, span, now);
+      }
+      return delegate.end(context, span, cause);
+    }
+
+    Trace trace = ended(context.localRootId(), now);
+    if (trace != null && trace.state == State.UNTRACKED && span.kind() == Kind.SERVER) {
+      tracesSkipped.increment();
+    }
+    if (trace == null || !trace.close() || cause != Cause.FINISHED || span.kind() != Kind.SERVER
+        || span.finishTimestamp() <= span.startTimestamp()) {
+      return delegate.end(context, span, cause);
+    }
+    try {
+      executor.execute(() -> {
+        tag(span, trace);
+        delegate.end(context, span, cause);
+      });
+      return true;
+    } catch (RejectedExecutionException e) {
+      tracesSkipped.increment();
+      return delegate.end(context, span, cause);
+    }
+  }
+
+  private void collect(final TraceContext context, final MutableSpan span, final long now) {
+    long localRootId = context.localRootId();
+    Trace trace = traces.get(localRootId);
+    if (trace == null && (trace = track(localRootId, now)) == null) {
+      return;
+    }
+    if (!trace.add(context.spanId(), context.parentIdAsLong(), span)) {
+      spansEvicted.increment();
+    }
+  }
+
+  /**
+   * @return the trace collecting the children of a local root, or, when there are too many, a
+   *         marker counting its server span as skipped; null when there are too many of those too
+   */
+  private Trace track(final long localRootId, final long now) {
+    State state = State.COLLECTING;
+    if (collectingCount.incrementAndGet() > maxTraces) {
+      collectingCount.decrementAndGet();
+      if (untrackedCount.incrementAndGet() > maxTraces) {
+        untrackedCount.decrementAndGet();
+        return null;
+      }
+      state = State.UNTRACKED;
+    }
+    Trace added = new Trace(now, state);
+    Trace trace = traces.putIfAbsent(localRootId, added);
+    if (trace != null) {
+      count(state).decrementAndGet();
+      return trace;
+    }
+    return added;
+  }
+
+  /**
+   * Replaces the trace of a local root which ended with a tombstone, so that its late children
+   * are passed on without starting a new trace.
+   *
+   * @return the trace of the local root, or null if it had none
+   */
+  private Trace ended(final long localRootId, final long now) {
+    Trace trace;
+    if (endedCount.incrementAndGet() <= maxTraces) {
+      trace = traces.put(localRootId, new Trace(now, State.ENDED));
+    } else {
+      endedCount.decrementAndGet();
+      trace = traces.remove(localRootId);
+    }
+    if (trace != null) {
+      count(trace.state).decrementAndGet();
+    }
+    return trace;
+  }
+
+  private AtomicInteger count(final State state) {
+    switch (state) {
+      case COLLECTING:
+        return collectingCount;
+      case ENDED:
+        return endedCount;
+      default:
+        return untrackedCount;
+    }
+  }
+
+  private void scheduleSweep(final long now) {
+    long next = nextSweep.get();
+    if (now - next < 0 || !nextSweep.compareAndSet(next, now + sweepIntervalNanos())) {
+      return;
+    }
+    try {
+      executor.execute(this::sweep);
+    } catch (RejectedExecutionException e) {
+      // behind or closed: a later end schedules the next sweep
+    }
+  }
+
+  private void sweep() {
+    long now = nanoTime.getAsLong();
+    for (Map.Entry<Long, Trace> trace : traces.entrySet()) {
+      if (now - trace.getValue().createdAt >= maxAgeNanos
+          && traces.remove(trace.getKey(), trace.getValue())) {
+        count(trace.getValue().state).decrementAndGet();
+      }
+    }
+  }
+
+  private void tag(final MutableSpan server, final Trace trace) {
+    Path path;
+    synchronized (trace) {
+      path = new Path(trace);
+    }
+    path.walk(-1, server.startTimestamp(), server.finishTimestamp());
+    String contributors = path.topContributors(topContributors);
+    if (!contributors.isEmpty()) {
+      server.tag(CRITICAL_PATH_TAG, contributors);
+    }
+    server.tag(SELF_TAG, Long.toString(path.self));
+    tracesTagged.increment();
+  }
+
+  @Override
+  public void onStop(final StopEvent event) {
+    close();
+  }
+
+  /**
+   * Stop the background thread, after passing on the server spans already queued. Server spans
+   * finished afterwards are passed on untagged.
+   */
+  @Override
+  public void close() {
+    if (!enabled) {
+      return;
+    }
+    executor.shutdown();
+    try {
+      executor.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * @return the number of server spans tagged with their critical path
+   */
+  public long tracesTagged() {
+    return tracesTagged.sum();
+  }
+
+  /**
+   * @return the number of server spans passed on untagged, because too many traces were collected
+   *         at once, or the background thread was behind or closed
+   */
+  public long tracesSkipped() {
+    return tracesSkipped.sum();
+  }
+
+  /**
+   * @return the number of child spans forgotten, because their trace had too many
+   */
+  public long spansEvicted() {
+    return spansEvicted.sum();
+  }
+
+  @Override
+  public String toString() {
+    return "CriticalPathHandler{" + delegate + "}";
+  }
+
+  private enum State {
+    /** collecting the child spans of a local root */
+    COLLECTING,
+    /** a tombstone for a local root which ended */
+    ENDED,
+    /** a marker for a local root whose children weren't collected, as there were too many traces */
+    UNTRACKED
+  }
+
+  /**
+   * The intervals of the child spans of a local root, growing up to the maximum, then keeping the
+   * longest. Tombstones and markers keep none.
+   */
+  private final class Trace {
+    private final long createdAt;
+    private final State state;
+    private int size;
+    private long[] ids;
+    private long[] parentIds;
+    private long[] starts;
+    private long[] finishes;
+    // labels are built on the background thread, from the span's name, remote service and path
+    private String[][] labels;
+    private boolean closed;
+
+    private Trace(long createdAt, State state) {
+      this.createdAt = createdAt;
+      this.state = state;
+      this.closed = state != State.COLLECTING;
+      if (closed) {
+        return;
+      }
+      int capacity = Math.min(8, maxSpansPerTrace);
+      this.ids = new long[capacity];
+      this.parentIds = new long[capacity];
+      this.starts = new long[capacity];
+      this.finishes = new long[capacity];
+      this.labels = new String[capacity][];
+    }
+
+    /**
+     * @return false if the span, or a shorter one it replaced, was forgotten
+     */
+    synchronized boolean add(long id, long parentId, MutableSpan span) {
+      if (closed) {
+        return true;
+      }
+      if (size == ids.length && size < maxSpansPerTrace) {
+        grow(Math.min(size * 2, maxSpansPerTrace));
+      }
+      int i = size;
+      boolean evicted = false;
+      if (size == ids.length) {
+        i = shortest();
+        if (finishes[i] - starts[i] >= span.finishTimestamp() - span.startTimestamp()) {
+          return false;
+        }
+        evicted = true;
+      } else {
+        size++;
+      }
+      ids[i] = id;
+      parentIds[i] = parentId;
+      starts[i] = span.startTimestamp();
+      finishes[i] = span.finishTimestamp();
+      labels[i] = new String[] {span.remoteServiceName(), span.name(),
+          span.kind() == Kind.CLIENT ? span.tag("http.path") : null};
+      return !evicted;
+    }
+
+    /**
+     * @return false if the trace was already closed by a concurrent end of its local root, or is
+     *         a tombstone or marker
+     */
+    synchronized boolean close() {
+      if (closed) {
+        return false;
+      }
+      closed = true;
+      return true;
+    }
+
+    private void grow(int capacity) {
+      ids = Arrays.copyOf(ids, capacity);
+      parentIds = Arrays.copyOf(parentIds, capacity);
+      starts = Arrays.copyOf(starts, capacity);
+      finishes = Arrays.copyOf(finishes, capacity);
+      labels = Arrays.copyOf(labels, capacity);
+    }
+
+    private int shortest() {
+      int shortest = 0;
+      for (int i = 1; i < size; i++) {
+        if (finishes[i] - starts[i] < finishes[shortest] - starts[shortest]) {
+          shortest = i;
+        }
+      }
+      return shortest;
+    }
+  }
+
+  /**
+   * The time each contributor spent on the critical path of a trace.
+   */
+  static final class Path {
+    private final int size;
+    private final long[] starts;
+    private final long[] finishes;
+    // index of each span's parent, -1 for the local root or a forgotten parent
+    private final int[] parents;
+    private final String[] labels;
+    private final String[] contributors;
+    private final long[] contributions;
+    private int contributorCount;
+    long self;
+
+    private Path(Trace trace) {
+      this(trace.size, trace.ids, trace.parentIds, trace.starts, trace.finishes, trace.labels);
+    }
+
+    Path(int size, long[] ids, long[] parentIds, long[] starts, long[] finishes, String[][] labels) {
+      this.size = size;
+      this.starts = Arrays.copyOf(starts, size);
+      this.finishes = Arrays.copyOf(finishes, size);
+      this.parents = new int[size];
+      this.labels = new String[size];
+      for (int i = 0; i < size; i++) {
+        parents[i] = -1;
+        for (int j = 0; j < size; j++) {
+          if (ids[j] == parentIds[i] && j != i) {
+            parents[i] = j;
+            break;
+          }
+        }
+        this.labels[i] = label(labels[i]);
+      }
+      this.contributors = new String[size];
+      this.contributions = new long[size];
+    }
+
+    private static String label(String[] parts) {
+      StringBuilder label = new StringBuilder();
+      for (String part : parts) {
+        if (part != null && !part.isEmpty()) {
+          if (label.length() > 0) {
+            label.append(' ');
+          }
+          label.append(part);
+        }
+      }
+      return label.length() > 0 ? label.toString() : "unknown";
+    }
+
+    /**
+     * Walk the critical path of a span, from its end back to its start, attributing the time to
+     * the children finishing last and, where no child runs, to the span itself.
+     *
+     * @param span the index of the span, -1 for the local root
+     * @param from the start of the span
+     * @param to the end of the span
+     */
+    void walk(int span, long from, long to) {
+      long t = to;
+      while (t > from) {
+        int last = -1;
+        long lastEnd = from;
+        for (int i = 0; i < size; i++) {
+          if (parents[i] != span || starts[i] >= t || finishes[i] <= from) {
+            continue;
+          }
+          long end = Math.min(finishes[i], t);
+          // on ties, the longer child
+          if (end > lastEnd || (end == lastEnd && last != -1 && starts[i] < starts[last])) {
+            last = i;
+            lastEnd = end;
+          }
+        }
+        if (last == -1) {
+          attribute(span, t - from);
+          return;
+        }
+        attribute(span, t - lastEnd);
+        long start = Math.max(starts[last], from);
+        walk(last, start, lastEnd);
+        t = start;
+      }
+    }
+
+    private void attribute(int span, long duration) {
+      if (duration <= 0L) {
+        return;
+      }
+      if (span == -1) {
+        self += duration;
+        return;
+      }
+      for (int i = 0; i < contributorCount; i++) {
+        if (contributors[i].equals(labels[span])) {
+          contributions[i] += duration;
+          return;
+        }
+      }
+      contributors[contributorCount] = labels[span];
+      contributions[contributorCount++] = duration;
+    }
+
+    /**
+     * @return the longest contributors, as {@code label=micros} separated by commas
+     */
+    String topContributors(int count) {
+      StringBuilder result = new StringBuilder();
+      boolean[] taken = new boolean[contributorCount];
+      for (int n = 0; n < Math.min(count, contributorCount); n++) {
+        int top = -1;
+        for (int i = 0; i < contributorCount; i++) {
+          if (!taken[i] && (top == -1 || contributions[i] > contributions[top])) {
+            top = i;
+          }
+        }
+        taken[top] = true;
+        if (result.length() > 0) {
+          result.append(',');
+        }
+        result.append(contributors[top]).append('=').append(contributions[top]);
+      }
+      return result.toString();
+    }
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin;
+
+import brave.http.HttpRequest;
+import brave.sampler.SamplerFunction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Forces sampling of server requests carrying a debug header, at most a given number of times per
+ * second on this node.
+ *
+ * Requests without the header, or over the limit, are left to the configured server sampler. Only
+ * requests without an upstream sampling decision reach a sampler, so the header has no effect on
+ * requests that are already part of a trace.
+ *
+ * The limit is a token bucket holding up to one second of permits, implemented as a single atomic
+ * "theoretical arrival time" so acquiring a permit never locks.
+ *
+ * @see ServerTracingModule.Config#debugSampler(DebugSampler)
+ */
+public final class DebugSampler implements SamplerFunction<HttpRequest> {
+
+  /**
+   * Create a debug sampler.
+   *
+   * @param header the request header forcing sampling, e.g. {@code X-Debug-Trace}. Any value other
+   *               than {@code 0} or {@code false} forces sampling.
+   * @param permitsPerSecond how many requests per second may be forced
+   * @return the debug sampler
+   */
+  public static DebugSampler create(final String header, final int permitsPerSecond) {
+    return new DebugSampler(header, permitsPerSecond, System::nanoTime);
+  }
+
+  private final String header;
+  private final long intervalNanos;
+  private final long burstNanos;
+  private final LongSupplier nanoTime;
+  private final AtomicLong nextFreeNanos;
+  private final LongAdder honoured = new LongAdder();
+  private final LongAdder denied = new LongAdder();
+
+  DebugSampler(final String header, final int permitsPerSecond, final LongSupplier nanoTime) {
+    if (header == null) throw new NullPointerException("header == null");
+    if (permitsPerSecond <= 0) throw new IllegalArgumentException("permitsPerSecond <= 0");
+    this.header = header;
+    this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / permitsPerSecond;
+    this.burstNanos = TimeUnit.SECONDS.toNanos(1);
+    this.nanoTime = nanoTime;
+    this.nextFreeNanos = new AtomicLong(nanoTime.getAsLong() - burstNanos);
+  }
+
+  /**
+   * @return true if the request asks to be sampled and a permit was available, otherwise null to
+   *         leave the decision to the next sampler
+   */
+  @Override
+  public Boolean trySample(final HttpRequest request) {
+    String value = request.header(header);
+    if (value == null || "0".equals(value) || "false".equalsIgnoreCase(value)) {
+      return null;
+    }
+    if (tryAcquire()) {
+      honoured.increment();
+      return Boolean.TRUE;
+    }
+    denied.increment();
+    return null;
+  }
+
+  private boolean tryAcquire() {
+    while (true) {
+      long now = nanoTime.getAsLong();
+      long next = nextFreeNanos.get();
+      // an idle bucket refills up to the burst, but no further
+      long start = next - now < -burstNanos ? now - burstNanos : next;
+      long updated = start + intervalNanos;
+      if (updated - now > 0) {
+        return false;
+      }
+      if (nextFreeNanos.compareAndSet(next, updated)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Compose with the sampler deciding requests which are not forced.
+   *
+   * @param fallback the sampler for requests without the header or over the limit
+   * @return a sampler trying this one first
+   */
+  public SamplerFunction<HttpRequest> orElse(final SamplerFunction<HttpRequest> fallback) {
+    return request -> {
+      Boolean forced = trySample(request);
+      return forced != null ? forced : fallback.trySample(request);
+    };
+  }
+
+  /**
+   * @return the number of requests whose debug header forced sampling
+   */
+  public long honoured() {
+    return honoured.sum();
+  }
+
+  /**
+   * @return the number of requests with a debug header which were over the limit
+   */
+  public long denied() {
+    return denied.sum();
+  }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin;
+
+import brave.Span;
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+import ratpack.service.Service;
+import ratpack.service.StartEvent;
+import ratpack.service.StopEvent;
+
+/**
+ * Tracks the server spans of requests in flight, so requests which never send a response are
+ * visible: their spans are reported as abandoned once older than a timeout, and the oldest
+ * requests still in flight can be listed, e.g. from an admin endpoint.
+ *
+ * An abandoned span is named with the request's method and path, in place of the name its
+ * response would have given it, and finished with an {@code error} tag of {@code abandoned}; tags
+ * added when the response is eventually sent are lost. The server tracing handler closes the
+ * request's scope on the event loop running its execution. Expired requests are looked for by a
+ * daemon thread, started and stopped with the server, every tenth of the timeout but at most
+ * every 100 milliseconds, and on {@link #abandonExpired()}. So stuck requests are reported on an
+ * idle server too, and never on the event loop of another request.
+ *
+ * Enable with {@link ServerTracingModule.Config#inFlightRequestTimeout(Duration)}; the module
+ * binds the tracker either way. Tracking costs an entry in a concurrent map per request.
+ */
+public final class InFlightRequests implements Service, Closeable {
+
+  static final String ABANDONED = "abandoned";
+
+  /**
+   * @return a tracker which tracks nothing
+   */
+  public static InFlightRequests disabled() {
+    return new InFlightRequests(null, System::nanoTime);
+  }
+
+  /**
+   * @param timeout the age after which a request's span is reported as abandoned
+   * @return a tracker
+   */
+  public static InFlightRequests create(final Duration timeout) {
+    if (timeout == null) throw new NullPointerException("timeout == null");
+    if (timeout.isNegative() || timeout.isZero()) throw new IllegalArgumentException("timeout <= 0");
+    return new InFlightRequests(timeout, System::nanoTime);
+  }
+
+  private final boolean enabled;
+  private final long timeoutNanos;
+  private final LongSupplier nanoTime;
+  // requests by server span ID; a request joining a client's span ID shares it, so entries are
+  // only removed by the request which added them
+  private final ConcurrentMap<Long, InFlightRequest> requests = new ConcurrentHashMap<>();
+  private final LongAdder requestsAbandoned = new LongAdder();
+  // guarded by this
+  private ScheduledExecutorService sweeper;
+  private boolean closed;
+
+  InFlightRequests(final Duration timeout, final LongSupplier nanoTime) {
+    this.enabled = timeout != null;
+    this.timeoutNanos = enabled ? timeout.toNanos() : Long.MAX_VALUE;
+    this.nanoTime = nanoTime;
+  }
+
+  private long sweepIntervalNanos() {
+    return Math.max(TimeUnit.MILLISECONDS.toNanos(100), timeoutNanos / 10);
+  }
+
+  /**
+   * @return true if requests are tracked
+   */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Track a request, called by the server tracing handler.
+   *
+   * @param span the server span
+   * @param method the HTTP method
+   * @param path the request path
+   * @return the tracked request, to pass to {@link #complete(InFlightRequest)}, or null if
+   *         disabled
+   */
+  public InFlightRequest track(final Span span, final String method, final String path) {
+    return track(span, method, path, null);
+  }
+
+  /**
+   * Track a request, called by the server tracing handler.
+   *
+   * @param span the server span
+   * @param method the HTTP method
+   * @param path the request path
+   * @param abandon called before the span is abandoned, on the tracker's thread, to release what
+   *                the request holds; returns false if its response was sent concurrently, and
+   *                the span is then left to it. May be null.
+   * @return the tracked request, to pass to {@link #complete(InFlightRequest)}, or null if
+   *         disabled
+   */
+  public InFlightRequest track(final Span span, final String method, final String path,
+                               final BooleanSupplier abandon) {
+    if (!enabled) {
+      return null;
+    }
+    InFlightRequest request = new InFlightRequest(span, method, path, nanoTime.getAsLong(), abandon);
+    requests.put(request.spanId, request);
+    return request;
+  }
+
+  /**
+   * Stop tracking a request as its response is being sent, called by the server tracing handler.
+   *
+   * @param request the tracked request
+   */
+  public void complete(final InFlightRequest request) {
+    requests.remove(request.spanId, request);
+  }
+
+  /**
+   * Report the spans of requests older than the timeout as abandoned.
+   */
+  public void abandonExpired() {
+    abandonExpired(nanoTime.getAsLong());
+  }
+
+  private void abandonExpired(final long now) {
+    for (InFlightRequest request : requests.values()) {
+      if (now - request.startNanos >= timeoutNanos && requests.remove(request.spanId, request)
+          && (request.abandon == null || request.abandon.getAsBoolean())) {
+        requestsAbandoned.increment();
+        request.span.name(request.method + " /" + request.path).tag("error", ABANDONED).finish();
+      }
+    }
+  }
+
+  @Override
+  public void onStart(final StartEvent event) {
+    start();
+  }
+
+  @Override
+  public void onStop(final StopEvent event) {
+    close();
+  }
+
+  /**
+   * Start looking for expired requests in the background, unless disabled or already started.
+   */
+  synchronized void start() {
+    if (!enabled || sweeper != null || closed) {
+      return;
+    }
+    sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "InFlightRequests");
+      thread.setDaemon(true);
+      return thread;
+    });
+    long interval = sweepIntervalNanos();
+    sweeper.scheduleWithFixedDelay(() -> {
+      try {
+        abandonExpired();
+      } catch (RuntimeException e) {
+        // a failing span handler must not stop later sweeps
+      }
+    }, interval, interval, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Stop looking for expired requests in the background.
+   */
+  @Override
+  public synchronized void close() {
+    closed = true;
+    if (sweeper != null) {
+      sweeper.shutdown();
+      sweeper = null;
+    }
+  }
+
+  /**
+   * @param count the maximum number of requests to list
+   * @return the oldest requests in flight, oldest first
+   */
+  public List<InFlightRequest> oldest(final int count) {
+    if (count <= 0 || requests.isEmpty()) {
+      return Collections.emptyList();
+    }
+    // keep the youngest of the oldest at the head, to be replaced by older requests
+    PriorityQueue<InFlightRequest> oldest =
+        new PriorityQueue<>(count, Comparator.comparingLong((InFlightRequest r) -> r.startNanos).reversed());
+    for (InFlightRequest request : requests.values()) {
+      if (oldest.size() < count) {
+        oldest.add(request);
+      } else if (request.startNanos - oldest.peek().startNanos < 0) {
+        oldest.poll();
+        oldest.add(request);
+      }
+    }
+    List<InFlightRequest> result = new ArrayList<>(oldest);
+    result.sort(Comparator.comparingLong(r -> r.startNanos));
+    return result;
+  }
+
+  /**
+   * @return the number of requests in flight
+   */
+  public int size() {
+    return requests.size();
+  }
+
+  /**
+   * @return the number of requests whose spans were reported as abandoned
+   */
+  public long requestsAbandoned() {
+    return requestsAbandoned.sum();
+  }
+
+  /**
+   * Age of a request in flight, measured when it is read.
+   */
+  Duration age(final InFlightRequest request) {
+    return Duration.ofNanos(nanoTime.getAsLong() - request.startNanos);
+  }
+
+  /**
+   * A request in flight.
+   */
+  public final class InFlightRequest {
+    private final Span span;
+    private final Long spanId;
+    private final String method;
+    private final String path;
+    private final long startNanos;
+    private final BooleanSupplier abandon;
+
+    private InFlightRequest(final Span span, final String method, final String path, final long startNanos,
+                            final BooleanSupplier abandon) {
+      this.span = span;
+      this.spanId = span.context().spanId();
+      this.method = method;
+      this.path = path;
+      this.startNanos = startNanos;
+      this.abandon = abandon;
+    }
+
+    public String getTraceId() {
+      return span.context().traceIdString();
+    }
+
+    public String getSpanId() {
+      return span.context().spanIdString();
+    }
+
+    public String getMethod() {
+      return method;
+    }
+
+    public String getPath() {
+      return path;
+    }
+
+    public Duration getAge() {
+      return age(this);
+    }
+
+    @Override
+    public String toString() {
+      return method + " /" + path + " (trace " + getTraceId() + ", " + getAge().toMillis() + "ms)";
+    }
+  }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import zipkin2.Span;
+import zipkin2.reporter.Reporter;
+
+/**
+ * Span reporter front-end queueing spans by priority, so that overload sheds the least useful
+ * spans first.
+ *
+ * Each span is classified as an {@link Priority#ERROR error} (a 5xx status or an exception),
+ * {@link Priority#SLOW slow} (over the slow threshold) or {@link Priority#NORMAL normal} span, and
+ * queued in a bounded queue of its class. A background thread drains the queues into the
+ * delegate reporter, always taking errors first, then slow spans, then normal ones. When the
+ * delegate can't keep up, the normal queue is drained last, so it fills up and drops spans
+ * first, while errors still get through.
+ *
+ * The delegate must push back, or it would drop spans itself regardless of their class: either
+ * report synchronously, or configure its backlog with
+ * {@link Builder#backlog(LongSupplier, long)}, e.g. {@link Proto3Reporter#queuedSpans()}.
+ *
+ * <pre>{@code
+ * Proto3Reporter proto3 = Proto3Reporter.create(ByteBufSender.http("http://localhost:9411/api/v2/spans"));
+ * PriorityReporter reporter = PriorityReporter.newBuilder(proto3)
+ *     .backlog(proto3::queuedSpans, 1_000)
+ *     .build();
+ * config.spanReporterV2(reporter);
+ * }</pre>
+ */
+public final class PriorityReporter implements Reporter<Span>, Flushable, Closeable {
+
+  /**
+   * The class of a span, in the order queues are drained.
+   */
+  public enum Priority {
+    /** Spans with a 5xx status code, or an error other than a 4xx status code. */
+    ERROR,
+    /** Spans lasting at least the slow threshold. */
+    SLOW,
+    /** All other spans. */
+    NORMAL
+  }
+
+  /**
+   * Create a reporter with default settings, draining every 100 milliseconds.
+   *
+   * @param delegate the reporter spans are drained into
+   * @return the reporter
+   */
+  public static PriorityReporter create(Reporter<Span> delegate) {
+    return newBuilder(delegate).build();
+  }
+
+  /**
+   * @param delegate the reporter spans are drained into
+   * @return a builder for the reporter
+   */
+  public static Builder newBuilder(Reporter<Span> delegate) {
+    return new Builder(delegate);
+  }
+
+  public static final class Builder {
+    private final Reporter<Span> delegate;
+    private final Map<Priority, Integer> queuedMaxSpans = new EnumMap<>(Priority.class);
+    private Duration slowThreshold = Duration.ofSeconds(1);
+    private Duration drainInterval = Duration.ofMillis(100);
+    private LongSupplier backlog = () -> 0L;
+    private long maxBacklog = Long.MAX_VALUE;
+
+    Builder(Reporter<Span> delegate) {
+      if (delegate == null) throw new NullPointerException("delegate == null");
+      this.delegate = delegate;
+      queuedMaxSpans.put(Priority.ERROR, 1_000);
+      queuedMaxSpans.put(Priority.SLOW, 1_000);
+      queuedMaxSpans.put(Priority.NORMAL, 10_000);
+    }
+
+    /**
+     * The maximum number of spans of a class waiting to be reported. Defaults to 1000 errors,
+     * 1000 slow spans and 10000 normal spans.
+     *
+     * @param priority the class of spans
+     * @param queuedMaxSpans the maximum number of queued spans of the class
+     * @return this builder
+     */
+    public Builder queuedMaxSpans(Priority priority, int queuedMaxSpans) {
+      if (priority == null) throw new NullPointerException("priority == null");
+      if (queuedMaxSpans <= 0) throw new IllegalArgumentException("queuedMaxSpans <= 0");
+      this.queuedMaxSpans.put(priority, queuedMaxSpans);
+      return this;
+    }
+
+    /**
+     * Spans lasting at least this long, which are not errors, are slow. Defaults to one second.
+     *
+     * @param slowThreshold the duration of slow spans
+     * @return this builder
+     */
+    public Builder slowThreshold(Duration slowThreshold) {
+      if (slowThreshold.isNegative()) throw new IllegalArgumentException("slowThreshold < 0");
+      this.slowThreshold = slowThreshold;
+      return this;
+    }
+
+    /**
+     * How often queued spans are drained in the background. Defaults to 100 milliseconds; zero
+     * disables background draining, leaving it to callers of {@link PriorityReporter#flush()}.
+     *
+     * @param drainInterval the drain interval
+     * @return this builder
+     */
+    public Builder drainInterval(Duration drainInterval) {
+      if (drainInterval.isNegative()) throw new IllegalArgumentException("drainInterval < 0");
+      this.drainInterval = drainInterval;
+      return this;
+    }
+
+    /**
+     * Stop draining while the delegate's backlog is at the maximum, leaving spans in the queues
+     * of this reporter, where they are dropped by priority.
+     *
+     * @param queuedSpans the number of spans waiting in the delegate
+     * @param maxQueuedSpans the backlog at which draining stops
+     * @return this builder
+     */
+    public Builder backlog(LongSupplier queuedSpans, long maxQueuedSpans) {
+      if (queuedSpans == null) throw new NullPointerException("queuedSpans == null");
+      if (maxQueuedSpans <= 0) throw new IllegalArgumentException("maxQueuedSpans <= 0");
+      this.backlog = queuedSpans;
+      this.maxBacklog = maxQueuedSpans;
+      return this;
+    }
+
+    public PriorityReporter build() {
+      return new PriorityReporter(this);
+    }
+  }
+
+  private static final Priority[] PRIORITIES = Priority.values();
+
+  private final Reporter<Span> delegate;
+  private final long slowThresholdMicros;
+  private final LongSupplier backlog;
+  private final long maxBacklog;
+  private final ScheduledExecutorService drainer;
+
+  // indexed by priority ordinal
+  private final BlockingQueue<Span>[] queues;
+  private final LongAdder[] spansReported;
+  private final LongAdder[] spansDropped;
+
+  private volatile boolean closed;
+
+  @SuppressWarnings("unchecked")
+  private PriorityReporter(Builder builder) {
+    this.delegate = builder.delegate;
+    this.slowThresholdMicros = TimeUnit.NANOSECONDS.toMicros(builder.slowThreshold.toNanos());
+    this.backlog = builder.backlog;
+    this.maxBacklog = builder.maxBacklog;
+    this.queues = new BlockingQueue[PRIORITIES.length];
+    this.spansReported = new LongAdder[PRIORITIES.length];
+    this.spansDropped = new LongAdder[PRIORITIES.length];
+    for (Priority priority : PRIORITIES) {
+      queues[priority.ordinal()] = new ArrayBlockingQueue<>(builder.queuedMaxSpans.get(priority));
+      spansReported[priority.ordinal()] = new LongAdder();
+      spansDropped[priority.ordinal()] = new LongAdder();
+    }
+    if (builder.drainInterval.isZero()) {
+      this.drainer = null;
+    } else {
+      this.drainer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "PriorityReporter");
+        thread.setDaemon(true);
+        return thread;
+      });
+      long nanos = builder.drainInterval.toNanos();
+      drainer.scheduleWithFixedDelay(this::flush, nanos, nanos, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  /**
+   * @return the class of the span
+   */
+  Priority classify(Span span) {
+    String status = span.tags().get("http.status_code");
+    if (status != null && status.startsWith("5")) {
+      return Priority.ERROR;
+    }
+    // the HTTP parsers tag 4xx responses as errors too, but those are the client's
+    if (span.tags().containsKey("error") && (status == null || !status.startsWith("4"))) {
+      return Priority.ERROR;
+    }
+    if (span.durationAsLong() >= slowThresholdMicros && span.durationAsLong() != 0L) {
+      return Priority.SLOW;
+    }
+    return Priority.NORMAL;
+  }
+
+  @Override
+  public void report(Span span) {
+    int priority = classify(span).ordinal();
+    if (closed || !queues[priority].offer(span)) {
+      spansDropped[priority].increment();
+    }
+  }
+
+  /**
+   * Report the queued spans to the delegate, highest priority first, until the queues are empty
+   * or the delegate's backlog is at the maximum.
+   */
+  @Override
+  public synchronized void flush() {
+    while (backlog.getAsLong() < maxBacklog) {
+      int priority = 0;
+      Span span = null;
+      // look at the higher priorities again after each span, as they may have filled meanwhile
+      for (; priority < queues.length; priority++) {
+        span = queues[priority].poll();
+        if (span != null) {
+          break;
+        }
+      }
+      if (span == null) {
+        return;
+      }
+      try {
+        delegate.report(span);
+        spansReported[priority].increment();
+      } catch (RuntimeException e) {
+        spansDropped[priority].increment();
+      }
+    }
+  }
+
+  /**
+   * Stop background draining and drain the queues. Spans still queued, because the delegate's
+   * backlog is full, and spans reported afterwards are dropped.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    if (drainer != null) {
+      drainer.shutdown();
+    }
+    flush();
+    for (Priority priority : PRIORITIES) {
+      spansDropped[priority.ordinal()].add(queues[priority.ordinal()].size());
+      queues[priority.ordinal()].clear();
+    }
+  }
+
+  /**
+   * @param priority the class of spans
+   * @return the number of spans of the class passed to the delegate
+   */
+  public long spansReported(Priority priority) {
+    return spansReported[priority.ordinal()].sum();
+  }
+
+  /**
+   * @param priority the class of spans
+   * @return the number of spans of the class dropped, because their queue was full, the reporter
+   *         was closed or the delegate failed
+   */
+  public long spansDropped(Priority priority) {
+    return spansDropped[priority.ordinal()].sum();
+  }
+
+  /**
+   * @return the number of spans waiting to be drained, of all classes
+   */
+  public long queuedSpans() {
+    long queued = 0L;
+    for (BlockingQueue<Span> queue : queues) {
+      queued += queue.size();
+    }
+    return queued;
+  }
+
+  @Override
+  public String toString() {
+    return "PriorityReporter{" + delegate + "}";
+  }
+}
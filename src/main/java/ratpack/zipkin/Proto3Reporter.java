@@ -0,0 +1,281 @@
+/*
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import ratpack.zipkin.internal.Proto3SpanWriter;
+import zipkin2.Span;
+import zipkin2.reporter.Reporter;
+
+/**
+ * Span reporter encoding batches of spans in the zipkin Proto3 format into a pooled Netty
+ * {@link ByteBuf}.
+ *
+ * Spans are queued when reported, and encoded when flushed: periodically on a background thread,
+ * or by calling {@link #flush()}. Encoding writes straight into the send buffer, which is allocated
+ * once and reused for every message until the reporter is closed. Proto3 messages are typically
+ * much smaller than JSON ones, and the zipkin server accepts them on the same endpoint with the
+ * {@code application/x-protobuf} content type.
+ *
+ * <pre>{@code
+ * Proto3Reporter reporter = Proto3Reporter.create(
+ *     ByteBufSender.http("http://localhost:9411/api/v2/spans"));
+ * config.spanReporterV2(reporter);
+ * }</pre>
+ *
+ * Spans reported when the queue is full, or too large for a message, are dropped. So are the spans
+ * of messages the sender fails to send.
+ */
+public final class Proto3Reporter implements Reporter<Span>, Flushable, Closeable {
+
+  /**
+   * Create a reporter with default settings, flushing every second.
+   *
+   * @param sender sends messages
+   * @return the reporter
+   */
+  public static Proto3Reporter create(ByteBufSender sender) {
+    return newBuilder(sender).build();
+  }
+
+  /**
+   * @param sender sends messages
+   * @return a builder for the reporter
+   */
+  public static Builder newBuilder(ByteBufSender sender) {
+    return new Builder(sender);
+  }
+
+  public static final class Builder {
+    private final ByteBufSender sender;
+    private ByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+    private int messageMaxBytes = 500_000;
+    private int queuedMaxSpans = 10_000;
+    private Duration messageTimeout = Duration.ofSeconds(1);
+
+    Builder(ByteBufSender sender) {
+      if (sender == null) throw new NullPointerException("sender == null");
+      this.sender = sender;
+    }
+
+    /**
+     * The allocator of the send buffer. Defaults to Netty's pooled allocator.
+     *
+     * @param allocator the allocator
+     * @return this builder
+     */
+    public Builder allocator(ByteBufAllocator allocator) {
+      if (allocator == null) throw new NullPointerException("allocator == null");
+      this.allocator = allocator;
+      return this;
+    }
+
+    /**
+     * The maximum size of a message. Defaults to 500KB.
+     *
+     * @param messageMaxBytes the maximum size of a message
+     * @return this builder
+     */
+    public Builder messageMaxBytes(int messageMaxBytes) {
+      if (messageMaxBytes <= 0) throw new IllegalArgumentException("messageMaxBytes <= 0");
+      this.messageMaxBytes = messageMaxBytes;
+      return this;
+    }
+
+    /**
+     * The maximum number of spans waiting to be sent. Defaults to 10000.
+     *
+     * @param queuedMaxSpans the maximum number of queued spans
+     * @return this builder
+     */
+    public Builder queuedMaxSpans(int queuedMaxSpans) {
+      if (queuedMaxSpans <= 0) throw new IllegalArgumentException("queuedMaxSpans <= 0");
+      this.queuedMaxSpans = queuedMaxSpans;
+      return this;
+    }
+
+    /**
+     * How often queued spans are flushed in the background. Defaults to one second; zero disables
+     * background flushing, leaving it to callers of {@link Proto3Reporter#flush()}.
+     *
+     * @param messageTimeout the flush interval
+     * @return this builder
+     */
+    public Builder messageTimeout(Duration messageTimeout) {
+      if (messageTimeout.isNegative()) throw new IllegalArgumentException("messageTimeout < 0");
+      this.messageTimeout = messageTimeout;
+      return this;
+    }
+
+    public Proto3Reporter build() {
+      return new Proto3Reporter(this);
+    }
+  }
+
+  private final ByteBufSender sender;
+  private final ByteBufAllocator allocator;
+  private final int messageMaxBytes;
+  private final BlockingQueue<Span> queue;
+  private final ScheduledExecutorService flusher;
+
+  private final LongAdder spansSent = new LongAdder();
+  private final LongAdder spansDropped = new LongAdder();
+  private final LongAdder messagesSent = new LongAdder();
+  private final LongAdder messagesFailed = new LongAdder();
+
+  // guarded by this
+  private ByteBuf buffer;
+  private boolean released;
+  private volatile boolean closed;
+
+  private Proto3Reporter(Builder builder) {
+    this.sender = builder.sender;
+    this.allocator = builder.allocator;
+    this.messageMaxBytes = builder.messageMaxBytes;
+    this.queue = new ArrayBlockingQueue<>(builder.queuedMaxSpans);
+    if (builder.messageTimeout.isZero()) {
+      this.flusher = null;
+    } else {
+      this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "Proto3Reporter");
+        thread.setDaemon(true);
+        return thread;
+      });
+      long nanos = builder.messageTimeout.toNanos();
+      flusher.scheduleWithFixedDelay(this::flush, nanos, nanos, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  @Override
+  public void report(Span span) {
+    if (closed || !queue.offer(span)) {
+      spansDropped.increment();
+    }
+  }
+
+  /**
+   * Encode and send the queued spans, in as many messages as needed.
+   */
+  @Override
+  public synchronized void flush() {
+    if (buffer == null) {
+      if (released || queue.isEmpty()) return;
+      buffer = allocator.buffer(Math.min(messageMaxBytes, 64 * 1024));
+    }
+    int spans = 0;
+    Span span;
+    while ((span = queue.poll()) != null) {
+      int size = Proto3SpanWriter.sizeInBytes(span);
+      if (size > messageMaxBytes) {
+        spansDropped.increment();
+        continue;
+      }
+      if (buffer.readableBytes() + size > messageMaxBytes) {
+        send(spans);
+        spans = 0;
+      }
+      Proto3SpanWriter.write(span, buffer);
+      spans++;
+    }
+    if (spans > 0) {
+      send(spans);
+    }
+  }
+
+  private void send(int spans) {
+    try {
+      sender.send(buffer);
+      spansSent.add(spans);
+      messagesSent.increment();
+    } catch (Exception e) {
+      spansDropped.add(spans);
+      messagesFailed.increment();
+    } finally {
+      buffer.clear();
+    }
+  }
+
+  /**
+   * Stop background flushing, send the queued spans and release the send buffer. Spans reported
+   * afterwards are dropped.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    if (flusher != null) {
+      flusher.shutdown();
+    }
+    synchronized (this) {
+      flush();
+      if (buffer != null) {
+        buffer.release();
+        buffer = null;
+      }
+      released = true;
+    }
+  }
+
+  /**
+   * @return the number of spans sent
+   */
+  public long spansSent() {
+    return spansSent.sum();
+  }
+
+  /**
+   * @return the number of spans dropped, because the queue was full, they were too large, the
+   *         reporter was closed or their message failed
+   */
+  public long spansDropped() {
+    return spansDropped.sum();
+  }
+
+  /**
+   * @return the number of messages sent
+   */
+  public long messagesSent() {
+    return messagesSent.sum();
+  }
+
+  /**
+   * @return the number of messages the sender failed to send
+   */
+  public long messagesFailed() {
+    return messagesFailed.sum();
+  }
+
+  /**
+   * @return the number of spans waiting to be sent, e.g. for
+   *         {@link AdaptiveSampler.Builder#backlog(java.util.function.LongSupplier, long)}
+   */
+  public long queuedSpans() {
+    return queue.size();
+  }
+
+  @Override
+  public String toString() {
+    return "Proto3Reporter{" + sender + "}";
+  }
+}
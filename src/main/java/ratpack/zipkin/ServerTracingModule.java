@@ -1,5 +1,5 @@
 /*
- * Copyright 2016-2019 The OpenZipkin Authors
+ * Copyright 2016-2026 The OpenZipkin Authors
  *
  * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
  * in compliance with the License. You may obtain a copy of the License at
@@ -18,30 +18,39 @@ import brave.SpanCustomizer;
 import brave.Tracer;
 import brave.Tracing;
 import brave.http.HttpClientParser;
+import brave.http.HttpRequest;
 import brave.http.HttpSampler;
 import brave.http.HttpServerParser;
 import brave.http.HttpTracing;
 import brave.propagation.B3Propagation;
 import brave.propagation.Propagation;
 import brave.sampler.Sampler;
+import brave.sampler.SamplerFunction;
 import com.google.inject.Provider;
 import com.google.inject.Provides;
 import com.google.inject.Singleton;
+import com.google.inject.matcher.Matchers;
 import com.google.inject.multibindings.Multibinder;
 import com.google.inject.multibindings.OptionalBinder;
+import java.time.Duration;
 import ratpack.func.Action;
 import ratpack.guice.ConfigurableModule;
 import ratpack.handling.HandlerDecorator;
 import ratpack.http.client.HttpClient;
 import ratpack.server.ServerConfig;
 import ratpack.util.Exceptions;
+import ratpack.zipkin.internal.CachingSpanNameProvider;
 import ratpack.zipkin.internal.DefaultClientTracingInterceptor;
 import ratpack.zipkin.internal.DefaultServerTracingHandler;
+import ratpack.zipkin.internal.ExecutionClock;
 import ratpack.zipkin.internal.HttpClientProvider;
 import ratpack.zipkin.internal.RatpackCurrentTraceContext;
 import ratpack.zipkin.internal.RatpackHttpServerParser;
+import ratpack.zipkin.internal.ServerTiming;
+import ratpack.zipkin.internal.TracedMethodInterceptor;
 import zipkin2.Span;
 import zipkin2.reporter.Reporter;
+import zipkin2.reporter.brave.ZipkinSpanHandler;
 
 /**
  * Module for Zipkin distributed tracing.
@@ -50,10 +59,6 @@ public class ServerTracingModule extends ConfigurableModule<ServerTracingModule.
 
   @Override
   protected void configure() {
-    bind(ServerTracingHandler.class)
-        .to(DefaultServerTracingHandler.class)
-        .in(Singleton.class);
-
     bind(ClientTracingInterceptor.class)
         .to(DefaultClientTracingInterceptor.class)
         .in(Singleton.class);
@@ -66,17 +71,23 @@ public class ServerTracingModule extends ConfigurableModule<ServerTracingModule.
         .toProvider(HttpClientProvider.class)
         .in(Singleton.class);
 
-    bind(RatpackCurrentTraceContext.TracingPropagationExecInitializer.class)
-            .in(Singleton.class);
-
     Provider<ServerTracingHandler> serverTracingHandlerProvider =
         getProvider(ServerTracingHandler.class);
 
     Multibinder.newSetBinder(binder(), HandlerDecorator.class).addBinding()
         .toProvider(() -> HandlerDecorator.prepend(serverTracingHandlerProvider.get()))
         .in(Singleton.class);
+
+    Provider<Tracing> tracingProvider = getProvider(Tracing.class);
+
+    bindInterceptor(Matchers.any(), Matchers.annotatedWith(Traced.class),
+        new TracedMethodInterceptor(tracingProvider::get));
   }
 
+  /**
+   * Customizer of the current span, for code outside handlers. Handlers get the server span's
+   * customizer from the context registry.
+   */
   @Provides @Singleton
   public SpanCustomizer getSpanCustomizer(final Tracing tracing) {
     return CurrentSpanCustomizer.create(tracing);
@@ -93,23 +104,150 @@ public class ServerTracingModule extends ConfigurableModule<ServerTracingModule.
   }
 
   @Provides @Singleton
-  public HttpTracing getHttpTracing(final Config config, final ServerConfig serverConfig) {
+  public TracedStreams getTracedStreams(final Tracing tracing) {
+    return TracedStreams.create(tracing);
+  }
+
+  @Provides @Singleton
+  public TracedConnections getTracedConnections(final Tracing tracing) {
+    return TracedConnections.create(tracing);
+  }
+
+  @Provides @Singleton
+  public ServerTracingHandler getServerTracingHandler(final Config config,
+                                                      final HttpTracing httpTracing,
+                                                      final InFlightRequests inFlightRequests,
+                                                      final AccessLog accessLog) {
+    return createServerTracingHandler(config, httpTracing, inFlightRequests, accessLog);
+  }
+
+  @Provides @Singleton
+  public AccessLog getAccessLog(final Config config) {
+    return createAccessLog(config);
+  }
+
+  @Provides @Singleton
+  public InFlightRequests getInFlightRequests(final Config config) {
+    return createInFlightRequests(config);
+  }
+
+  @Provides @Singleton
+  public ServerTiming.BlockingTimer getBlockingTimer(final Config config) {
+    return createBlockingTimer(config);
+  }
+
+  @Provides @Singleton
+  public RatpackCurrentTraceContext.TracingPropagationExecInitializer getExecInitializer(final Config config) {
+    return createExecInitializer(config);
+  }
+
+  @Provides @Singleton
+  public SpanLimits getSpanLimits(final Config config) {
+    return createSpanLimits(config);
+  }
+
+  @Provides @Singleton
+  public CriticalPathHandler getCriticalPathHandler(final Config config) {
+    return createCriticalPathHandler(config);
+  }
+
+  @Provides @Singleton
+  public HttpTracing getHttpTracing(final Config config,
+                                    final ServerConfig serverConfig,
+                                    final SpanLimits spanLimits,
+                                    final CriticalPathHandler criticalPathHandler) {
+    return createHttpTracing(config, serverConfig, spanLimits, criticalPathHandler);
+  }
+
+  static RatpackCurrentTraceContext.TracingPropagationExecInitializer createExecInitializer(final Config config) {
+    return new RatpackCurrentTraceContext.TracingPropagationExecInitializer(!config.lazyContextPropagation);
+  }
+
+  static ServerTracingHandler createServerTracingHandler(final Config config,
+                                                         final HttpTracing httpTracing,
+                                                         final InFlightRequests inFlightRequests,
+                                                         final AccessLog accessLog) {
+    return new DefaultServerTracingHandler(httpTracing, config.serverTiming, config.serverTimingBreakdown,
+        inFlightRequests, accessLog);
+  }
+
+  static AccessLog createAccessLog(final Config config) {
+    return config.accessLog ? AccessLog.create() : AccessLog.disabled();
+  }
+
+  static InFlightRequests createInFlightRequests(final Config config) {
+    return config.inFlightRequestTimeout != null
+        ? InFlightRequests.create(config.inFlightRequestTimeout)
+        : InFlightRequests.disabled();
+  }
+
+  static ServerTiming.BlockingTimer createBlockingTimer(final Config config) {
+    return new ServerTiming.BlockingTimer(config.serverTimingBreakdown);
+  }
+
+  static SpanLimits createSpanLimits(final Config config) {
+    return new SpanLimits(config.maxTagsPerSpan, config.maxTagValueLength, config.maxAnnotationsPerSpan);
+  }
+
+  static Reporter<Span> createSpanReporter(final Config config) {
+    return config.aggregateClientSpans
+        ? ClientSpanAggregator.create(config.spanReporter)
+        : config.spanReporter;
+  }
+
+  static CriticalPathHandler createCriticalPathHandler(final Config config) {
+    return config.criticalPath
+        ? CriticalPathHandler.create(ZipkinSpanHandler.create(createSpanReporter(config)))
+        : CriticalPathHandler.disabled();
+  }
+
+  static HttpTracing createHttpTracing(final Config config,
+                                       final ServerConfig serverConfig,
+                                       final SpanLimits spanLimits,
+                                       final CriticalPathHandler criticalPathHandler) {
     Tracing.Builder builder = Tracing.newBuilder()
                              .sampler(config.sampler)
-                             .currentTraceContext(new RatpackCurrentTraceContext())
+                             .currentTraceContext(RatpackCurrentTraceContext.newBuilder()
+                                 .threadLocalFallback(config.threadLocalFallback)
+                                 .build())
                              .localServiceName(config.serviceName)
                              .localPort(serverConfig.getPort())
-                             .spanReporter(config.spanReporter)
                              .propagationFactory(config.propagationFactory);
 
     if (serverConfig.getAddress() != null) {
       builder = builder.localIp(serverConfig.getAddress().getHostAddress());
     }
 
+    if (config.executionClock) {
+      builder = builder.clock(ExecutionClock.create());
+    }
+
+    // span handlers run before the reporter, so limits apply to what is reported
+    if (spanLimits.isLimited()) {
+      builder = builder.addSpanHandler(spanLimits);
+    }
+
+    if (config.criticalPath) {
+      // last, after the span limits: it returns before tagging server spans on its own thread,
+      // then reports them itself
+      builder = builder.addSpanHandler(criticalPathHandler);
+    } else {
+      builder = builder.spanReporter(createSpanReporter(config));
+    }
+
+    if (config.samplingConfigPath != null && config.serverSampler instanceof AdjustableSampler) {
+      ((AdjustableSampler) config.serverSampler).update(serverConfig, config.samplingConfigPath);
+    }
+
+    SamplerFunction<HttpRequest> serverSampler = config.serverSampler;
+    if (config.debugSampler != null) {
+      serverSampler = config.debugSampler.orElse(serverSampler);
+    }
+
     return HttpTracing.newBuilder(builder.build())
                       .clientParser(config.clientParser)
                       .serverParser(config.serverParser)
-                      .serverSampler(config.serverSampler)
+                      .serverSampler(serverSampler)
                       .clientSampler(config.clientSampler)
                       .build();
   }
@@ -121,12 +259,26 @@ public class ServerTracingModule extends ConfigurableModule<ServerTracingModule.
     private String serviceName = "unknown";
     private Reporter<Span> spanReporter = Reporter.NOOP;
     private Sampler sampler = Sampler.NEVER_SAMPLE;
-    private HttpSampler serverSampler = HttpSampler.TRACE_ID;
+    private SamplerFunction<HttpRequest> serverSampler = HttpSampler.TRACE_ID;
     private HttpSampler clientSampler = HttpSampler.TRACE_ID;
 
     private HttpClientParser clientParser = new HttpClientParser();
     private HttpServerParser serverParser = new HttpServerParser();
     private Propagation.Factory propagationFactory = B3Propagation.FACTORY;
+    private boolean lazyContextPropagation = false;
+    private boolean threadLocalFallback = false;
+    private String samplingConfigPath;
+    private DebugSampler debugSampler;
+    private int maxTagsPerSpan = SpanLimits.UNLIMITED;
+    private int maxTagValueLength = SpanLimits.UNLIMITED;
+    private int maxAnnotationsPerSpan = SpanLimits.UNLIMITED;
+    private boolean aggregateClientSpans = false;
+    private boolean criticalPath = false;
+    private boolean serverTiming = false;
+    private boolean serverTimingBreakdown = false;
+    private boolean executionClock = false;
+    private Duration inFlightRequestTimeout;
+    private boolean accessLog = false;
 
     /**
      * Set the service name.
@@ -156,7 +308,8 @@ public class ServerTracingModule extends ConfigurableModule<ServerTracingModule.
     /**
      * Set the sampler.
      *
-     * If not set, defaults to {@link Sampler#NEVER_SAMPLE}.
+     * If not set, defaults to {@link Sampler#NEVER_SAMPLE}. To sample a steady
+     * number of traces per second whatever the traffic, use an {@link AdaptiveSampler}.
      *
      * @param sampler the sampler
      *
@@ -195,6 +348,48 @@ public class ServerTracingModule extends ConfigurableModule<ServerTracingModule.
       return this;
     }
 
+    /**
+     * Set the sampler for server requests, e.g. an {@link AdjustableSampler}.
+     *
+     * If not set, defaults to {@link HttpSampler#TRACE_ID}.
+     *
+     * @param serverSampler the server sampler
+     *
+     * @return the config
+     */
+    public Config serverSampler(final SamplerFunction<HttpRequest> serverSampler) {
+      this.serverSampler = serverSampler;
+      return this;
+    }
+
+    /**
+     * Set where to find {@link AdjustableSampler.Settings} in the {@link ServerConfig}.
+     *
+     * When the server sampler is an {@link AdjustableSampler}, it is updated from this location
+     * whenever the tracing is (re)built, i.e. on start and on each Ratpack reload.
+     *
+     * @param samplingConfigPath a JSON pointer, e.g. {@code /zipkin/sampling}
+     * @return the config
+     */
+    public Config samplingConfigPath(final String samplingConfigPath) {
+      this.samplingConfigPath = samplingConfigPath;
+      return this;
+    }
+
+    /**
+     * Force sampling of server requests carrying a debug header, within a rate limit.
+     *
+     * Requests without the header, or over the limit, fall back to the server sampler.
+     * Keep a reference to the {@link DebugSampler} to read its counters.
+     *
+     * @param debugSampler the debug sampler, e.g. {@code DebugSampler.create("X-Debug-Trace", 10)}
+     * @return the config
+     */
+    public Config debugSampler(final DebugSampler debugSampler) {
+      this.debugSampler = debugSampler;
+      return this;
+    }
+
     /**
      * Set the {@link HttpClientParser}.
      *
@@ -238,6 +433,21 @@ public class ServerTracingModule extends ConfigurableModule<ServerTracingModule.
       return this;
     }
 
+    /**
+     * Set a function for customizing the Span name, optionally remembering its
+     * results per HTTP method and path binding description.
+     *
+     * Only cache by route when the names depend on nothing else, e.g. not on the
+     * request path or headers.
+     *
+     * @param spanNameProvider a function taking a request and response
+     * @param cacheByRoute whether to reuse names for the same method and route
+     * @return the config
+     */
+    public Config spanNameProvider(final SpanNameProvider spanNameProvider, final boolean cacheByRoute) {
+      return spanNameProvider(cacheByRoute ? new CachingSpanNameProvider(spanNameProvider) : spanNameProvider);
+    }
+
     /**
      * Set the {@link Propagation.Factory}.
      *
@@ -250,5 +460,186 @@ public class ServerTracingModule extends ConfigurableModule<ServerTracingModule.
       this.propagationFactory = propagationFactory;
       return this;
     }
+
+    /**
+     * Only copy a trace context into forked executions when there is one.
+     *
+     * By default the parent's trace context holder is copied into every new execution when it
+     * starts, even when it is empty. When enabled, the parent's context is still read when the
+     * fork is created, but only copied if the parent is tracing, so forks of untraced and
+     * background executions don't grow their registry. Either way a fork sees the context its
+     * parent had at the time of the fork, even if it only traces after the parent completed.
+     *
+     * @param lazyContextPropagation whether to skip copying empty trace contexts into forks
+     * @return the config
+     */
+    public Config lazyContextPropagation(final boolean lazyContextPropagation) {
+      this.lazyContextPropagation = lazyContextPropagation;
+      return this;
+    }
+
+    /**
+     * Keep the trace context in a thread local on threads that are not running a Ratpack
+     * execution, instead of failing.
+     *
+     * Use {@link brave.propagation.CurrentTraceContext#executorService(java.util.concurrent.ExecutorService)}
+     * to wrap application thread pools so that tasks run with the trace context of the
+     * execution that submitted them.
+     *
+     * @param threadLocalFallback whether to fall back to a thread local outside of executions
+     * @return the config
+     */
+    public Config threadLocalFallback(final boolean threadLocalFallback) {
+      this.threadLocalFallback = threadLocalFallback;
+      return this;
+    }
+
+    /**
+     * Set the maximum number of tags of a span. Tags over the limit are dropped when the span is
+     * finished, counted by {@link SpanLimits#tagsDropped()}.
+     *
+     * Defaults to no limit.
+     *
+     * @param maxTagsPerSpan the maximum number of tags per span
+     * @return the config
+     */
+    public Config maxTagsPerSpan(final int maxTagsPerSpan) {
+      if (maxTagsPerSpan < 0) throw new IllegalArgumentException("maxTagsPerSpan < 0");
+      this.maxTagsPerSpan = maxTagsPerSpan;
+      return this;
+    }
+
+    /**
+     * Set the maximum length of tag values, such as URLs with long query strings or error
+     * messages. Longer values are truncated when the span is finished, counted by
+     * {@link SpanLimits#tagValuesTruncated()}.
+     *
+     * Defaults to no limit.
+     *
+     * @param maxTagValueLength the maximum number of characters of a tag value
+     * @return the config
+     */
+    public Config maxTagValueLength(final int maxTagValueLength) {
+      if (maxTagValueLength < 0) throw new IllegalArgumentException("maxTagValueLength < 0");
+      this.maxTagValueLength = maxTagValueLength;
+      return this;
+    }
+
+    /**
+     * Set the maximum number of annotations of a span. Annotations over the limit are dropped
+     * when the span is finished, counted by {@link SpanLimits#annotationsDropped()}.
+     *
+     * Defaults to no limit.
+     *
+     * @param maxAnnotationsPerSpan the maximum number of annotations per span
+     * @return the config
+     */
+    public Config maxAnnotationsPerSpan(final int maxAnnotationsPerSpan) {
+      if (maxAnnotationsPerSpan < 0) throw new IllegalArgumentException("maxAnnotationsPerSpan < 0");
+      this.maxAnnotationsPerSpan = maxAnnotationsPerSpan;
+      return this;
+    }
+
+    /**
+     * Coalesce repeated client calls, with the same method and path under the same parent span,
+     * into one summary span. Failed and unusually slow calls are still reported in full.
+     *
+     * To tune the aggregation, wrap the span reporter with {@link ClientSpanAggregator} instead.
+     *
+     * @param aggregateClientSpans whether to coalesce repeated client spans
+     * @return the config
+     */
+    public Config aggregateClientSpans(final boolean aggregateClientSpans) {
+      this.aggregateClientSpans = aggregateClientSpans;
+      return this;
+    }
+
+    /**
+     * Tag each server span with the downstream calls on its critical path, the ones which set its
+     * latency, and the server's own time on it. The path is computed in the background, before
+     * the server span is reported.
+     *
+     * The background thread is stopped when the server stops. To tune it, add a
+     * {@link CriticalPathHandler} to a tracer of your own instead.
+     *
+     * @param criticalPath whether to tag server spans with their critical path
+     * @return the config
+     */
+    public Config criticalPath(final boolean criticalPath) {
+      this.criticalPath = criticalPath;
+      return this;
+    }
+
+    /**
+     * Write the total server time of each request in a {@code Server-Timing} response header,
+     * shown by browser developer tools. The header is visible to every client.
+     *
+     * @param serverTiming whether to write a {@code Server-Timing} header
+     * @return the config
+     */
+    public Config serverTiming(final boolean serverTiming) {
+      this.serverTiming = serverTiming;
+      return this;
+    }
+
+    /**
+     * Add the time spent in client requests and blocking operations of each request to the
+     * {@code Server-Timing} response header, and enable the header.
+     *
+     * @param serverTimingBreakdown whether to break down the server time
+     * @return the config
+     */
+    public Config serverTimingBreakdown(final boolean serverTimingBreakdown) {
+      this.serverTimingBreakdown = serverTimingBreakdown;
+      return this;
+    }
+
+    /**
+     * Time spans against one wall clock reading per Ratpack execution, shared with its forks,
+     * advanced by {@link System#nanoTime()}. Timestamps of the spans of a request are then
+     * consistent with each other even across local traces. The wall clock is read again once the
+     * reading is ten seconds old, so that long-lived executions don't drift from it.
+     *
+     * This doesn't make tracing cheaper: looking the reading up costs about as much as reading
+     * the wall clock.
+     *
+     * @param executionClock whether to anchor span timestamps per execution
+     * @return the config
+     */
+    public Config executionClock(final boolean executionClock) {
+      this.executionClock = executionClock;
+      return this;
+    }
+
+    /**
+     * Track requests in flight, and report the spans of requests which haven't sent a response
+     * after the timeout as abandoned, tagged with an error. The oldest requests in flight are
+     * listed by {@link InFlightRequests#oldest(int)}.
+     *
+     * Defaults to not tracking requests.
+     *
+     * @param inFlightRequestTimeout the age after which a request is abandoned
+     * @return the config
+     */
+    public Config inFlightRequestTimeout(final Duration inFlightRequestTimeout) {
+      if (inFlightRequestTimeout.isNegative() || inFlightRequestTimeout.isZero()) {
+        throw new IllegalArgumentException("inFlightRequestTimeout <= 0");
+      }
+      this.inFlightRequestTimeout = inFlightRequestTimeout;
+      return this;
+    }
+
+    /**
+     * Log every request, with the IDs of its trace and server span, through the
+     * {@code ratpack.zipkin.AccessLog} logger. Entries are appended by a background thread, see
+     * {@link AccessLog}.
+     *
+     * @param accessLog whether to log requests
+     * @return the config
+     */
+    public Config accessLog(final boolean accessLog) {
+      this.accessLog = accessLog;
+      return this;
+    }
   }
 }
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin;
+
+import brave.CurrentSpanCustomizer;
+import brave.SpanCustomizer;
+import brave.Tracer;
+import brave.Tracing;
+import brave.http.HttpTracing;
+import ratpack.func.Action;
+import ratpack.func.Function;
+import ratpack.handling.HandlerDecorator;
+import ratpack.http.client.HttpClient;
+import ratpack.registry.Registry;
+import ratpack.registry.RegistrySpec;
+import ratpack.server.ServerConfig;
+import ratpack.zipkin.internal.DefaultClientTracingInterceptor;
+import ratpack.zipkin.internal.HttpClientProvider;
+import ratpack.zipkin.internal.RatpackCurrentTraceContext;
+import ratpack.zipkin.internal.ServerTiming;
+
+/**
+ * Registry based alternative to {@link ServerTracingModule}, for applications that don't use
+ * Guice.
+ *
+ * Provides the same objects as the module: {@link HttpTracing}, {@link Tracing}, {@link Tracer},
+ * {@link SpanCustomizer}, {@link SpanLimits}, {@link TracedStreams}, {@link TracedConnections},
+ * {@link InFlightRequests}, {@link AccessLog}, {@link CriticalPathHandler}, the
+ * {@link ServerTracingHandler} (prepended to the handler chain), the
+ * {@link ClientTracingInterceptor}, the exec initializer propagating the trace context and the
+ * exec interceptor timing blocking operations for the {@code Server-Timing} header. As a
+ * plain registry cannot qualify bindings, the {@link HttpClient} it provides is the traced client,
+ * i.e. the equivalent of injecting a {@link Zipkin} annotated {@link HttpClient}.
+ *
+ * <pre>{@code
+ * RatpackServer.start(server -> server
+ *     .registry(ServerTracingRegistry.of(config -> config
+ *         .serviceName("ratpack-demo")
+ *         .sampler(Sampler.ALWAYS_SAMPLE)
+ *         .spanReporterV2(reporter)))
+ *     .handlers(chain -> ...));
+ * }</pre>
+ */
+public final class ServerTracingRegistry {
+
+  private ServerTracingRegistry() {
+  }
+
+  /**
+   * Create a function building the tracing registry on top of the server's base registry, for use
+   * with {@link ratpack.server.RatpackServerSpec#registry(Function)}.
+   *
+   * @param configurer configures the tracing
+   * @return a function from the base registry to the tracing registry
+   */
+  public static Function<Registry, Registry> of(final Action<? super ServerTracingModule.Config> configurer) {
+    return baseRegistry -> {
+      ServerTracingModule.Config config = new ServerTracingModule.Config();
+      configurer.execute(config);
+      return of(baseRegistry, config);
+    };
+  }
+
+  /**
+   * Build the tracing registry.
+   *
+   * @param baseRegistry the server's base registry, providing the {@link ServerConfig} and
+   *                     optionally the {@link HttpClient} to trace
+   * @param config the tracing config
+   * @return the tracing registry
+   * @throws Exception if the default http client cannot be created
+   */
+  public static Registry of(final Registry baseRegistry, final ServerTracingModule.Config config) throws Exception {
+    final ServerConfig serverConfig = baseRegistry.get(ServerConfig.class);
+    final HttpClient httpClient = baseRegistry.maybeGet(HttpClient.class).isPresent()
+        ? baseRegistry.get(HttpClient.class)
+        : HttpClient.of(Action.noop());
+    return Registry.of(spec -> register(spec, config, serverConfig, httpClient));
+  }
+
+  /**
+   * Add the tracing objects to a registry.
+   *
+   * @param spec the registry to add to
+   * @param config the tracing config
+   * @param serverConfig the server config, for the local endpoint of spans
+   * @param httpClient the http client to trace
+   */
+  public static void register(final RegistrySpec spec,
+                              final ServerTracingModule.Config config,
+                              final ServerConfig serverConfig,
+                              final HttpClient httpClient) {
+    SpanLimits spanLimits = ServerTracingModule.createSpanLimits(config);
+    CriticalPathHandler criticalPathHandler = ServerTracingModule.createCriticalPathHandler(config);
+    HttpTracing httpTracing =
+        ServerTracingModule.createHttpTracing(config, serverConfig, spanLimits, criticalPathHandler);
+    Tracing tracing = httpTracing.tracing();
+    InFlightRequests inFlightRequests = ServerTracingModule.createInFlightRequests(config);
+    AccessLog accessLog = ServerTracingModule.createAccessLog(config);
+    ServerTracingHandler serverTracingHandler =
+        ServerTracingModule.createServerTracingHandler(config, httpTracing, inFlightRequests, accessLog);
+    ClientTracingInterceptor clientTracingInterceptor = new DefaultClientTracingInterceptor(httpTracing);
+
+    spec.add(HttpTracing.class, httpTracing)
+        .add(SpanLimits.class, spanLimits)
+        .add(Tracing.class, tracing)
+        .add(Tracer.class, tracing.tracer())
+        .add(SpanCustomizer.class, CurrentSpanCustomizer.create(tracing))
+        .add(TracedStreams.class, TracedStreams.create(tracing))
+        .add(TracedConnections.class, TracedConnections.create(tracing))
+        .add(InFlightRequests.class, inFlightRequests)
+        .add(AccessLog.class, accessLog)
+        .add(CriticalPathHandler.class, criticalPathHandler)
+        .add(ServerTracingHandler.class, serverTracingHandler)
+        .add(ClientTracingInterceptor.class, clientTracingInterceptor)
+        .add(HttpClient.class, HttpClientProvider.traced(httpClient, clientTracingInterceptor))
+        .add(RatpackCurrentTraceContext.TracingPropagationExecInitializer.class,
+            ServerTracingModule.createExecInitializer(config))
+        .add(ServerTiming.BlockingTimer.class, ServerTracingModule.createBlockingTimer(config))
+        .add(HandlerDecorator.class, HandlerDecorator.prepend(serverTracingHandler));
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin;
+
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler;
+import brave.propagation.TraceContext;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caps the number of tags and annotations of each span, and the length of tag values, before
+ * spans are reported. Tags and annotations over the limit are dropped, in the order they were
+ * added; long values are truncated. The {@code error} tag, including the one derived from a long
+ * exception message, is truncated but never dropped.
+ *
+ * The limits apply to every span of the tracer, so server and client spans alike, and are
+ * configured with {@link ServerTracingModule.Config#maxTagsPerSpan(int)},
+ * {@link ServerTracingModule.Config#maxTagValueLength(int)} and
+ * {@link ServerTracingModule.Config#maxAnnotationsPerSpan(int)}. The module binds this handler,
+ * so its counters can be exported as metrics.
+ */
+public final class SpanLimits extends SpanHandler {
+
+  static final int UNLIMITED = Integer.MAX_VALUE;
+  static final String ERROR_TAG = "error";
+
+  private final int maxTags;
+  private final int maxTagValueLength;
+  private final int maxAnnotations;
+
+  private final LongAdder tagsDropped = new LongAdder();
+  private final LongAdder tagValuesTruncated = new LongAdder();
+  private final LongAdder annotationsDropped = new LongAdder();
+
+  SpanLimits(final int maxTags, final int maxTagValueLength, final int maxAnnotations) {
+    this.maxTags = maxTags;
+    this.maxTagValueLength = maxTagValueLength;
+    this.maxAnnotations = maxAnnotations;
+  }
+
+  /**
+   * @return true if any limit is set
+   */
+  boolean isLimited() {
+    return maxTags != UNLIMITED || maxTagValueLength != UNLIMITED || maxAnnotations != UNLIMITED;
+  }
+
+  @Override
+  public boolean end(final TraceContext context, final MutableSpan span, final Cause cause) {
+    truncateErrorMessage(span);
+    if (span.tagCount() > maxTags || (span.tagCount() > 0 && maxTagValueLength != UNLIMITED)) {
+      int[] kept = {0};
+      span.forEachTag((key, value) -> {
+        if (ERROR_TAG.equals(key)) {
+          return truncate(value);
+        }
+        if (kept[0] == maxTags) {
+          tagsDropped.increment();
+          return null;
+        }
+        kept[0]++;
+        return truncate(value);
+      });
+    }
+    if (span.annotationCount() > maxAnnotations) {
+      int[] kept = {0};
+      span.forEachAnnotation((timestamp, value) -> {
+        if (kept[0] == maxAnnotations) {
+          annotationsDropped.increment();
+          return null;
+        }
+        kept[0]++;
+        return value;
+      });
+    }
+    return true;
+  }
+
+  /**
+   * The reporter derives the error tag from the exception message when none is set; set it here
+   * instead when the message is too long.
+   */
+  private void truncateErrorMessage(final MutableSpan span) {
+    Throwable error = span.error();
+    if (error == null || error.getMessage() == null || span.tag(ERROR_TAG) != null) {
+      return;
+    }
+    if (error.getMessage().length() > maxTagValueLength) {
+      span.tag(ERROR_TAG, error.getMessage());
+    }
+  }
+
+  private String truncate(final String value) {
+    if (value.length() <= maxTagValueLength) {
+      return value;
+    }
+    tagValuesTruncated.increment();
+    int end = maxTagValueLength;
+    // don't split a surrogate pair
+    if (end > 0 && Character.isHighSurrogate(value.charAt(end - 1))) {
+      end--;
+    }
+    return value.substring(0, end);
+  }
+
+  /**
+   * @return the number of tags dropped because their span had too many
+   */
+  public long tagsDropped() {
+    return tagsDropped.sum();
+  }
+
+  /**
+   * @return the number of tag values truncated because they were too long
+   */
+  public long tagValuesTruncated() {
+    return tagValuesTruncated.sum();
+  }
+
+  /**
+   * @return the number of annotations dropped because their span had too many
+   */
+  public long annotationsDropped() {
+    return annotationsDropped.sum();
+  }
+
+  @Override
+  public String toString() {
+    return "SpanLimits{maxTags=" + maxTags + ", maxTagValueLength=" + maxTagValueLength
+        + ", maxAnnotations=" + maxAnnotations + "}";
+  }
+}
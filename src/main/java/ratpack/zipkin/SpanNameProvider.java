@@ -1,5 +1,5 @@
 /*
- * Copyright 2016-2018 The OpenZipkin Authors
+ * Copyright 2016-2026 The OpenZipkin Authors
  *
  * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
  * in compliance with the License. You may obtain a copy of the License at
@@ -26,11 +26,9 @@ public interface SpanNameProvider {
    * Given a request and response, return the name to be used for the Span.
    * @param request the request
    * @param pathBinding Optional of PathBinding. With RatPack, the PathBinding
-   *                    is only available right before the response is sent.
-   *                    This function is called *twice* - once when the server
-   *                    request is *received* (with an empty pathBinding value)
-   *                    and again before the response is *sent* (this time
-   *                    the Optional will have a value).
+   *                    is only available right before the response is sent,
+   *                    which is when this function is called. The Optional may
+   *                    be empty in some edge cases (e.g. if an error occurs).
    *
    * @return the Span name
    */
@@ -0,0 +1,677 @@
+/*
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+import zipkin2.Span;
+import zipkin2.codec.Encoding;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.reporter.Reporter;
+import zipkin2.reporter.Sender;
+
+/**
+ * Span reporter spooling encoded spans to memory-mapped segment files on local disk, from which a
+ * background forwarder sends them to a {@link Sender}.
+ *
+ * Spans survive collector outages, and restarts, without growing the heap: while the sender
+ * fails, spans accumulate on disk and the forwarder retries with an increasing delay. Reporting a
+ * span only encodes and queues it; a background writer appends queued spans to fixed-size
+ * segments and, when one is full, writes it through and creates the next, so no disk I/O happens
+ * on the thread finishing the span. Beyond the disk cap, or when the queue is full, new spans are
+ * dropped. Segments are unmapped and deleted once forwarded.
+ *
+ * Each record is a length and a CRC32 followed by the encoded span, and the length is written
+ * last, so a record torn by a crash is not forwarded. The read offset is only advanced after the
+ * sender accepted a message, and is persisted by atomically replacing a small offset file, so
+ * after a crash spans are forwarded again from the last accepted message: at least once.
+ *
+ * <pre>{@code
+ * SpoolReporter reporter = SpoolReporter.newBuilder(Paths.get("/var/spool/zipkin"), sender)
+ *     .maxBytes(256 * 1024 * 1024)
+ *     .build();
+ * config.spanReporterV2(reporter);
+ * }</pre>
+ *
+ * The sender is not closed with the reporter. Only one reporter may use a directory at a time.
+ */
+public final class SpoolReporter implements Reporter<Span>, Flushable, Closeable {
+
+  /**
+   * @param directory the spool directory, created if missing
+   * @param sender sends spooled spans; its encoding is used to spool them
+   * @return a builder for the reporter
+   */
+  public static Builder newBuilder(Path directory, Sender sender) {
+    return new Builder(directory, sender);
+  }
+
+  public static final class Builder {
+    private final Path directory;
+    private final Sender sender;
+    private int segmentBytes = 4 * 1024 * 1024;
+    private long maxBytes = 64 * 1024 * 1024;
+    private int queuedMaxSpans = 10_000;
+    private Duration messageTimeout = Duration.ofSeconds(1);
+
+    Builder(Path directory, Sender sender) {
+      if (directory == null) throw new NullPointerException("directory == null");
+      if (sender == null) throw new NullPointerException("sender == null");
+      this.directory = directory;
+      this.sender = sender;
+    }
+
+    /**
+     * The size of each segment file. Defaults to 4MB.
+     *
+     * @param segmentBytes the segment size
+     * @return this builder
+     */
+    public Builder segmentBytes(int segmentBytes) {
+      if (segmentBytes < 1024) throw new IllegalArgumentException("segmentBytes < 1024");
+      this.segmentBytes = segmentBytes;
+      return this;
+    }
+
+    /**
+     * The maximum size of the spool on disk, rounded down to a number of segments but at least two.
+     * Defaults to 64MB.
+     *
+     * @param maxBytes the disk cap
+     * @return this builder
+     */
+    public Builder maxBytes(long maxBytes) {
+      if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes <= 0");
+      this.maxBytes = maxBytes;
+      return this;
+    }
+
+    /**
+     * The maximum number of spans waiting to be appended to the spool. Defaults to 10000.
+     *
+     * @param queuedMaxSpans the maximum number of queued spans
+     * @return this builder
+     */
+    public Builder queuedMaxSpans(int queuedMaxSpans) {
+      if (queuedMaxSpans <= 0) throw new IllegalArgumentException("queuedMaxSpans <= 0");
+      this.queuedMaxSpans = queuedMaxSpans;
+      return this;
+    }
+
+    /**
+     * How long the forwarder waits for more spans once the spool is drained, and the initial delay
+     * before retrying after a failure. Defaults to one second; zero disables the background
+     * writer and forwarder, leaving it to callers of {@link SpoolReporter#flush()} and
+     * {@link SpoolReporter#forward()}.
+     *
+     * @param messageTimeout the forwarding interval
+     * @return this builder
+     */
+    public Builder messageTimeout(Duration messageTimeout) {
+      if (messageTimeout.isNegative()) throw new IllegalArgumentException("messageTimeout < 0");
+      this.messageTimeout = messageTimeout;
+      return this;
+    }
+
+    /**
+     * Open the spool, recovering spans left by a previous reporter, and start forwarding.
+     *
+     * @return the reporter
+     * @throws IOException if the spool directory cannot be read or written
+     */
+    public SpoolReporter build() throws IOException {
+      return new SpoolReporter(this);
+    }
+  }
+
+  static final String SEGMENT_SUFFIX = ".segment";
+  static final String OFFSET_FILE = "offset";
+  // record header: length, then CRC32 of the encoded span
+  static final int HEADER_BYTES = 8;
+  static final long MAX_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(30);
+  static final long MAX_WRITE_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private final Path directory;
+  private final Sender sender;
+  private final SpanBytesEncoder encoder;
+  private final int segmentBytes;
+  private final int maxSegments;
+  private final long messageTimeoutNanos;
+  private final Thread writer;
+  private final Thread forwarder;
+
+  private final LongAdder spansSpooled = new LongAdder();
+  private final LongAdder spansDropped = new LongAdder();
+  private final LongAdder spansForwarded = new LongAdder();
+  private final LongAdder messagesFailed = new LongAdder();
+
+  // encoded spans waiting for the writer
+  private final BlockingQueue<byte[]> pending;
+  // held while appending; only the holder changes the last segment
+  private final Object writeLock = new Object();
+  // guarded by segments; the last segment is appended to
+  private final Deque<Segment> segments = new ArrayDeque<>();
+  // guarded by readLock
+  private final Object readLock = new Object();
+  private Segment readSegment;
+  private volatile int readPosition;
+
+  private volatile boolean closed;
+
+  private SpoolReporter(Builder builder) throws IOException {
+    this.directory = builder.directory;
+    this.sender = builder.sender;
+    this.encoder = encoder(sender.encoding());
+    this.segmentBytes = builder.segmentBytes;
+    this.maxSegments = (int) Math.max(2, builder.maxBytes / builder.segmentBytes);
+    this.messageTimeoutNanos = builder.messageTimeout.toNanos();
+    this.pending = new ArrayBlockingQueue<>(builder.queuedMaxSpans);
+
+    Files.createDirectories(directory);
+    recover();
+
+    if (messageTimeoutNanos == 0) {
+      this.writer = null;
+      this.forwarder = null;
+    } else {
+      this.writer = new Thread(this::writeUntilClosed, "SpoolReporter-writer");
+      writer.setDaemon(true);
+      writer.start();
+      this.forwarder = new Thread(this::forwardUntilClosed, "SpoolReporter");
+      forwarder.setDaemon(true);
+      forwarder.start();
+    }
+  }
+
+  private static SpanBytesEncoder encoder(Encoding encoding) {
+    switch (encoding) {
+      case JSON:
+        return SpanBytesEncoder.JSON_V2;
+      case PROTO3:
+        return SpanBytesEncoder.PROTO3;
+      case THRIFT:
+        return SpanBytesEncoder.THRIFT;
+      default:
+        throw new IllegalArgumentException("unsupported encoding " + encoding);
+    }
+  }
+
+  private void recover() throws IOException {
+    TreeMap<Long, Path> files = new TreeMap<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+      for (Path file : stream) {
+        files.put(sequenceOf(file), file);
+      }
+    }
+    long offsetSequence = -1;
+    int offsetPosition = 0;
+    Path offsetFile = directory.resolve(OFFSET_FILE);
+    if (Files.exists(offsetFile)) {
+      ByteBuffer offset = ByteBuffer.wrap(Files.readAllBytes(offsetFile));
+      offsetSequence = offset.getLong();
+      offsetPosition = offset.getInt();
+    }
+    for (Map.Entry<Long, Path> file : files.entrySet()) {
+      if (file.getKey() < offsetSequence) {
+        Files.delete(file.getValue()); // forwarded before the crash, but not yet deleted
+      } else {
+        segments.addLast(Segment.open(file.getValue(), file.getKey(), segmentBytes));
+      }
+    }
+    if (segments.isEmpty()) {
+      segments.addLast(Segment.create(directory, Math.max(0, offsetSequence), segmentBytes));
+    }
+    readSegment = segments.peekFirst();
+    readPosition = readSegment.sequence == offsetSequence
+        ? Math.min(offsetPosition, readSegment.writePosition)
+        : 0;
+  }
+
+  private static long sequenceOf(Path file) {
+    String name = file.getFileName().toString();
+    return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+  }
+
+  @Override
+  public void report(Span span) {
+    if (closed) {
+      spansDropped.increment();
+      return;
+    }
+    byte[] encoded = encoder.encode(span);
+    int recordBytes = HEADER_BYTES + encoded.length;
+    if (recordBytes > segmentBytes || sender.messageSizeInBytes(encoded.length) > sender.messageMaxBytes()) {
+      spansDropped.increment();
+      return;
+    }
+    if (!pending.offer(encoded)) {
+      spansDropped.increment();
+    }
+  }
+
+  /**
+   * Append the queued spans to the spool.
+   */
+  private void write() {
+    synchronized (writeLock) {
+      for (byte[] encoded; (encoded = pending.poll()) != null; ) {
+        append(encoded);
+      }
+    }
+  }
+
+  /**
+   * Append a span to the last segment, writing it through and creating the next when it is full.
+   * Called with the write lock held; the segments lock is only taken to look at or add segments,
+   * so the forwarder never waits for disk I/O here.
+   */
+  private void append(byte[] encoded) {
+    int recordBytes = HEADER_BYTES + encoded.length;
+    Segment segment;
+    int segmentCount;
+    synchronized (segments) {
+      segment = segments.peekLast();
+      segmentCount = segments.size();
+    }
+    if (segment.writePosition + recordBytes > segment.capacity) {
+      if (segmentCount >= maxSegments) {
+        spansDropped.increment();
+        return;
+      }
+      try {
+        segment.buffer.force();
+        segment = Segment.create(directory, segment.sequence + 1, segmentBytes);
+      } catch (IOException e) {
+        spansDropped.increment();
+        return;
+      }
+      synchronized (segments) {
+        segments.addLast(segment);
+      }
+    }
+    CRC32 crc = new CRC32();
+    crc.update(encoded, 0, encoded.length);
+    segment.append(encoded, (int) crc.getValue());
+    spansSpooled.increment();
+  }
+
+  private void writeUntilClosed() {
+    while (!closed) {
+      try {
+        byte[] encoded = pending.poll(Math.min(messageTimeoutNanos, MAX_WRITE_WAIT_NANOS), TimeUnit.NANOSECONDS);
+        if (encoded != null) {
+          synchronized (writeLock) {
+            append(encoded);
+          }
+          write();
+        }
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Append the queued spans to the spool and write it through to disk, so spans also survive a
+   * crash of the operating system.
+   */
+  @Override
+  public void flush() {
+    synchronized (writeLock) {
+      write();
+      Segment last;
+      synchronized (segments) {
+        last = segments.peekLast();
+      }
+      last.buffer.force();
+    }
+  }
+
+  /**
+   * Send spooled spans, until the spool is drained or the sender fails. Called by the background
+   * forwarder; call directly when it is disabled, which also appends the queued spans first.
+   *
+   * @return the number of spans forwarded
+   * @throws IOException if the sender failed; the spans of the failed message remain spooled
+   */
+  public int forward() throws IOException {
+    if (writer == null) {
+      write();
+    }
+    synchronized (readLock) {
+      int forwarded = 0;
+      while (!closed) {
+        int position = readPosition;
+        List<byte[]> message = new ArrayList<>();
+        int end = readMessage(readSegment, position, message);
+        if (message.isEmpty()) {
+          if (!nextSegment()) {
+            return forwarded;
+          }
+          continue;
+        }
+        try {
+          sender.sendSpans(message).execute();
+        } catch (IOException | RuntimeException e) {
+          messagesFailed.increment();
+          throw e;
+        }
+        readPosition = end;
+        writeOffset(readSegment.sequence, end);
+        spansForwarded.add(message.size());
+        forwarded += message.size();
+      }
+      return forwarded;
+    }
+  }
+
+  /**
+   * Read records from the position up to the maximum message size.
+   *
+   * @return the position after the last record read
+   */
+  private int readMessage(Segment segment, int position, List<byte[]> message) {
+    int limit = segment.writePosition;
+    ByteBuffer buffer = segment.buffer.duplicate();
+    int messageBytes = 0;
+    while (position < limit) {
+      int length = buffer.getInt(position);
+      int size = message.isEmpty()
+          ? sender.messageSizeInBytes(length)
+          : messageBytes + length + (sender.encoding() == Encoding.JSON ? 1 : 0);
+      if (size > sender.messageMaxBytes()) {
+        break;
+      }
+      byte[] encoded = new byte[length];
+      buffer.position(position + HEADER_BYTES);
+      buffer.get(encoded);
+      message.add(encoded);
+      messageBytes = size;
+      position += HEADER_BYTES + length;
+    }
+    return position;
+  }
+
+  /**
+   * Unmap and delete the read segment if it was fully forwarded and is no longer appended to.
+   *
+   * @return true if reading moved on to the next segment
+   */
+  private boolean nextSegment() throws IOException {
+    Segment next;
+    synchronized (segments) {
+      if (readSegment == segments.peekLast() || readPosition < readSegment.writePosition) {
+        return false;
+      }
+      segments.removeFirst();
+      next = segments.peekFirst();
+    }
+    writeOffset(next.sequence, 0);
+    // unmapped first, or the disk space is only freed once the mapping is collected
+    readSegment.unmap();
+    Files.deleteIfExists(readSegment.file);
+    readSegment = next;
+    readPosition = 0;
+    return true;
+  }
+
+  private void writeOffset(long sequence, int position) throws IOException {
+    Path temp = directory.resolve(OFFSET_FILE + ".tmp");
+    ByteBuffer offset = ByteBuffer.allocate(Long.BYTES + Integer.BYTES);
+    offset.putLong(sequence).putInt(position).flip();
+    try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      channel.write(offset);
+      channel.force(true);
+    }
+    Files.move(temp, directory.resolve(OFFSET_FILE),
+        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private void forwardUntilClosed() {
+    long delayNanos = messageTimeoutNanos;
+    while (!closed) {
+      try {
+        forward();
+        delayNanos = messageTimeoutNanos;
+      } catch (Exception e) {
+        delayNanos = Math.min(delayNanos * 2, Math.max(MAX_BACKOFF_NANOS, messageTimeoutNanos));
+      }
+      LockSupport.parkNanos(this, delayNanos);
+    }
+  }
+
+  /**
+   * Stop forwarding, append the queued spans and write the spool through to disk. Spans not yet
+   * forwarded are forwarded by the next reporter opening the directory; spans reported afterwards
+   * are dropped.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    join(writer);
+    if (forwarder != null) {
+      LockSupport.unpark(forwarder);
+    }
+    join(forwarder);
+    flush();
+    // reported concurrently with closing
+    spansDropped.add(pending.size());
+    pending.clear();
+  }
+
+  private static void join(Thread thread) {
+    if (thread == null) {
+      return;
+    }
+    try {
+      thread.join(TimeUnit.SECONDS.toMillis(5));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * @return the number of spans appended to the spool, not counting those still queued
+   */
+  public long spansSpooled() {
+    return spansSpooled.sum();
+  }
+
+  /**
+   * @return the number of spans dropped, because the spool or the queue was full, they were too
+   *         large or the reporter was closed
+   */
+  public long spansDropped() {
+    return spansDropped.sum();
+  }
+
+  /**
+   * @return the number of spans accepted by the sender
+   */
+  public long spansForwarded() {
+    return spansForwarded.sum();
+  }
+
+  /**
+   * @return the number of messages the sender failed to send
+   */
+  public long messagesFailed() {
+    return messagesFailed.sum();
+  }
+
+  /**
+   * @return the number of spooled bytes not yet forwarded, e.g. to back off sampling while the
+   *         collector is unreachable
+   */
+  public long spooledBytes() {
+    long bytes = -readPosition;
+    synchronized (segments) {
+      for (Segment segment : segments) {
+        bytes += segment.writePosition;
+      }
+    }
+    return Math.max(0, bytes);
+  }
+
+  @Override
+  public String toString() {
+    return "SpoolReporter{" + directory + ", " + sender + "}";
+  }
+
+  static final class Segment {
+    final Path file;
+    final long sequence;
+    final int capacity;
+    final MappedByteBuffer buffer;
+    // only written with the write lock held, read by the forwarder
+    volatile int writePosition;
+
+    private Segment(Path file, long sequence, MappedByteBuffer buffer, int writePosition) {
+      this.file = file;
+      this.sequence = sequence;
+      this.capacity = buffer.capacity();
+      this.buffer = buffer;
+      this.writePosition = writePosition;
+    }
+
+    static Segment create(Path directory, long sequence, int segmentBytes) throws IOException {
+      Path file = directory.resolve(String.format("%019d%s", sequence, SEGMENT_SUFFIX));
+      return new Segment(file, sequence, map(file, segmentBytes), 0);
+    }
+
+    /**
+     * Map an existing segment, appending after its last intact record.
+     */
+    static Segment open(Path file, long sequence, int segmentBytes) throws IOException {
+      MappedByteBuffer buffer = map(file, (int) Math.max(Files.size(file), segmentBytes));
+      int position = 0;
+      CRC32 crc = new CRC32();
+      while (position + HEADER_BYTES <= buffer.capacity()) {
+        int length = buffer.getInt(position);
+        if (length <= 0 || position + HEADER_BYTES + length > buffer.capacity()) {
+          break;
+        }
+        ByteBuffer record = buffer.duplicate();
+        record.position(position + HEADER_BYTES).limit(position + HEADER_BYTES + length);
+        crc.reset();
+        crc.update(record);
+        if ((int) crc.getValue() != buffer.getInt(position + Integer.BYTES)) {
+          break; // torn by a crash
+        }
+        position += HEADER_BYTES + length;
+      }
+      if (position + Integer.BYTES <= buffer.capacity()) {
+        buffer.putInt(position, 0); // discard what follows a torn record
+      }
+      return new Segment(file, sequence, buffer, position);
+    }
+
+    private static MappedByteBuffer map(Path file, int size) throws IOException {
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+          StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        // the mapping stays valid after the channel is closed
+        return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      }
+    }
+
+    void append(byte[] encoded, int crc) {
+      int position = writePosition;
+      ByteBuffer record = buffer.duplicate();
+      record.position(position + HEADER_BYTES);
+      record.put(encoded);
+      buffer.putInt(position + Integer.BYTES, crc);
+      // the length makes the record visible to recovery, so it is written last
+      buffer.putInt(position, encoded.length);
+      writePosition = position + HEADER_BYTES + encoded.length;
+    }
+
+    /**
+     * Release the mapping now, rather than when the buffer is collected. The buffer must not be
+     * used afterwards.
+     */
+    void unmap() {
+      Unmapper.unmap(buffer);
+    }
+  }
+
+  /**
+   * Unmaps buffers with the JDK's cleaner: {@code Unsafe.invokeCleaner} since Java 9, the buffer's
+   * own cleaner before. Where neither is accessible, mappings are released when collected.
+   */
+  static final class Unmapper {
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+      Object unsafe = null;
+      Method invokeCleaner = null;
+      try {
+        Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+        invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+        theUnsafe.setAccessible(true);
+        unsafe = theUnsafe.get(null);
+      } catch (ReflectiveOperationException | RuntimeException e) {
+        invokeCleaner = null; // Java 8
+      }
+      UNSAFE = unsafe;
+      INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private Unmapper() {
+    }
+
+    static void unmap(MappedByteBuffer buffer) {
+      try {
+        if (INVOKE_CLEANER != null) {
+          INVOKE_CLEANER.invoke(UNSAFE, buffer);
+          return;
+        }
+        Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+        cleanerMethod.setAccessible(true);
+        Object cleaner = cleanerMethod.invoke(buffer);
+        if (cleaner != null) {
+          cleaner.getClass().getMethod("clean").invoke(cleaner);
+        }
+      } catch (ReflectiveOperationException | RuntimeException e) {
+        // left to the garbage collector
+      }
+    }
+  }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Records a local span around calls to the annotated method, when a sampled trace is current.
+ *
+ * The method must be on an object created by Guice with {@link ServerTracingModule} installed,
+ * and be neither private, static nor final. When it returns a {@link ratpack.exec.Promise}, the
+ * span ends when the promise completes rather than when the method returns, and the work of the
+ * promise runs with the span in scope.
+ */
+@Target(ElementType.METHOD) @Retention(RetentionPolicy.RUNTIME)
+public @interface Traced {
+
+  /**
+   * @return the name of the span, the name of the method if empty
+   */
+  String value() default "";
+}
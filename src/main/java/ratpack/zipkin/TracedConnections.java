@@ -0,0 +1,406 @@
+/*
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin;
+
+import brave.Span;
+import brave.Tracer;
+import brave.Tracing;
+import brave.propagation.CurrentTraceContext;
+import brave.propagation.TraceContext;
+import io.netty.buffer.ByteBuf;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.reactivestreams.Publisher;
+import ratpack.exec.Execution;
+import ratpack.func.Action;
+import ratpack.handling.Context;
+import ratpack.sse.Event;
+import ratpack.sse.ServerSentEvents;
+import ratpack.websocket.WebSocket;
+import ratpack.websocket.WebSocketClose;
+import ratpack.websocket.WebSocketHandler;
+import ratpack.websocket.WebSocketMessage;
+import ratpack.websocket.WebSockets;
+import ratpack.zipkin.internal.ProtocolUpgrade;
+import ratpack.zipkin.internal.RatpackCurrentTraceContext;
+
+/**
+ * Tracing of long-lived connections: WebSockets and server-sent events.
+ *
+ * The server span of such a request only covers the handshake. For a WebSocket, it is finished
+ * with status 101 once the handler has opened the connection, with the handler's error if it
+ * failed; for server-sent events, when the response headers are sent. The connection gets a child span of its own, finished when the connection closes and
+ * tagged with the number of messages and bytes in each direction. Only one message in every
+ * {@code N} gets a child span; otherwise a connection only keeps a few counters, so the memory
+ * it takes stays the same however long it is open.
+ *
+ * Message handlers run with the trace context in scope: the sampled message's span, or else the
+ * connection span. Ratpack may deliver WebSocket messages outside of an execution, in which case
+ * the context is only in scope if it falls back to a thread local, see
+ * {@link ServerTracingModule.Config#threadLocalFallback(boolean)}.
+ *
+ * <pre>{@code
+ * chain.get("chat", ctx -> tracedConnections.websocket(ctx, "chat", chatHandler));
+ * chain.get("prices", ctx -> ctx.render(
+ *     tracedConnections.serverSentEvents("prices", prices, event -> event.data(event.getItem().toString()))));
+ * }</pre>
+ *
+ * {@link ServerTracingModule} binds an instance with the default sampling of messages.
+ */
+public final class TracedConnections {
+
+  static final String MESSAGES_RECEIVED_TAG = "connection.messages_received";
+  static final String MESSAGES_SENT_TAG = "connection.messages_sent";
+  static final String BYTES_RECEIVED_TAG = "connection.bytes_received";
+  static final String BYTES_SENT_TAG = "connection.bytes_sent";
+  static final String CLOSED_BY_TAG = "connection.closed_by";
+  static final String MESSAGE_TAG = "connection.message";
+
+  /**
+   * Create traced connections, recording a span for one message in every 100.
+   *
+   * @param tracing the tracing component
+   * @return the traced connections
+   */
+  public static TracedConnections create(final Tracing tracing) {
+    return create(tracing, 100);
+  }
+
+  /**
+   * Create traced connections.
+   *
+   * @param tracing the tracing component
+   * @param messageSampleRate record a span for one message in every {@code messageSampleRate}, or
+   *                          for none if zero
+   * @return the traced connections
+   */
+  public static TracedConnections create(final Tracing tracing, final int messageSampleRate) {
+    if (messageSampleRate < 0) throw new IllegalArgumentException("messageSampleRate < 0");
+    return new TracedConnections(tracing, messageSampleRate);
+  }
+
+  private final Tracer tracer;
+  private final CurrentTraceContext currentTraceContext;
+  private final boolean scopeOutsideExecution;
+  private final int messageSampleRate;
+  private final TracedStreams streams;
+
+  private TracedConnections(final Tracing tracing, final int messageSampleRate) {
+    this.tracer = tracing.tracer();
+    this.currentTraceContext = tracing.currentTraceContext();
+    this.scopeOutsideExecution = !(currentTraceContext instanceof RatpackCurrentTraceContext)
+        || ((RatpackCurrentTraceContext) currentTraceContext).hasThreadLocalFallback();
+    this.messageSampleRate = messageSampleRate;
+    this.streams = TracedStreams.create(tracing, messageSampleRate);
+  }
+
+  /**
+   * Open a traced WebSocket, see {@link WebSockets#websocket(Context, WebSocketHandler)}.
+   *
+   * @param ctx the request context
+   * @param name the name of the connection span
+   * @param handler the handler of the connection
+   * @param <T> the type of the handler's open result
+   */
+  public <T> void websocket(final Context ctx, final String name, final WebSocketHandler<T> handler) {
+    TraceContext parent = currentTraceContext.get();
+    ProtocolUpgrade upgrade = ctx.maybeGet(ProtocolUpgrade.class).orElse(null);
+    if (upgrade != null) {
+      upgrade.upgrading();
+    }
+    WebSockets.websocket(ctx, traced(name, handler, parent, upgrade));
+  }
+
+  <T> WebSocketHandler<?> traced(final String name, final WebSocketHandler<T> handler,
+                                 final TraceContext parent, final ProtocolUpgrade upgrade) {
+    return new TracedWebSocketHandler<>(name, handler, parent, upgrade);
+  }
+
+  /**
+   * Traced server-sent events, see {@link ServerSentEvents#serverSentEvents(Publisher, Action)}.
+   *
+   * The connection span is the stream span of {@link TracedStreams#trace(String, Publisher)},
+   * also tagged with the number of events sent and their size as encoded.
+   *
+   * @param name the name of the connection span
+   * @param publisher the publisher of the events' items
+   * @param action the action populating each event
+   * @param <T> the type of items
+   * @return the renderable events
+   */
+  public <T> ServerSentEvents serverSentEvents(final String name,
+                                               final Publisher<T> publisher,
+                                               final Action<? super Event<T>> action) {
+    final AtomicLong messages = new AtomicLong();
+    final AtomicLong bytes = new AtomicLong();
+    Publisher<T> traced = streams.trace(name, publisher, span -> {
+      span.tag(MESSAGES_SENT_TAG, Long.toString(messages.get()));
+      span.tag(BYTES_SENT_TAG, Long.toString(bytes.get()));
+    });
+    return ServerSentEvents.serverSentEvents(traced, (Event<T> event) -> {
+      action.execute(event);
+      messages.incrementAndGet();
+      bytes.addAndGet(sizeInBytes(event));
+    });
+  }
+
+  private CurrentTraceContext.Scope scope(final TraceContext context) {
+    if (scopeOutsideExecution || Execution.currentOpt().isPresent()) {
+      return currentTraceContext.maybeScope(context);
+    }
+    return CurrentTraceContext.Scope.NOOP;
+  }
+
+  /**
+   * @return the size of the event as encoded: a line per field and per line of data, then an
+   *         empty line
+   */
+  static long sizeInBytes(final Event<?> event) {
+    long size = 1L;
+    if (event.getId() != null) {
+      size += "id: \n".length() + utf8Length(event.getId());
+    }
+    if (event.getEvent() != null) {
+      size += "event: \n".length() + utf8Length(event.getEvent());
+    }
+    String data = event.getData();
+    if (data != null) {
+      int lines = 1;
+      for (int i = 0; i < data.length(); i++) {
+        if (data.charAt(i) == '\n') {
+          lines++;
+        }
+      }
+      // each line break of the data is replaced by the end of a line and a prefix
+      size += (long) lines * "data: \n".length() + utf8Length(data) - (lines - 1);
+    }
+    return size;
+  }
+
+  static int utf8Length(final String text) {
+    int length = 0;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c < 0x80) {
+        length++;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isSurrogate(c)) {
+        if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+          length += 4;
+          i++;
+        } else {
+          length++; // encoded as '?'
+        }
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
+  private final class TracedWebSocketHandler<T> implements WebSocketHandler<Connection<T>> {
+    private final String name;
+    private final WebSocketHandler<T> delegate;
+    private final TraceContext parent;
+    private final ProtocolUpgrade upgrade;
+
+    TracedWebSocketHandler(final String name, final WebSocketHandler<T> delegate, final TraceContext parent,
+                           final ProtocolUpgrade upgrade) {
+      this.name = name;
+      this.delegate = delegate;
+      this.parent = parent;
+      this.upgrade = upgrade;
+    }
+
+    @Override
+    public Connection<T> onOpen(final WebSocket webSocket) throws Exception {
+      Span span = parent != null ? tracer.newChild(parent) : tracer.newTrace();
+      span.name(name).start();
+      Connection<T> connection = new Connection<>(webSocket, span, name + " message");
+      try (CurrentTraceContext.Scope scope = scope(span.context())) {
+        connection.openResult = delegate.onOpen(connection);
+      } catch (Exception | Error e) {
+        span.error(e);
+        connection.finish("server");
+        if (upgrade != null) {
+          upgrade.upgraded(e);
+        }
+        throw e;
+      }
+      if (upgrade != null) {
+        upgrade.upgraded(null);
+      }
+      return connection;
+    }
+
+    @Override
+    public void onMessage(final WebSocketMessage<Connection<T>> frame) throws Exception {
+      frame.getOpenResult().received(frame.getText(), delegate);
+    }
+
+    @Override
+    public void onClose(final WebSocketClose<Connection<T>> close) throws Exception {
+      Connection<T> connection = close.getOpenResult();
+      if (connection == null) {
+        return; // onOpen failed
+      }
+      try (CurrentTraceContext.Scope scope = scope(connection.span.context())) {
+        delegate.onClose(new Close<>(close, connection.openResult));
+      } finally {
+        connection.finish(close.isFromClient() ? "client" : "server");
+      }
+    }
+  }
+
+  /**
+   * The WebSocket passed to the handler, counting the messages it sends.
+   */
+  private final class Connection<T> implements WebSocket {
+    private final WebSocket socket;
+    private final Span span;
+    private final String messageName;
+    private final AtomicBoolean finished = new AtomicBoolean();
+    // onMessage is serialized, messages may be sent from any thread
+    private volatile long messagesReceived;
+    private volatile long bytesReceived;
+    private final AtomicLong messagesSent = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    volatile T openResult;
+
+    Connection(final WebSocket socket, final Span span, final String messageName) {
+      this.socket = socket;
+      this.span = span;
+      this.messageName = messageName;
+    }
+
+    void received(final String text, final WebSocketHandler<T> delegate) throws Exception {
+      long index = messagesReceived++;
+      bytesReceived += utf8Length(text);
+      WebSocketMessage<T> message = new Message<>(this, text);
+      if (messageSampleRate == 0 || index % messageSampleRate != 0 || span.isNoop()) {
+        try (CurrentTraceContext.Scope scope = scope(span.context())) {
+          delegate.onMessage(message);
+        }
+        return;
+      }
+      Span messageSpan = tracer.newChild(span.context())
+          .name(messageName)
+          .tag(MESSAGE_TAG, Long.toString(index))
+          .start();
+      try (CurrentTraceContext.Scope scope = scope(messageSpan.context())) {
+        delegate.onMessage(message);
+      } catch (Exception | Error e) {
+        messageSpan.error(e);
+        throw e;
+      } finally {
+        messageSpan.finish();
+      }
+    }
+
+    void finish(final String closedBy) {
+      if (!finished.compareAndSet(false, true)) {
+        return;
+      }
+      if (!span.isNoop()) {
+        span.tag(MESSAGES_RECEIVED_TAG, Long.toString(messagesReceived));
+        span.tag(BYTES_RECEIVED_TAG, Long.toString(bytesReceived));
+        span.tag(MESSAGES_SENT_TAG, Long.toString(messagesSent.get()));
+        span.tag(BYTES_SENT_TAG, Long.toString(bytesSent.get()));
+        span.tag(CLOSED_BY_TAG, closedBy);
+      }
+      span.finish();
+    }
+
+    @Override
+    public void close() {
+      socket.close();
+    }
+
+    @Override
+    public void close(final int statusCode, final String reason) {
+      socket.close(statusCode, reason);
+    }
+
+    @Override
+    public boolean isOpen() {
+      return socket.isOpen();
+    }
+
+    @Override
+    public void send(final String text) {
+      messagesSent.incrementAndGet();
+      bytesSent.addAndGet(utf8Length(text));
+      socket.send(text);
+    }
+
+    @Override
+    public void send(final ByteBuf text) {
+      messagesSent.incrementAndGet();
+      // before sending, which releases the buffer
+      bytesSent.addAndGet(text.readableBytes());
+      socket.send(text);
+    }
+  }
+
+  private static final class Message<T> implements WebSocketMessage<T> {
+    private final Connection<T> connection;
+    private final String text;
+
+    Message(final Connection<T> connection, final String text) {
+      this.connection = connection;
+      this.text = text;
+    }
+
+    @Override
+    public WebSocket getConnection() {
+      return connection;
+    }
+
+    @Override
+    public String getText() {
+      return text;
+    }
+
+    @Override
+    public T getOpenResult() {
+      return connection.openResult;
+    }
+  }
+
+  private static final class Close<T> implements WebSocketClose<T> {
+    private final WebSocketClose<?> close;
+    private final T openResult;
+
+    Close(final WebSocketClose<?> close, final T openResult) {
+      this.close = close;
+      this.openResult = openResult;
+    }
+
+    @Override
+    public boolean isFromClient() {
+      return close.isFromClient();
+    }
+
+    @Override
+    public boolean isFromServer() {
+      return close.isFromServer();
+    }
+
+    @Override
+    public T getOpenResult() {
+      return openResult;
+    }
+  }
+}
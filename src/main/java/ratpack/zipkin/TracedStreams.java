@@ -0,0 +1,285 @@
+/*
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin;
+
+import brave.Span;
+import brave.Tracer;
+import brave.Tracing;
+import brave.propagation.CurrentTraceContext;
+import brave.propagation.TraceContext;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import ratpack.stream.Streams;
+import ratpack.stream.TransformablePublisher;
+
+/**
+ * Traced operators for Ratpack streams.
+ *
+ * {@link #trace(String, Publisher)} records one span per subscription to a publisher, and a child
+ * span for one element in every {@code N}. The stream span is tagged with the number of elements,
+ * their throughput, and how often and for how long the publisher was stalled by a lack of
+ * downstream demand. Signals to the stages after the operator, e.g. the functions of
+ * {@code map} and {@code flatMap}, run with the trace context in scope: the sampled element's
+ * span, or else the stream span.
+ *
+ * The parent of the stream span is the trace context current when the operator is applied, as
+ * streams are often subscribed to from another execution or thread.
+ *
+ * <pre>{@code
+ * TransformablePublisher<Order> orders = tracedStreams.trace("orders", repository.findAll())
+ *     .map(this::enrich);
+ * }</pre>
+ *
+ * {@link ServerTracingModule} binds an instance with the default sampling of elements.
+ */
+public final class TracedStreams {
+
+  static final String ELEMENTS_TAG = "stream.elements";
+  static final String THROUGHPUT_TAG = "stream.elements_per_second";
+  static final String STALLS_TAG = "stream.stalls";
+  static final String STALL_TIME_TAG = "stream.stall_time";
+  static final String CANCELLED_TAG = "stream.cancelled";
+  static final String ELEMENT_TAG = "stream.element";
+
+  /**
+   * Create traced operators, recording a span for one element in every 100.
+   *
+   * @param tracing the tracing component
+   * @return the traced operators
+   */
+  public static TracedStreams create(final Tracing tracing) {
+    return create(tracing, 100);
+  }
+
+  /**
+   * Create traced operators.
+   *
+   * @param tracing the tracing component
+   * @param elementSampleRate record a span for one element in every {@code elementSampleRate}, or
+   *                          for none if zero
+   * @return the traced operators
+   */
+  public static TracedStreams create(final Tracing tracing, final int elementSampleRate) {
+    if (elementSampleRate < 0) throw new IllegalArgumentException("elementSampleRate < 0");
+    return new TracedStreams(tracing, elementSampleRate);
+  }
+
+  private final Tracer tracer;
+  private final CurrentTraceContext currentTraceContext;
+  private final int elementSampleRate;
+
+  private TracedStreams(final Tracing tracing, final int elementSampleRate) {
+    this.tracer = tracing.tracer();
+    this.currentTraceContext = tracing.currentTraceContext();
+    this.elementSampleRate = elementSampleRate;
+  }
+
+  /**
+   * Trace each subscription to the publisher.
+   *
+   * @param name the name of the stream span
+   * @param publisher the publisher
+   * @param <T> the type of elements
+   * @return the traced publisher
+   */
+  public <T> TransformablePublisher<T> trace(final String name, final Publisher<T> publisher) {
+    return trace(name, publisher, null);
+  }
+
+  /**
+   * @param onFinish called with the stream span before it is finished, if sampled, e.g. to add tags
+   */
+  <T> TransformablePublisher<T> trace(final String name, final Publisher<T> publisher, final Consumer<Span> onFinish) {
+    final TraceContext parent = currentTraceContext.get();
+    return Streams.transformable(subscriber -> {
+      Span span = parent != null ? tracer.newChild(parent) : tracer.newTrace();
+      span.name(name).start();
+      publisher.subscribe(new TracedSubscriber<>(subscriber, span, name, onFinish));
+    });
+  }
+
+  /**
+   * Run the signals to the stages after the publisher with the trace context current now, without
+   * recording spans, e.g. after a stage which continues on another thread.
+   *
+   * @param publisher the publisher
+   * @param <T> the type of elements
+   * @return the publisher, propagating the current trace context
+   */
+  public <T> TransformablePublisher<T> propagate(final Publisher<T> publisher) {
+    final TraceContext context = currentTraceContext.get();
+    if (context == null) {
+      return Streams.transformable(publisher);
+    }
+    return Streams.transformable(subscriber -> publisher.subscribe(new ScopedSubscriber<>(subscriber, context)));
+  }
+
+  private static long addCapped(final long demand, final long n) {
+    long sum = demand + n;
+    return sum < 0 ? Long.MAX_VALUE : sum;
+  }
+
+  private class ScopedSubscriber<T> implements Subscriber<T> {
+    final Subscriber<? super T> downstream;
+    final TraceContext context;
+
+    ScopedSubscriber(final Subscriber<? super T> downstream, final TraceContext context) {
+      this.downstream = downstream;
+      this.context = context;
+    }
+
+    @Override
+    public void onSubscribe(final Subscription subscription) {
+      try (CurrentTraceContext.Scope scope = currentTraceContext.maybeScope(context)) {
+        downstream.onSubscribe(subscription);
+      }
+    }
+
+    @Override
+    public void onNext(final T element) {
+      try (CurrentTraceContext.Scope scope = currentTraceContext.maybeScope(context)) {
+        downstream.onNext(element);
+      }
+    }
+
+    @Override
+    public void onError(final Throwable error) {
+      try (CurrentTraceContext.Scope scope = currentTraceContext.maybeScope(context)) {
+        downstream.onError(error);
+      }
+    }
+
+    @Override
+    public void onComplete() {
+      try (CurrentTraceContext.Scope scope = currentTraceContext.maybeScope(context)) {
+        downstream.onComplete();
+      }
+    }
+  }
+
+  private final class TracedSubscriber<T> extends ScopedSubscriber<T> implements Subscription {
+    private final Span span;
+    private final String name;
+    private final Consumer<Span> onFinish;
+    private final long startNanos = System.nanoTime();
+    private final AtomicBoolean finished = new AtomicBoolean();
+    private Subscription upstream;
+
+    // onNext is serialized, request and cancel may be called concurrently
+    private volatile long elements;
+    private final AtomicLong demand = new AtomicLong();
+    private final AtomicLong stalledSince = new AtomicLong();
+    private final AtomicLong stalls = new AtomicLong();
+    private final AtomicLong stallNanos = new AtomicLong();
+
+    TracedSubscriber(final Subscriber<? super T> downstream, final Span span, final String name,
+                     final Consumer<Span> onFinish) {
+      super(downstream, span.context());
+      this.span = span;
+      this.name = name;
+      this.onFinish = onFinish;
+    }
+
+    @Override
+    public void onSubscribe(final Subscription subscription) {
+      this.upstream = subscription;
+      super.onSubscribe(this);
+    }
+
+    @Override
+    public void request(final long n) {
+      if (n > 0 && demand.getAndAccumulate(n, TracedStreams::addCapped) != Long.MAX_VALUE) {
+        long since = stalledSince.getAndSet(0L);
+        if (since != 0L) {
+          stalls.incrementAndGet();
+          stallNanos.addAndGet(System.nanoTime() - since);
+        }
+      }
+      upstream.request(n);
+    }
+
+    @Override
+    public void cancel() {
+      if (finished.compareAndSet(false, true)) {
+        span.tag(CANCELLED_TAG, "true");
+        finish();
+      }
+      upstream.cancel();
+    }
+
+    @Override
+    public void onNext(final T element) {
+      long index = elements++;
+      if (demand.get() != Long.MAX_VALUE && demand.decrementAndGet() == 0L) {
+        long now = System.nanoTime();
+        // recheck, as demand may have been requested meanwhile
+        if (stalledSince.compareAndSet(0L, now) && demand.get() > 0L) {
+          stalledSince.compareAndSet(now, 0L);
+        }
+      }
+      if (elementSampleRate == 0 || index % elementSampleRate != 0 || span.isNoop()) {
+        super.onNext(element);
+        return;
+      }
+      Span elementSpan = tracer.newChild(span.context())
+          .name(name + " element")
+          .tag(ELEMENT_TAG, Long.toString(index))
+          .start();
+      try (Tracer.SpanInScope scope = tracer.withSpanInScope(elementSpan)) {
+        downstream.onNext(element);
+      } catch (RuntimeException | Error e) {
+        elementSpan.error(e);
+        throw e;
+      } finally {
+        elementSpan.finish();
+      }
+    }
+
+    @Override
+    public void onError(final Throwable error) {
+      if (finished.compareAndSet(false, true)) {
+        span.error(error);
+        finish();
+      }
+      super.onError(error);
+    }
+
+    @Override
+    public void onComplete() {
+      if (finished.compareAndSet(false, true)) {
+        finish();
+      }
+      super.onComplete();
+    }
+
+    private void finish() {
+      if (!span.isNoop()) {
+        long elapsedNanos = Math.max(1L, System.nanoTime() - startNanos);
+        span.tag(ELEMENTS_TAG, Long.toString(elements));
+        span.tag(THROUGHPUT_TAG, Long.toString((long) (elements * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos)));
+        span.tag(STALLS_TAG, Long.toString(stalls.get()));
+        span.tag(STALL_TIME_TAG, Long.toString(TimeUnit.NANOSECONDS.toMicros(stallNanos.get())));
+        if (onFinish != null) {
+          onFinish.accept(span);
+        }
+      }
+      span.finish();
+    }
+  }
+}
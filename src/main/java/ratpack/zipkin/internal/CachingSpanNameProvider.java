@@ -0,0 +1,65 @@
+/*
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin.internal;
+
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import ratpack.path.PathBinding;
+import ratpack.zipkin.ServerRequest;
+import ratpack.zipkin.SpanNameProvider;
+
+/**
+ * {@link SpanNameProvider} which remembers the names of another provider, keyed by HTTP method and
+ * path binding description, so each route is only named once.
+ *
+ * Only suitable for providers whose names depend on nothing else. Requests without a path binding,
+ * or bound to the root (empty description), are always passed through, as the delegate usually
+ * falls back to the request path for them.
+ */
+public final class CachingSpanNameProvider implements SpanNameProvider {
+
+  // bounds memory should path bindings turn out to be unbounded, e.g. with dynamic chains
+  static final int MAX_ROUTES = 1024;
+
+  private final SpanNameProvider delegate;
+  private final ConcurrentMap<String, ConcurrentMap<String, String>> names = new ConcurrentHashMap<>();
+
+  public CachingSpanNameProvider(final SpanNameProvider delegate) {
+    this.delegate = delegate;
+  }
+
+  @Override
+  public String spanName(final ServerRequest request, final Optional<PathBinding> pathBinding) {
+    if (!pathBinding.isPresent() || pathBinding.get().getDescription().isEmpty()) {
+      return delegate.spanName(request, pathBinding);
+    }
+    String route = pathBinding.get().getDescription();
+    String method = request.getMethod().getName();
+
+    ConcurrentMap<String, String> byMethod = names.get(route);
+    if (byMethod != null) {
+      String name = byMethod.get(method);
+      if (name != null) {
+        return name;
+      }
+    }
+
+    String name = delegate.spanName(request, pathBinding);
+    if (name != null && (byMethod != null || names.size() < MAX_ROUTES)) {
+      names.computeIfAbsent(route, r -> new ConcurrentHashMap<>(4)).put(method, name);
+    }
+    return name;
+  }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016-2020 The OpenZipkin Authors
+ * Copyright 2016-2026 The OpenZipkin Authors
  *
  * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
  * in compliance with the License. You may obtain a copy of the License at
@@ -18,6 +18,7 @@ import brave.http.HttpClientHandler;
 import brave.http.HttpTracing;
 import brave.propagation.TraceContext;
 import ratpack.exec.Execution;
+import ratpack.exec.ExecutionRef;
 import ratpack.http.MutableHeaders;
 import ratpack.http.client.HttpResponse;
 import ratpack.http.client.RequestSpec;
@@ -25,6 +26,8 @@ import ratpack.zipkin.ClientTracingInterceptor;
 
 import javax.inject.Inject;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.function.Supplier;
 
 public class DefaultClientTracingInterceptor implements ClientTracingInterceptor {
@@ -32,6 +35,9 @@ public class DefaultClientTracingInterceptor implements ClientTracingInterceptor
   private final HttpClientHandler<RequestSpec, HttpResponse> handler;
   private final TraceContext.Injector<MutableHeaders> injector;
   private final Supplier<Optional<Execution>> registrySupplier;
+  // the client spans in flight, by the execution that sent the request. The http client completes
+  // a request in a fork of that execution, which may only run after the sender completed.
+  private final ConcurrentMap<ExecutionRef, ClientSpanHolder> inFlight = new ConcurrentHashMap<>();
 
   @Inject
   public DefaultClientTracingInterceptor(final HttpTracing httpTracing) {
@@ -50,55 +56,61 @@ public class DefaultClientTracingInterceptor implements ClientTracingInterceptor
         .ifPresent((execution -> {
           final Span span = this.handler.handleSend(injector, spec.getHeaders(), spec);
           final ClientSpanHolder holder = new ClientSpanHolder(span);
-          execution.add(holder);
+          holder.timing = ServerTiming.find(execution);
+          inFlight.compute(execution.getRef(), (sender, previous) -> {
+            holder.previous = previous;
+            return holder;
+          });
         }));
   }
 
   @Override
   public void response(HttpResponse response) {
     registrySupplier.get()
-        .ifPresent(execution -> {
-          execution
-              .maybeGet(ClientSpanHolder.class)
-              .ifPresent((s) -> {
-                Iterable<? extends ClientSpanHolder> i = execution.getAll(ClientSpanHolder.class);
-                execution.remove(ClientSpanHolder.class);
-                this.handler.handleReceive(response, null, s.span);
-                // special case code for tests to ensure the shared test execution doesn't clear out
-                // other client spans that are still in flight.
-                i.forEach((csh) -> {
-                  if (csh != s) {
-                    execution.add(csh);
-                  }
-                });
-              });
-    });
-
+        .ifPresent(execution -> handleReceive(execution, response, null));
   }
 
   @Override
   public void error(Throwable e) {
     registrySupplier.get()
-        .ifPresent(execution -> {
-          execution
-              .maybeGet(ClientSpanHolder.class)
-              .ifPresent((s) -> {
-                Iterable<? extends ClientSpanHolder> i = execution.getAll(ClientSpanHolder.class);
-                execution.remove(ClientSpanHolder.class);
-                this.handler.handleReceive(null, e, s.span);
-                // special case code for tests to ensure the shared test execution doesn't clear out
-                // other client spans that are still in flight.
-                i.forEach((csh) -> {
-                  if (csh != s) {
-                    execution.add(csh);
-                  }
-                });
-              });
-        });
+        .ifPresent(execution -> handleReceive(execution, null, e));
+  }
+
+  private void handleReceive(Execution execution, HttpResponse response, Throwable error) {
+    ClientSpanHolder s = take(execution.getRef());
+    if (s == null) {
+      s = execution.maybeParent().map(this::take).orElse(null);
+    }
+    if (s == null) {
+      // the request failed before it was sent
+      return;
+    }
+    this.handler.handleReceive(response, error, s.span);
+    if (s.timing != null) {
+      s.timing.addClient(System.nanoTime() - s.startNanos);
+    }
+  }
+
+  /**
+   * Takes the span of the latest request the execution sent that is still in flight. The response
+   * is handled by a fork of the sender, or, when a test supplies the execution, by the sender.
+   */
+  private ClientSpanHolder take(ExecutionRef sender) {
+    final ClientSpanHolder[] taken = new ClientSpanHolder[1];
+    inFlight.computeIfPresent(sender, (ref, latest) -> {
+      taken[0] = latest;
+      return latest.previous;
+    });
+    return taken[0];
   }
 
   public static class ClientSpanHolder {
     private Span span;
+    // for the Server-Timing header, the span's own start timestamp isn't exposed
+    private final long startNanos = System.nanoTime();
+    private ServerTiming timing;
+    // an earlier request of the same execution, still in flight
+    private ClientSpanHolder previous;
 
     public ClientSpanHolder(Span span) {
       this.span = span;
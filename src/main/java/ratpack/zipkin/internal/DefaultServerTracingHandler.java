@@ -1,5 +1,5 @@
 /*
- * Copyright 2016-2020 The OpenZipkin Authors
+ * Copyright 2016-2026 The OpenZipkin Authors
  *
  * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
  * in compliance with the License. You may obtain a copy of the License at
@@ -14,42 +14,86 @@
 package ratpack.zipkin.internal;
 
 import brave.Span;
+import brave.SpanCustomizer;
 import brave.Tracer;
 import brave.Tracing;
 import brave.http.HttpServerHandler;
 import brave.http.HttpTracing;
 import brave.propagation.TraceContext;
 import com.google.common.net.HostAndPort;
+import ratpack.exec.Execution;
 import ratpack.handling.Context;
 import ratpack.handling.Handler;
 import ratpack.http.Headers;
+import ratpack.http.HttpHeaderConstants;
 import ratpack.http.HttpMethod;
 import ratpack.http.Request;
 import ratpack.http.Response;
 import ratpack.http.Status;
 import ratpack.path.PathBinding;
+import ratpack.registry.Registry;
 import ratpack.server.PublicAddress;
+import ratpack.zipkin.AccessLog;
+import ratpack.zipkin.InFlightRequests;
 import ratpack.zipkin.ServerRequest;
 import ratpack.zipkin.ServerResponse;
 import ratpack.zipkin.ServerTracingHandler;
 
 import javax.inject.Inject;
 import java.util.Optional;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * {@link Handler} for Zipkin tracing.
+ *
+ * Downstream handlers find the server span's {@link SpanCustomizer} in the context registry, bound
+ * once per request, so tagging it doesn't look up the current span on every call.
+ *
+ * Optionally writes a {@code Server-Timing} response header, see {@link ServerTiming}, tracks
+ * requests in flight, see {@link InFlightRequests}, and records requests in the
+ * {@link AccessLog}.
+ *
+ * The server span of a request upgraded to another protocol is finished on the upgrade, see
+ * {@link ProtocolUpgrade}.
  */
 public final class DefaultServerTracingHandler implements ServerTracingHandler {
 
+  private static final Status SWITCHING_PROTOCOLS = Status.of(101);
+
   private final Tracing tracing;
   private final HttpServerHandler<ServerRequest, ServerResponse> handler;
   private final TraceContext.Extractor<ServerRequest> extractor;
+  private final boolean serverTiming;
+  private final boolean serverTimingBreakdown;
+  private final InFlightRequests inFlightRequests;
+  private final AccessLog accessLog;
 
   @Inject
   public DefaultServerTracingHandler(final HttpTracing httpTracing) {
+    this(httpTracing, false, false, InFlightRequests.disabled(), AccessLog.disabled());
+  }
+
+  /**
+   * @param httpTracing the HTTP tracing component
+   * @param serverTiming whether to write the total server time in a {@code Server-Timing} header
+   * @param serverTimingBreakdown whether to add the time in client requests and blocking
+   *                              operations to the header, implies {@code serverTiming}
+   * @param inFlightRequests the tracker of requests in flight
+   * @param accessLog the access log
+   */
+  public DefaultServerTracingHandler(final HttpTracing httpTracing,
+                                     final boolean serverTiming,
+                                     final boolean serverTimingBreakdown,
+                                     final InFlightRequests inFlightRequests,
+                                     final AccessLog accessLog) {
     this.tracing = httpTracing.tracing();
     this.handler = HttpServerHandler.<ServerRequest, ServerResponse>create(httpTracing, new ServerHttpAdapter());
     this.extractor = tracing.propagation().extractor((ServerRequest r, String name) -> r.getHeaders().get(name));
+    this.serverTiming = serverTiming || serverTimingBreakdown;
+    this.serverTimingBreakdown = serverTimingBreakdown;
+    this.inFlightRequests = inFlightRequests;
+    this.accessLog = accessLog;
   }
 
   @Override
@@ -61,12 +105,128 @@ public final class DefaultServerTracingHandler implements ServerTracingHandler {
     //further on in the chain) can see the Span.
     Tracer.SpanInScope scope = tracing.tracer().withSpanInScope(span);
 
-    ctx.getResponse().beforeSend(response -> {
-      scope.close();
-      ServerResponse serverResponse = new ServerResponseImpl(response, request, ctx.getPathBinding());
-      handler.handleSend(serverResponse, null, span);
-    });
-    ctx.next();
+    final ServerTiming timing = serverTiming ? new ServerTiming(System.nanoTime(), serverTimingBreakdown) : null;
+    if (serverTimingBreakdown) {
+      ctx.getExecution().add(ServerTiming.class, timing);
+    }
+
+    final long startNanos = accessLog.isEnabled() ? System.nanoTime() : 0L;
+    final Exchange exchange = new Exchange(ctx, request, span, scope, timing, startNanos);
+    ctx.getResponse().beforeSend(exchange::sent);
+    ctx.next(Registry.builder()
+        .add(SpanCustomizer.class, span.customizer())
+        .add(ProtocolUpgrade.class, exchange)
+        .build());
+  }
+
+  /**
+   * Completes the server span when the response is sent or, see {@link ProtocolUpgrade}, when the
+   * connection is upgraded, whichever comes first. The response is sent on the request's
+   * execution, while a WebSocket is opened from a Netty callback, which may run outside of it: the
+   * scope, in the execution's registry, is then closed when the execution completes instead. A
+   * request abandoned by the {@link InFlightRequests} tracker has its scope closed on its event
+   * loop.
+   */
+  private final class Exchange implements ProtocolUpgrade {
+    private final Context ctx;
+    private final ServerRequest request;
+    private final Span span;
+    private final Tracer.SpanInScope scope;
+    private final ServerTiming timing;
+    private final long startNanos;
+    private final InFlightRequests.InFlightRequest inFlight;
+    private final AtomicBoolean completed = new AtomicBoolean();
+    // only accessed on the request's event loop, which runs its execution
+    private boolean scopeClosed;
+
+    Exchange(final Context ctx, final ServerRequest request, final Span span, final Tracer.SpanInScope scope,
+             final ServerTiming timing, final long startNanos) {
+      this.ctx = ctx;
+      this.request = request;
+      this.span = span;
+      this.scope = scope;
+      this.timing = timing;
+      this.startNanos = startNanos;
+      this.inFlight = inFlightRequests.isEnabled()
+          ? inFlightRequests.track(span, request.getMethod().getName(), request.getPath(), this::abandon)
+          : null;
+    }
+
+    void sent(final Response response) {
+      closeScope();
+      if (!completed.compareAndSet(false, true)) {
+        return;
+      }
+      if (timing != null) {
+        response.getHeaders().set(ServerTiming.HEADER, timing.header(System.nanoTime()));
+      }
+      complete(response.getStatus(), response.getHeaders().get(HttpHeaderConstants.CONTENT_LENGTH), null);
+    }
+
+    @Override
+    public void upgrading() {
+      ctx.getExecution().onComplete(this::closeScope);
+    }
+
+    @Override
+    public void upgraded(final Throwable error) {
+      if (!completed.compareAndSet(false, true)) {
+        return;
+      }
+      if (Execution.currentOpt().isPresent()) {
+        complete(SWITCHING_PROTOCOLS, null, error);
+        return;
+      }
+      // the span is scoped while the response is parsed, which needs an execution
+      Execution execution = ctx.getExecution();
+      execution.getController().fork()
+          .eventLoop(execution.getEventLoop())
+          .start(e -> complete(SWITCHING_PROTOCOLS, null, error));
+    }
+
+    /**
+     * Called by the tracker, on its own thread, before it finishes the span of a request which
+     * took too long.
+     *
+     * @return false if the response was sent concurrently
+     */
+    boolean abandon() {
+      if (!completed.compareAndSet(false, true)) {
+        return false;
+      }
+      try {
+        ctx.getExecution().getEventLoop().execute(this::closeScope);
+      } catch (RejectedExecutionException e) {
+        // the server is stopping
+      }
+      return true;
+    }
+
+    private void closeScope() {
+      if (!scopeClosed) {
+        scopeClosed = true;
+        scope.close();
+      }
+    }
+
+    private void complete(final Status status, final String contentLength, final Throwable error) {
+      if (inFlight != null) {
+        inFlightRequests.complete(inFlight);
+      }
+      ServerResponse serverResponse = new ServerResponseImpl(status, request, ctx.getPathBinding());
+      handler.handleSend(serverResponse, error, span);
+      if (accessLog.isEnabled()) {
+        accessLog.record(request.getMethod().getName(), route(ctx.getPathBinding(), request),
+            status.getCode(), System.nanoTime() - startNanos, contentLength, span.context());
+      }
+    }
+  }
+
+  private static String route(final PathBinding pathBinding, final ServerRequest request) {
+    if (pathBinding != null && !pathBinding.getDescription().isEmpty()) {
+      return pathBinding.getDescription();
+    }
+    return request.getPath();
   }
 
   private static class ServerRequestImpl implements ServerRequest {
@@ -111,12 +271,12 @@ public final class DefaultServerTracingHandler implements ServerTracingHandler {
   }
 
   private static class ServerResponseImpl implements ServerResponse {
-    private final Response response;
+    private final Status status;
     private final ServerRequest request;
     private final PathBinding pathBinding;
 
-    public ServerResponseImpl(final Response response, final ServerRequest request, final PathBinding pathBinding) {
-      this.response = response;
+    public ServerResponseImpl(final Status status, final ServerRequest request, final PathBinding pathBinding) {
+      this.status = status;
       this.request = request;
       this.pathBinding = pathBinding;
     }
@@ -133,7 +293,7 @@ public final class DefaultServerTracingHandler implements ServerTracingHandler {
 
     @Override
     public Status getStatus() {
-      return this.response.getStatus();
+      return this.status;
     }
   }
 
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin.internal;
+
+import brave.Clock;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import ratpack.exec.Execution;
+import ratpack.exec.ExecutionRef;
+import ratpack.registry.MutableRegistry;
+
+/**
+ * {@link Clock} reading the wall clock once per Ratpack {@link Execution}, and deriving later
+ * timestamps from {@link System#nanoTime()}.
+ *
+ * The anchor is kept in the execution's registry, and forked executions use their parent's, so
+ * all spans of a request are timed against the same anchor even when they are not in the same
+ * local trace. Brave already times the children of an in-flight span against their local root;
+ * this clock is consulted for the other spans. Outside an execution the wall clock is read.
+ *
+ * This is for consistency, not speed: looking the anchor up in the registry costs about as much
+ * as reading the wall clock. As {@code nanoTime} drifts from the wall clock, an anchor older than
+ * ten seconds is replaced, e.g. in long-lived executions such as WebSocket connections, so
+ * timestamps may jump by the drift accumulated since.
+ */
+public final class ExecutionClock implements Clock {
+
+  static final long MAX_ANCHOR_AGE_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+  public static Clock create() {
+    return new ExecutionClock(() -> Execution.currentOpt().orElse(null));
+  }
+
+  private final Supplier<MutableRegistry> registrySupplier;
+  private final LongSupplier wallClockMicros;
+  private final LongSupplier nanoTime;
+  private final long maxAnchorAgeNanos;
+
+  ExecutionClock(final Supplier<MutableRegistry> registrySupplier) {
+    this(registrySupplier, ExecutionClock::wallClockMicros, System::nanoTime, MAX_ANCHOR_AGE_NANOS);
+  }
+
+  ExecutionClock(final Supplier<MutableRegistry> registrySupplier, final LongSupplier wallClockMicros,
+                 final LongSupplier nanoTime, final long maxAnchorAgeNanos) {
+    this.registrySupplier = registrySupplier;
+    this.wallClockMicros = wallClockMicros;
+    this.nanoTime = nanoTime;
+    this.maxAnchorAgeNanos = maxAnchorAgeNanos;
+  }
+
+  @Override
+  public long currentTimeMicroseconds() {
+    final MutableRegistry registry = registrySupplier.get();
+    if (registry == null) {
+      return wallClockMicros.getAsLong();
+    }
+    final long now = nanoTime.getAsLong();
+    return anchor(registry, now).currentTimeMicroseconds(now);
+  }
+
+  private Anchor anchor(final MutableRegistry registry, final long now) {
+    Optional<Anchor> anchor = registry.maybeGet(Anchor.class);
+    if (anchor.isPresent()) {
+      if (!isExpired(anchor.get(), now)) {
+        return anchor.get();
+      }
+      registry.remove(Anchor.class);
+    } else if (registry instanceof Execution) {
+      Anchor inherited = inheritedAnchor(((Execution) registry).maybeParent());
+      if (inherited != null && !isExpired(inherited, now)) {
+        registry.add(inherited);
+        return inherited;
+      }
+    }
+    Anchor result = new Anchor(wallClockMicros.getAsLong(), now);
+    registry.add(result);
+    return result;
+  }
+
+  private boolean isExpired(final Anchor anchor, final long now) {
+    return now - anchor.nanoTime >= maxAnchorAgeNanos;
+  }
+
+  private static Anchor inheritedAnchor(Optional<ExecutionRef> maybeParent) {
+    while (maybeParent.isPresent()) {
+      ExecutionRef parent = maybeParent.get();
+      Optional<Anchor> anchor = parent.maybeGet(Anchor.class);
+      if (anchor.isPresent()) {
+        return anchor.get();
+      }
+      maybeParent = parent.maybeParent();
+    }
+    return null;
+  }
+
+  private static long wallClockMicros() {
+    Instant now = Instant.now();
+    return now.getEpochSecond() * 1_000_000L + now.getNano() / 1_000L;
+  }
+
+  static final class Anchor {
+    private final long epochMicros;
+    private final long nanoTime;
+
+    Anchor(final long epochMicros, final long nanoTime) {
+      this.epochMicros = epochMicros;
+      this.nanoTime = nanoTime;
+    }
+
+    long currentTimeMicroseconds(final long now) {
+      return epochMicros + (now - nanoTime) / 1_000L;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "ExecutionClock{}";
+  }
+}
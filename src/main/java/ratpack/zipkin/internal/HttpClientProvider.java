@@ -1,5 +1,5 @@
 /*
- * Copyright 2016-2019 The OpenZipkin Authors
+ * Copyright 2016-2026 The OpenZipkin Authors
  *
  * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
  * in compliance with the License. You may obtain a copy of the License at
@@ -36,6 +36,17 @@ public class HttpClientProvider implements Provider<HttpClient> {
 
     @Override
     public HttpClient get() {
+        return traced(httpClient, clientTracingInterceptor);
+    }
+
+    /**
+     * Layer the tracing interceptor on top of the given http client.
+     *
+     * @param httpClient the http client to copy
+     * @param clientTracingInterceptor the interceptor creating client spans
+     * @return a copy of the http client which traces its requests
+     */
+    public static HttpClient traced(HttpClient httpClient, ClientTracingInterceptor clientTracingInterceptor) {
         return Exceptions.uncheck(() ->
                 httpClient.copyWith((s) -> {
                     s.requestIntercept(clientTracingInterceptor::request);
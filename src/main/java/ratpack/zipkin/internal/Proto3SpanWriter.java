@@ -0,0 +1,250 @@
+/*
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin.internal;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import java.util.List;
+import java.util.Map;
+import zipkin2.Annotation;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+
+/**
+ * Writes spans in the zipkin Proto3 format directly into a {@link ByteBuf}.
+ *
+ * The output is identical to {@code SpanBytesEncoder.PROTO3}: each span is a {@code ListOfSpans}
+ * entry, so consecutive spans written to the same buffer form a valid list. Unlike the encoder,
+ * nothing is written to an intermediate byte array: field sizes are computed first, then ids are
+ * hex-decoded and strings UTF-8 encoded straight into the buffer.
+ */
+public final class Proto3SpanWriter {
+
+  private static final int LIST_OF_SPANS_KEY = key(1, 2);
+
+  private static final int TRACE_ID_KEY = key(1, 2);
+  private static final int PARENT_ID_KEY = key(2, 2);
+  private static final int ID_KEY = key(3, 2);
+  private static final int KIND_KEY = key(4, 0);
+  private static final int NAME_KEY = key(5, 2);
+  private static final int TIMESTAMP_KEY = key(6, 1);
+  private static final int DURATION_KEY = key(7, 0);
+  private static final int LOCAL_ENDPOINT_KEY = key(8, 2);
+  private static final int REMOTE_ENDPOINT_KEY = key(9, 2);
+  private static final int ANNOTATION_KEY = key(10, 2);
+  private static final int TAG_KEY = key(11, 2);
+  private static final int DEBUG_KEY = key(12, 0);
+  private static final int SHARED_KEY = key(13, 0);
+
+  private static final int SERVICE_NAME_KEY = key(1, 2);
+  private static final int IPV4_KEY = key(2, 2);
+  private static final int IPV6_KEY = key(3, 2);
+  private static final int PORT_KEY = key(4, 0);
+
+  private static final int ANNOTATION_TIMESTAMP_KEY = key(1, 1);
+  private static final int ANNOTATION_VALUE_KEY = key(2, 2);
+
+  private static final int TAG_KEY_KEY = key(1, 2);
+  private static final int TAG_VALUE_KEY = key(2, 2);
+
+  private Proto3SpanWriter() {
+  }
+
+  /**
+   * @param span the span
+   * @return the number of bytes {@link #write(Span, ByteBuf)} will write
+   */
+  public static int sizeInBytes(Span span) {
+    return sizeOfLengthDelimited(sizeOfSpan(span));
+  }
+
+  /**
+   * Write the span as an entry of a {@code ListOfSpans} message.
+   *
+   * @param span the span
+   * @param buf the buffer to write to, grown as necessary
+   */
+  public static void write(Span span, ByteBuf buf) {
+    int size = sizeOfSpan(span);
+    buf.ensureWritable(sizeOfLengthDelimited(size));
+    buf.writeByte(LIST_OF_SPANS_KEY);
+    writeVarint(buf, size);
+
+    writeHex(buf, TRACE_ID_KEY, span.traceId());
+    writeHex(buf, PARENT_ID_KEY, span.parentId());
+    writeHex(buf, ID_KEY, span.id());
+    if (span.kind() != null) {
+      buf.writeByte(KIND_KEY);
+      writeVarint(buf, span.kind().ordinal() + 1);
+    }
+    writeUtf8(buf, NAME_KEY, span.name());
+    writeFixed64(buf, TIMESTAMP_KEY, span.timestampAsLong());
+    if (span.durationAsLong() != 0L) {
+      buf.writeByte(DURATION_KEY);
+      writeVarint(buf, span.durationAsLong());
+    }
+    writeEndpoint(buf, LOCAL_ENDPOINT_KEY, span.localEndpoint());
+    writeEndpoint(buf, REMOTE_ENDPOINT_KEY, span.remoteEndpoint());
+    List<Annotation> annotations = span.annotations();
+    for (int i = 0, length = annotations.size(); i < length; i++) {
+      Annotation annotation = annotations.get(i);
+      buf.writeByte(ANNOTATION_KEY);
+      writeVarint(buf, sizeOfAnnotation(annotation));
+      writeFixed64(buf, ANNOTATION_TIMESTAMP_KEY, annotation.timestamp());
+      writeUtf8(buf, ANNOTATION_VALUE_KEY, annotation.value());
+    }
+    for (Map.Entry<String, String> tag : span.tags().entrySet()) {
+      buf.writeByte(TAG_KEY);
+      writeVarint(buf, sizeOfTag(tag));
+      writeUtf8(buf, TAG_KEY_KEY, tag.getKey());
+      writeUtf8(buf, TAG_VALUE_KEY, tag.getValue());
+    }
+    if (Boolean.TRUE.equals(span.debug())) {
+      buf.writeByte(DEBUG_KEY);
+      buf.writeByte(1);
+    }
+    if (Boolean.TRUE.equals(span.shared())) {
+      buf.writeByte(SHARED_KEY);
+      buf.writeByte(1);
+    }
+  }
+
+  private static int sizeOfSpan(Span span) {
+    int size = sizeOfHex(span.traceId()) + sizeOfHex(span.parentId()) + sizeOfHex(span.id());
+    if (span.kind() != null) {
+      size += 2; // key and ordinals up to 4
+    }
+    size += sizeOfUtf8(span.name());
+    size += span.timestampAsLong() != 0L ? 9 : 0;
+    size += span.durationAsLong() != 0L ? 1 + sizeOfVarint(span.durationAsLong()) : 0;
+    size += sizeOfEndpointField(span.localEndpoint());
+    size += sizeOfEndpointField(span.remoteEndpoint());
+    List<Annotation> annotations = span.annotations();
+    for (int i = 0, length = annotations.size(); i < length; i++) {
+      size += sizeOfLengthDelimited(sizeOfAnnotation(annotations.get(i)));
+    }
+    for (Map.Entry<String, String> tag : span.tags().entrySet()) {
+      size += sizeOfLengthDelimited(sizeOfTag(tag));
+    }
+    size += Boolean.TRUE.equals(span.debug()) ? 2 : 0;
+    size += Boolean.TRUE.equals(span.shared()) ? 2 : 0;
+    return size;
+  }
+
+  private static int sizeOfAnnotation(Annotation annotation) {
+    return (annotation.timestamp() != 0L ? 9 : 0) + sizeOfUtf8(annotation.value());
+  }
+
+  private static int sizeOfTag(Map.Entry<String, String> tag) {
+    return sizeOfUtf8(tag.getKey()) + sizeOfUtf8(tag.getValue());
+  }
+
+  private static int sizeOfEndpointField(Endpoint endpoint) {
+    return endpoint != null ? sizeOfLengthDelimited(sizeOfEndpoint(endpoint)) : 0;
+  }
+
+  private static int sizeOfEndpoint(Endpoint endpoint) {
+    int size = sizeOfUtf8(endpoint.serviceName());
+    byte[] ipv4 = endpoint.ipv4Bytes();
+    size += ipv4 != null ? sizeOfLengthDelimited(ipv4.length) : 0;
+    byte[] ipv6 = endpoint.ipv6Bytes();
+    size += ipv6 != null ? sizeOfLengthDelimited(ipv6.length) : 0;
+    int port = endpoint.portAsInt();
+    size += port != 0 ? 1 + sizeOfVarint(port) : 0;
+    return size;
+  }
+
+  private static void writeEndpoint(ByteBuf buf, int key, Endpoint endpoint) {
+    if (endpoint == null) return;
+    buf.writeByte(key);
+    writeVarint(buf, sizeOfEndpoint(endpoint));
+    writeUtf8(buf, SERVICE_NAME_KEY, endpoint.serviceName());
+    writeBytes(buf, IPV4_KEY, endpoint.ipv4Bytes());
+    writeBytes(buf, IPV6_KEY, endpoint.ipv6Bytes());
+    int port = endpoint.portAsInt();
+    if (port != 0) {
+      buf.writeByte(PORT_KEY);
+      writeVarint(buf, port);
+    }
+  }
+
+  private static int sizeOfHex(String hex) {
+    return hex != null ? sizeOfLengthDelimited(hex.length() / 2) : 0;
+  }
+
+  private static void writeHex(ByteBuf buf, int key, String hex) {
+    if (hex == null) return;
+    int length = hex.length();
+    buf.writeByte(key);
+    writeVarint(buf, length / 2);
+    for (int i = 0; i < length; i += 2) {
+      buf.writeByte((decodeLowerHex(hex.charAt(i)) << 4) + decodeLowerHex(hex.charAt(i + 1)));
+    }
+  }
+
+  private static int decodeLowerHex(char c) {
+    if (c >= '0' && c <= '9') return c - '0';
+    if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+    throw new AssertionError("not lowerHex " + c); // bug: zipkin2.Span ids are normalized
+  }
+
+  private static int sizeOfUtf8(String value) {
+    return value != null ? sizeOfLengthDelimited(ByteBufUtil.utf8Bytes(value)) : 0;
+  }
+
+  private static void writeUtf8(ByteBuf buf, int key, String value) {
+    if (value == null) return;
+    buf.writeByte(key);
+    writeVarint(buf, ByteBufUtil.utf8Bytes(value));
+    ByteBufUtil.writeUtf8(buf, value);
+  }
+
+  private static void writeBytes(ByteBuf buf, int key, byte[] value) {
+    if (value == null) return;
+    buf.writeByte(key);
+    writeVarint(buf, value.length);
+    buf.writeBytes(value);
+  }
+
+  private static void writeFixed64(ByteBuf buf, int key, long value) {
+    if (value == 0L) return;
+    buf.writeByte(key);
+    buf.writeLongLE(value);
+  }
+
+  private static int sizeOfLengthDelimited(int sizeOfValue) {
+    return 1 + sizeOfVarint(sizeOfValue) + sizeOfValue;
+  }
+
+  static int sizeOfVarint(long value) {
+    int size = 1;
+    while ((value & ~0x7FL) != 0) {
+      value >>>= 7;
+      size++;
+    }
+    return size;
+  }
+
+  static void writeVarint(ByteBuf buf, long value) {
+    while ((value & ~0x7FL) != 0) {
+      buf.writeByte((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    buf.writeByte((int) value);
+  }
+
+  private static int key(int fieldNumber, int wireType) {
+    return (fieldNumber << 3) | wireType;
+  }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin.internal;
+
+/**
+ * Completes the server span of a request whose connection was upgraded, e.g. to a WebSocket.
+ *
+ * The handshake response of an upgrade is written to the channel directly, so the response's
+ * {@code beforeSend} actions never run. {@link DefaultServerTracingHandler} adds one to the
+ * registry of each request, for {@link ratpack.zipkin.TracedConnections} to call once the
+ * connection is open.
+ */
+public interface ProtocolUpgrade {
+
+  /**
+   * Called on the request's execution before the handshake, so that what must not be touched
+   * from outside of it, e.g. the trace context scope in its registry, is released when it
+   * completes rather than by {@link #upgraded(Throwable)}.
+   */
+  default void upgrading() {
+  }
+
+  /**
+   * Finish the server span with status 101, if the response wasn't already sent. It may be called
+   * outside of the request's execution: it leaves the request's scope open, and when not called
+   * on any execution, it finishes the span on a new one, on the request's event loop.
+   *
+   * @param error the error of the handler opening the connection, or null if it opened
+   */
+  void upgraded(Throwable error);
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016-2020 The OpenZipkin Authors
+ * Copyright 2016-2026 The OpenZipkin Authors
  *
  * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
  * in compliance with the License. You may obtain a copy of the License at
@@ -20,9 +20,19 @@ import java.util.function.Supplier;
 import org.slf4j.MDC;
 import ratpack.exec.ExecInitializer;
 import ratpack.exec.Execution;
-import ratpack.exec.ExecutionRef;
 import ratpack.registry.MutableRegistry;
 
+/**
+ * {@link CurrentTraceContext} which stores the trace context in the registry of the current
+ * Ratpack {@link Execution}.
+ *
+ * When built with {@link Builder#threadLocalFallback(boolean)}, threads that are not bound to an
+ * execution (e.g. an application {@link java.util.concurrent.ExecutorService} or a
+ * {@link java.util.concurrent.CompletableFuture} pool) use a thread local instead. Combined with
+ * {@link #executor(java.util.concurrent.Executor)} and
+ * {@link #executorService(java.util.concurrent.ExecutorService)}, which capture the caller's trace
+ * context at submission time, work can be moved off the event loop without losing the trace.
+ */
 public final class RatpackCurrentTraceContext extends CurrentTraceContext {
   public static CurrentTraceContext create(){
     return new Builder().build();
@@ -33,13 +43,26 @@ public final class RatpackCurrentTraceContext extends CurrentTraceContext {
   }
 
   public static final class Builder extends CurrentTraceContext.Builder {
-    Supplier<MutableRegistry> registrySupplier = Execution::current;
+    Supplier<MutableRegistry> registrySupplier = CURRENT_EXECUTION;
+    boolean threadLocalFallback;
 
     public Builder registrySupplier(Supplier<MutableRegistry> registrySupplier) {
       this.registrySupplier = registrySupplier;
       return this;
     }
 
+    /**
+     * When enabled, the trace context is kept in a thread local whenever there is no current
+     * execution, instead of failing.
+     *
+     * @param threadLocalFallback whether to fall back to a thread local outside of executions
+     * @return this builder
+     */
+    public Builder threadLocalFallback(boolean threadLocalFallback) {
+      this.threadLocalFallback = threadLocalFallback;
+      return this;
+    }
+
     @Override public Builder addScopeDecorator(ScopeDecorator scopeDecorator) {
       return (Builder) super.addScopeDecorator(scopeDecorator);
     }
@@ -54,12 +77,16 @@ public final class RatpackCurrentTraceContext extends CurrentTraceContext {
 
   private static final String TRACE_ID_KEY = "TraceId";
 
+  private static final Supplier<MutableRegistry> CURRENT_EXECUTION = Execution::current;
+
   private final Supplier<MutableRegistry> registrySupplier;
+  private final ThreadLocal<TraceContext> fallback;
 
   /** @deprecated Please use {@link #newBuilder()} */
   @Deprecated
   public RatpackCurrentTraceContext(Supplier<MutableRegistry> registrySupplier) {
     this.registrySupplier = registrySupplier;
+    this.fallback = null;
   }
 
   /** @deprecated Please use {@link #create()} */
@@ -69,26 +96,41 @@ public final class RatpackCurrentTraceContext extends CurrentTraceContext {
   }
 
   RatpackCurrentTraceContext(Builder builder) {
-    this.registrySupplier = builder.registrySupplier;
+    if (builder.threadLocalFallback && builder.registrySupplier == CURRENT_EXECUTION) {
+      // don't throw outside of an execution; a null registry selects the thread local
+      this.registrySupplier = () -> Execution.currentOpt().orElse(null);
+    } else {
+      this.registrySupplier = builder.registrySupplier;
+    }
+    this.fallback = builder.threadLocalFallback ? new ThreadLocal<>() : null;
+  }
+
+  /**
+   * @return whether the trace context is kept in a thread local when there is no current execution
+   */
+  public boolean hasThreadLocalFallback() {
+    return fallback != null;
   }
 
   @Override
   public TraceContext get() {
-    return registrySupplier.get()
-        .maybeGet(TraceContextHolder.class)
-        .map(h -> h.context)
-        .orElse(null);
+    final MutableRegistry registry = registrySupplier.get();
+    if (registry == null && fallback != null) {
+      return fallback.get();
+    }
+    return currentHolder(registry).context;
   }
 
   @Override
   public Scope newScope(TraceContext current) {
     final MutableRegistry registry = registrySupplier.get();
+    if (registry == null && fallback != null) {
+      return newThreadLocalScope(current);
+    }
 
     // get previous entry if one exists so we can re-add it when
     // the scope is closed.
-    final TraceContextHolder previous = registry
-        .maybeGet(TraceContextHolder.class)
-        .orElse(TraceContextHolder.EMPTY);
+    final TraceContextHolder previous = currentHolder(registry);
 
     removeAll(registry);
 
@@ -111,6 +153,29 @@ public final class RatpackCurrentTraceContext extends CurrentTraceContext {
     };
   }
 
+  private Scope newThreadLocalScope(TraceContext current) {
+    final TraceContext previous = fallback.get();
+    fallback.set(current);
+    updateMdc(current);
+
+    return () -> {
+      fallback.set(previous);
+      updateMdc(previous);
+    };
+  }
+
+  private static void updateMdc(TraceContext context) {
+    if (context != null) {
+      MDC.put(TRACE_ID_KEY, context.traceIdString());
+    } else {
+      MDC.remove(TRACE_ID_KEY);
+    }
+  }
+
+  private TraceContextHolder currentHolder(MutableRegistry registry) {
+    return registry.maybeGet(TraceContextHolder.class).orElse(TraceContextHolder.EMPTY);
+  }
+
   private void removeAll(MutableRegistry registry) {
     registry
       .getAll(TraceContextHolder.class)
@@ -143,23 +208,37 @@ public final class RatpackCurrentTraceContext extends CurrentTraceContext {
 
   /**
    * ExecInitializer that will propagate the tracing context into any new execution created.
+   *
+   * The parent's context is read once, when the fork is created, on the parent's thread; a fork
+   * that only traces after its parent completed still joins the parent's trace. When not
+   * {@code eager}, it is only copied if there is one, so forks of untraced executions add
+   * nothing to their registry. Client spans are never copied: the client interceptor hands them
+   * to the execution completing the request.
    */
   public static class TracingPropagationExecInitializer implements ExecInitializer {
 
+    private final boolean eager;
+
+    public TracingPropagationExecInitializer() {
+      this(true);
+    }
+
+    /**
+     * @param eager whether to copy the parent's trace context into each new execution, even when
+     *              the parent has none
+     */
+    public TracingPropagationExecInitializer(boolean eager) {
+      this.eager = eager;
+    }
+
     @Override
     public void init(Execution execution) {
-      Optional<ExecutionRef> maybeParent =  execution.maybeParent();
-
-      maybeParent
-        .flatMap(parent -> parent.maybeGet(TraceContextHolder.class))
-        .ifPresent(execution::add);
-
-      // Copies forward the HTTP Client instrumentation Span.
-      // This is important since the interceptor execution is forked between
-      // the request and the response handling.
-      maybeParent
-          .flatMap(parent -> parent.maybeGet(DefaultClientTracingInterceptor.ClientSpanHolder.class))
-          .ifPresent(execution::add);
+      Optional<TraceContextHolder> holder = execution.maybeParent()
+        .flatMap(parent -> parent.maybeGet(TraceContextHolder.class));
+      if (!eager) {
+        holder = holder.filter(h -> h.context != null);
+      }
+      holder.ifPresent(execution::add);
     }
   }
 
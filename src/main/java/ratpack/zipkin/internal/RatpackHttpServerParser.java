@@ -1,5 +1,5 @@
 /*
- * Copyright 2016-2018 The OpenZipkin Authors
+ * Copyright 2016-2026 The OpenZipkin Authors
  *
  * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
  * in compliance with the License. You may obtain a copy of the License at
@@ -16,12 +16,9 @@ package ratpack.zipkin.internal;
 import brave.SpanCustomizer;
 import brave.http.HttpAdapter;
 import brave.http.HttpServerParser;
-import ratpack.zipkin.ServerRequest;
 import ratpack.zipkin.ServerResponse;
 import ratpack.zipkin.SpanNameProvider;
 
-import java.util.Optional;
-
 public class RatpackHttpServerParser extends HttpServerParser {
   private final SpanNameProvider spanNameProvider;
 
@@ -34,19 +31,11 @@ public class RatpackHttpServerParser extends HttpServerParser {
     super.request(adapter, req, customizer);
   }
 
-  @Override
-  protected <Req> String spanName(final HttpAdapter<Req, ?> adapter, final Req req) {
-    if (req instanceof ServerRequest) {
-      return spanNameProvider.spanName((ServerRequest)req, Optional.empty());
-    }
-    else {
-      return super.spanName(adapter, req);
-    }
-  }
-
   @Override
   public <Resp> void response(final HttpAdapter<?, Resp> adapter, final Resp res, final Throwable error, final SpanCustomizer customizer) {
     if (res instanceof ServerResponse) {
+      // the provider is only asked here, once the path binding is known, so it runs once per
+      // request; spans finished without a response keep the default name given in request()
       ServerResponse serverResponse = (ServerResponse) res;
       customizer.name(spanNameProvider.spanName(serverResponse.getRequest(), serverResponse.pathBinding()));
     }
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin.internal;
+
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import ratpack.exec.ExecInterceptor;
+import ratpack.exec.Execution;
+import ratpack.exec.ExecutionRef;
+import ratpack.func.Block;
+
+/**
+ * Timings of a request, written as a {@code Server-Timing} response header.
+ *
+ * The header carries the total server time, and optionally the time spent in client requests and
+ * blocking operations of the request's execution and its forks, e.g.
+ * {@code total;dur=12.5, client;dur=8.1;desc="2", blocking;dur=0.4;desc="1"}. Durations are in
+ * milliseconds and the descriptions are counts. Client requests and blocking operations which
+ * overlap are each counted in full.
+ */
+public final class ServerTiming {
+
+  static final String HEADER = "Server-Timing";
+
+  private final long startNanos;
+  private final boolean breakdown;
+  private final AtomicLong clientNanos = new AtomicLong();
+  private final AtomicInteger clientCount = new AtomicInteger();
+  private final AtomicLong blockingNanos = new AtomicLong();
+  private final AtomicInteger blockingCount = new AtomicInteger();
+
+  ServerTiming(final long startNanos, final boolean breakdown) {
+    this.startNanos = startNanos;
+    this.breakdown = breakdown;
+  }
+
+  /**
+   * Finds the timings of the request handled by the execution, or one of its parents.
+   */
+  static ServerTiming find(final Execution execution) {
+    Optional<ServerTiming> timing = execution.maybeGet(ServerTiming.class);
+    if (timing.isPresent()) {
+      return timing.get();
+    }
+    Optional<ExecutionRef> maybeParent = execution.maybeParent();
+    while (maybeParent.isPresent()) {
+      ExecutionRef parent = maybeParent.get();
+      timing = parent.maybeGet(ServerTiming.class);
+      if (timing.isPresent()) {
+        return timing.get();
+      }
+      maybeParent = parent.maybeParent();
+    }
+    return null;
+  }
+
+  void addClient(final long nanos) {
+    clientNanos.addAndGet(nanos);
+    clientCount.incrementAndGet();
+  }
+
+  void addBlocking(final long nanos) {
+    blockingNanos.addAndGet(nanos);
+    blockingCount.incrementAndGet();
+  }
+
+  String header(final long nowNanos) {
+    StringBuilder header = new StringBuilder(breakdown ? 80 : 24);
+    appendMetric(header, "total", nowNanos - startNanos);
+    if (breakdown) {
+      appendMetric(header.append(", "), "client", clientNanos.get())
+          .append(";desc=\"").append(clientCount.get()).append('"');
+      appendMetric(header.append(", "), "blocking", blockingNanos.get())
+          .append(";desc=\"").append(blockingCount.get()).append('"');
+    }
+    return header.toString();
+  }
+
+  private static StringBuilder appendMetric(final StringBuilder header, final String name, final long nanos) {
+    // milliseconds, to a tenth
+    long tenths = Math.max(0L, nanos) / 100_000L;
+    return header.append(name).append(";dur=").append(tenths / 10).append('.').append(tenths % 10);
+  }
+
+  /**
+   * Times the blocking operations of requests whose timings are broken down.
+   */
+  public static final class BlockingTimer implements ExecInterceptor {
+    private final boolean enabled;
+
+    /**
+     * @param enabled false to only run the operations
+     */
+    public BlockingTimer(final boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    @Override
+    public void intercept(final Execution execution, final ExecType execType, final Block executionSegment) throws Exception {
+      ServerTiming timing;
+      if (!enabled || execType != ExecType.BLOCKING || (timing = find(execution)) == null) {
+        executionSegment.execute();
+        return;
+      }
+      long start = System.nanoTime();
+      try {
+        executionSegment.execute();
+      } finally {
+        timing.addBlocking(System.nanoTime() - start);
+      }
+    }
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin.internal;
+
+import brave.Span;
+import brave.Tracer;
+import brave.Tracing;
+import brave.propagation.CurrentTraceContext;
+import brave.propagation.TraceContext;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import ratpack.exec.Downstream;
+import ratpack.exec.Execution;
+import ratpack.exec.Promise;
+import ratpack.zipkin.Traced;
+
+/**
+ * Records local spans around calls to methods annotated with {@link Traced}.
+ *
+ * Calls outside a trace, in an unsampled one or outside a Ratpack execution (unless the thread
+ * local fallback is enabled), proceed untouched. The span name and tags of each method are
+ * resolved once and cached.
+ */
+public final class TracedMethodInterceptor implements MethodInterceptor {
+
+  static final String CLASS_TAG = "class";
+  static final String METHOD_TAG = "method";
+
+  private final Supplier<Tracing> tracing;
+  private final ConcurrentMap<Method, TracedMethod> methods = new ConcurrentHashMap<>();
+
+  /**
+   * @param tracing the tracing component, resolved on the first traced call as interceptors are
+   *                bound before the injector is created
+   */
+  public TracedMethodInterceptor(final Supplier<Tracing> tracing) {
+    this.tracing = tracing;
+  }
+
+  @Override
+  public Object invoke(final MethodInvocation invocation) throws Throwable {
+    Tracing tracing = this.tracing.get();
+    if (!hasCurrentContext(tracing.currentTraceContext())) {
+      return invocation.proceed();
+    }
+    TraceContext parent = tracing.currentTraceContext().get();
+    if (parent == null || !(Boolean.TRUE.equals(parent.sampled()) || parent.sampledLocal())) {
+      return invocation.proceed();
+    }
+    TracedMethod method = tracedMethod(invocation.getMethod());
+    Tracer tracer = tracing.tracer();
+    if (method.returnsPromise) {
+      Object result;
+      try {
+        result = invocation.proceed();
+      } catch (Throwable e) {
+        newSpan(tracer, parent, method).start().error(e).finish();
+        throw e;
+      }
+      return result != null ? traceOnSubscription(tracer, parent, method, (Promise<?>) result) : null;
+    }
+    Span span = newSpan(tracer, parent, method).start();
+    Object result;
+    try (Tracer.SpanInScope scope = tracer.withSpanInScope(span)) {
+      result = invocation.proceed();
+    } catch (Throwable e) {
+      span.error(e).finish();
+      throw e;
+    }
+    span.finish();
+    return result;
+  }
+
+  /**
+   * The Ratpack trace context lives in the current execution; other threads only have one with
+   * the thread local fallback.
+   */
+  private static boolean hasCurrentContext(final CurrentTraceContext current) {
+    if (current instanceof RatpackCurrentTraceContext
+        && !((RatpackCurrentTraceContext) current).hasThreadLocalFallback()) {
+      return Execution.currentOpt().isPresent();
+    }
+    return true;
+  }
+
+  private static Span newSpan(final Tracer tracer, final TraceContext parent, final TracedMethod method) {
+    return tracer.newChild(parent).name(method.spanName)
+        .tag(CLASS_TAG, method.className)
+        .tag(METHOD_TAG, method.methodName);
+  }
+
+  private TracedMethod tracedMethod(final Method method) {
+    TracedMethod traced = methods.get(method);
+    if (traced == null) {
+      traced = methods.computeIfAbsent(method, TracedMethod::new);
+    }
+    return traced;
+  }
+
+  /**
+   * Promises are lazy: their work runs, and completes, when they are subscribed to. So the span
+   * starts on subscription, and a promise which is never subscribed to records nothing.
+   */
+  private static <T> Promise<T> traceOnSubscription(final Tracer tracer, final TraceContext parent,
+                                                    final TracedMethod method, final Promise<T> promise) {
+    return promise.transform(upstream -> downstream -> {
+      Span span = newSpan(tracer, parent, method).start();
+      try (Tracer.SpanInScope scope = tracer.withSpanInScope(span)) {
+        upstream.connect(new Downstream<T>() {
+          @Override
+          public void success(final T value) {
+            span.finish();
+            downstream.success(value);
+          }
+
+          @Override
+          public void error(final Throwable error) {
+            span.error(error).finish();
+            downstream.error(error);
+          }
+
+          @Override
+          public void complete() {
+            span.finish();
+            downstream.complete();
+          }
+        });
+      }
+    });
+  }
+
+  private static final class TracedMethod {
+    final String spanName;
+    final String className;
+    final String methodName;
+    final boolean returnsPromise;
+
+    TracedMethod(final Method method) {
+      String name = method.getAnnotation(Traced.class).value();
+      this.spanName = name.isEmpty() ? method.getName() : name;
+      this.className = method.getDeclaringClass().getSimpleName();
+      this.methodName = method.getName();
+      this.returnsPromise = Promise.class.isAssignableFrom(method.getReturnType());
+    }
+  }
+}
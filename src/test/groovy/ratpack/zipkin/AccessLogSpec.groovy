@@ -0,0 +1,83 @@
+/**
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin
+
+import brave.propagation.TraceContext
+import spock.lang.Specification
+
+import java.time.Duration
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class AccessLogSpec extends Specification {
+
+	static final TraceContext CONTEXT = TraceContext.newBuilder().traceId(1L).spanId(2L).build()
+
+	Queue<String> lines = new ConcurrentLinkedQueue<>()
+
+	def 'Should append formatted entries on a background thread'() {
+		given:
+			def log = AccessLog.newBuilder().appender { lines << it }.build()
+		when:
+			log.record("GET", "items/:id", 200, TimeUnit.MICROSECONDS.toNanos(12_045), "512", CONTEXT)
+			log.record("POST", "items", 500, TimeUnit.MILLISECONDS.toNanos(3), null, CONTEXT)
+			log.close()
+		then:
+			lines.toList() == [
+				"method=GET route=items/:id status=200 latency_ms=12.045 bytes=512 trace_id=0000000000000001 span_id=0000000000000002",
+				"method=POST route=items status=500 latency_ms=3.000 bytes=- trace_id=0000000000000001 span_id=0000000000000002"
+			]
+			log.entriesLogged() == 2
+	}
+
+	def 'Should drop entries rather than block when the buffer is full'() {
+		given:
+			def appending = new CountDownLatch(1)
+			def release = new CountDownLatch(1)
+			def log = AccessLog.newBuilder().bufferSize(2).appender {
+				appending.countDown()
+				release.await()
+			}.build()
+		when:
+			log.record("GET", "a", 200, 1L, null, CONTEXT)
+			appending.await(5, TimeUnit.SECONDS)
+			def recorded = (1..3).collect { log.record("GET", "b", 200, 1L, null, CONTEXT) }
+			release.countDown()
+			log.close()
+		then:
+			recorded == [true, true, false]
+			log.entriesDropped() == 1
+			log.entriesLogged() == 3
+	}
+
+	def 'Should keep entries in order across laps of the buffer'() {
+		given:
+			def log = AccessLog.newBuilder().bufferSize(4).idleWait(Duration.ofMillis(1)).appender { lines << it }.build()
+		when:
+			(1..100).each {
+				while (!log.record("GET", "r" + it, 200, 1L, null, CONTEXT)) {
+					Thread.sleep(1)
+				}
+			}
+			log.close()
+		then:
+			lines*.split(" ")*.getAt(1) == (1..100).collect { "route=r" + it }
+	}
+
+	def 'Should log nothing when disabled'() {
+		expect:
+			!AccessLog.disabled().record("GET", "a", 200, 1L, null, CONTEXT)
+	}
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin
+
+import spock.lang.Specification
+
+import java.util.concurrent.TimeUnit
+import java.util.function.LongSupplier
+
+class AdaptiveSamplerSpec extends Specification {
+
+	long now = 0L
+
+	AdaptiveSampler sampler(int tracesPerSecond, LongSupplier queuedSpans = null) {
+		def builder = AdaptiveSampler.newBuilder(tracesPerSecond)
+		builder.nanoTime = { -> now } as LongSupplier
+		if (queuedSpans != null) {
+			builder.backlog(queuedSpans, 1000)
+		}
+		builder.build()
+	}
+
+	void traffic(AdaptiveSampler sampler, int tracesPerSecond, int seconds) {
+		def random = new Random(0)
+		seconds.times {
+			tracesPerSecond.times { sampler.isSampled(random.nextLong()) }
+			now += TimeUnit.SECONDS.toNanos(1)
+		}
+		// trigger the update for the last interval
+		sampler.isSampled(random.nextLong())
+	}
+
+	def 'Should sample everything while traffic is under the target'() {
+		given:
+			def sampler = sampler(100)
+		when:
+			traffic(sampler, 50, 3)
+		then:
+			sampler.probability() == 1.0d
+	}
+
+	def 'Should converge on the target when traffic exceeds it'() {
+		given:
+			def sampler = sampler(100)
+		when:
+			traffic(sampler, 1000, 10)
+		then:
+			Math.abs(sampler.probability() - 0.1d) < 0.01d
+	}
+
+	def 'Should back off as the reporter backlog grows'() {
+		given:
+			def sampler = sampler(100, { -> 500L } as LongSupplier)
+		when:
+			traffic(sampler, 50, 3)
+		then:
+			sampler.probability() == 0.5d
+	}
+}
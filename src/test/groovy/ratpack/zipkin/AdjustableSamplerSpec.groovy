@@ -0,0 +1,85 @@
+/**
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin
+
+import brave.http.HttpServerRequest
+import spock.lang.Specification
+
+import java.time.Duration
+
+class AdjustableSamplerSpec extends Specification {
+
+	static HttpServerRequest request(String method, String path) {
+		new HttpServerRequest() {
+			@Override Object unwrap() { null }
+			@Override String method() { method }
+			@Override String path() { path }
+			@Override String url() { null }
+			@Override String header(String name) { null }
+		}
+	}
+
+	def 'Should defer to the trace sampler when no rate or rule applies'() {
+		given:
+			def sampler = AdjustableSampler.create()
+		expect:
+			sampler.trySample(request("GET", "/foo")) == null
+	}
+
+	def 'Should apply the first matching rule, then the default rate'() {
+		given:
+			def sampler = AdjustableSampler.create(new AdjustableSampler.Settings()
+				.rate(0f)
+				.rule("POST", "/orders", 1f)
+				.rule(null, "/orders", 0f))
+		expect:
+			sampler.trySample(request("POST", "/orders/1"))
+			!sampler.trySample(request("GET", "/orders/1"))
+			!sampler.trySample(request("GET", "/other"))
+	}
+
+	def 'Should swap settings at runtime'() {
+		given:
+			def sampler = AdjustableSampler.create(new AdjustableSampler.Settings().rate(0f))
+		when:
+			sampler.update(new AdjustableSampler.Settings().rate(1f))
+		then:
+			sampler.trySample(request("GET", "/foo"))
+			sampler.settings().rate == 1f
+	}
+
+	def 'Should restore the previous settings once temporary ones expire'() {
+		given:
+			def sampler = AdjustableSampler.create(new AdjustableSampler.Settings().rate(0f))
+		when:
+			sampler.update(new AdjustableSampler.Settings().rate(1f), Duration.ofHours(1))
+		then:
+			sampler.trySample(request("GET", "/foo"))
+		when:
+			sampler.update(new AdjustableSampler.Settings().rate(1f), Duration.ZERO)
+		then:
+			!sampler.trySample(request("GET", "/foo"))
+			sampler.settings().rate == 0f
+	}
+
+	def 'Should reject invalid rates without changing the settings'() {
+		given:
+			def sampler = AdjustableSampler.create(new AdjustableSampler.Settings().rate(0f))
+		when:
+			sampler.update(new AdjustableSampler.Settings().rate(2f))
+		then:
+			thrown(IllegalArgumentException)
+			sampler.settings().rate == 0f
+	}
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin
+
+import brave.propagation.TraceContext
+import brave.sampler.Sampler
+import ratpack.registry.Registry
+import ratpack.server.ServerConfig
+import ratpack.zipkin.internal.DefaultServerTracingHandler
+import ratpack.zipkin.support.AllocationMeter
+import spock.lang.Requires
+import spock.lang.Specification
+import spock.lang.Unroll
+
+/**
+ * Fails when the tracing hot path allocates more per request than its budget, in bytes. Sampled
+ * spans are passed to a reporter which discards them.
+ *
+ * Not part of the default build, run it with {@code ./mvnw test -Pallocation-test}, alone in its
+ * JVM: the scope cycle allocates up to 30% more after other specs ran in the same JVM.
+ *
+ * Default budgets are the highest values measured on JDK 8, 11, 17 and 21, with Ratpack 1.9.0
+ * and the test dependencies' MDC binding, plus a margin of about 25%. Measurements vary by up to
+ * 10% between runs, with the JIT's decisions. A failing condition shows the measured value.
+ * Budgets can be overridden with the system properties {@code alloc.budget.scope},
+ * {@code alloc.budget.unsampled} and {@code alloc.budget.sampled}.
+ */
+@Requires({ AllocationMeter.isSupported() })
+class AllocationBudgetTest extends Specification {
+
+	static final int WARMUP = Integer.getInteger("alloc.warmup", 5000)
+	static final int ITERATIONS = Integer.getInteger("alloc.iterations", 1000)
+
+	static long budget(String name, long defaultBytes) {
+		Long.getLong("alloc.budget." + name, defaultBytes)
+	}
+
+	def 'Should stay within the allocation budget of a trace context scope'() {
+		given:
+			def registry = Registry.mutable()
+			def context = TraceContext.newBuilder().traceId(1L).spanId(2L).sampled(true).build()
+		when:
+			def bytes = AllocationMeter.bytesPerCall(WARMUP * 10, ITERATIONS * 10,
+				AllocationMeter.scopeCycle(registry, context))
+		then:
+			bytes <= budget("scope", 1280)
+	}
+
+	@Unroll
+	def 'Should stay within the allocation budget of a #name request'() {
+		given:
+			def config = new ServerTracingModule.Config()
+				.sampler(sampler)
+				.spanReporterV2(AllocationMeter.discardingReporter())
+			def spanLimits = ServerTracingModule.createSpanLimits(config)
+			def httpTracing = ServerTracingModule.createHttpTracing(config, ServerConfig.embedded().build(), spanLimits,
+				ServerTracingModule.createCriticalPathHandler(config))
+			def handler = new DefaultServerTracingHandler(httpTracing)
+		when:
+			def bytes = AllocationMeter.bytesPerRequest(WARMUP, ITERATIONS, handler, "items/1")
+		then:
+			bytes <= budget(name, defaultBudget)
+		cleanup:
+			httpTracing.tracing().close()
+		where:
+			name        | sampler               | defaultBudget
+			"unsampled" | Sampler.NEVER_SAMPLE  | 3328
+			"sampled"   | Sampler.ALWAYS_SAMPLE | 7296
+	}
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin
+
+import ratpack.zipkin.support.TestReporter
+import spock.lang.Specification
+import zipkin2.Span
+
+import java.time.Duration
+import java.util.concurrent.TimeUnit
+import java.util.function.LongSupplier
+
+class ClientSpanAggregatorSpec extends Specification {
+
+	TestReporter reporter = new TestReporter()
+	long now = 0L
+
+	ClientSpanAggregator aggregator(Duration maxAge = Duration.ofSeconds(10)) {
+		def builder = ClientSpanAggregator.newBuilder(reporter).maxAge(maxAge)
+		builder.nanoTime = { -> now } as LongSupplier
+		builder.build()
+	}
+
+	static Span client(int id, String path = "/items", long timestamp = 1000L + id, long duration = 10L) {
+		Span.newBuilder()
+			.traceId("1").parentId("a").id(Integer.toHexString(0x100 + id))
+			.kind(Span.Kind.CLIENT).name("get")
+			.putTag("http.path", path)
+			.timestamp(timestamp).duration(duration)
+			.build()
+	}
+
+	static Span server() {
+		Span.newBuilder().traceId("1").id("a").kind(Span.Kind.SERVER).name("get /").timestamp(1L).duration(5000L).build()
+	}
+
+	def 'Should coalesce repeated calls into a summary span when the parent is reported'() {
+		given:
+			def aggregator = aggregator()
+		when:
+			(1..200).each { aggregator.report(client(it)) }
+		then:
+			reporter.spans.empty
+		when:
+			aggregator.report(server())
+		then:
+			reporter.spans*.kind() == [Span.Kind.CLIENT, Span.Kind.SERVER]
+			def summary = reporter.spans.first()
+			summary.id() == client(1).id()
+			summary.tags()[ClientSpanAggregator.COUNT_TAG] == "200"
+			summary.tags()[ClientSpanAggregator.MIN_DURATION_TAG] == "10"
+			summary.tags()[ClientSpanAggregator.MAX_DURATION_TAG] == "10"
+			summary.tags()[ClientSpanAggregator.TOTAL_DURATION_TAG] == "2000"
+			summary.timestampAsLong() == 1001L
+			summary.durationAsLong() == 1210L - 1001L
+			aggregator.spansCoalesced() == 199
+	}
+
+	def 'Should report calls which are not repeated unchanged'() {
+		given:
+			def aggregator = aggregator()
+		when:
+			aggregator.report(client(1, "/items"))
+			aggregator.report(client(2, "/orders"))
+			aggregator.report(server())
+		then:
+			reporter.spans == [client(1, "/items"), client(2, "/orders"), server()]
+	}
+
+	def 'Should report errors and outliers in full'() {
+		given:
+			def aggregator = aggregator()
+			def error = client(3).toBuilder().putTag("error", "500").build()
+			def outlier = client(4, "/items", 1004L, 1000L)
+		when:
+			aggregator.report(client(1))
+			aggregator.report(client(2))
+			aggregator.report(error)
+			aggregator.report(outlier)
+		then:
+			reporter.spans == [error, outlier]
+		when:
+			aggregator.report(server())
+		then:
+			reporter.spans[2].tags()[ClientSpanAggregator.COUNT_TAG] == "4"
+			reporter.spans[2].tags()[ClientSpanAggregator.MAX_DURATION_TAG] == "1000"
+	}
+
+	def 'Should summarize groups whose calls were all reported in full'() {
+		given:
+			def aggregator = aggregator()
+			def errors = (1..3).collect { client(it).toBuilder().putTag("error", "503").build() }
+		when:
+			errors.each { aggregator.report(it) }
+			aggregator.report(server())
+		then:
+			reporter.spans.size() == 5
+			reporter.spans.take(3) == errors
+			def summary = reporter.spans[3]
+			!(summary.id() in errors*.id())
+			summary.parentId() == "000000000000000a"
+			summary.tags()[ClientSpanAggregator.COUNT_TAG] == "3"
+			summary.tags()[ClientSpanAggregator.TOTAL_DURATION_TAG] == "30"
+	}
+
+	def 'Should report client spans finishing after their parent right away'() {
+		given:
+			def aggregator = aggregator()
+		when:
+			aggregator.report(server())
+			aggregator.report(client(1))
+			aggregator.report(client(2))
+		then:
+			reporter.spans == [server(), client(1), client(2)]
+			aggregator.spansCoalesced() == 0
+	}
+
+	def 'Should hold client spans again once their reported parent has expired'() {
+		given:
+			def aggregator = aggregator(Duration.ofSeconds(1))
+			aggregator.report(server())
+		when:
+			now += TimeUnit.SECONDS.toNanos(2)
+			aggregator.report(client(1))
+		then:
+			reporter.spans == [server()]
+	}
+
+	def 'Should report groups whose parent is not reported after the maximum age'() {
+		given:
+			def aggregator = aggregator(Duration.ofSeconds(1))
+			aggregator.report(client(1))
+			aggregator.report(client(2))
+		when:
+			now += TimeUnit.SECONDS.toNanos(2)
+			aggregator.report(Span.newBuilder().traceId("2").id("b").name("other").build())
+		then:
+			reporter.spans.size() == 2
+			reporter.spans.first().tags()[ClientSpanAggregator.COUNT_TAG] == "2"
+	}
+
+	def 'Should report everything held when flushed'() {
+		given:
+			def aggregator = aggregator()
+			aggregator.report(client(1))
+		when:
+			aggregator.flush()
+		then:
+			reporter.spans == [client(1)]
+	}
+
+	def 'Should stop aggregating over the maximum number of groups'() {
+		given:
+			def aggregator = ClientSpanAggregator.newBuilder(reporter).maxGroups(1).build()
+		when:
+			aggregator.report(client(1, "/items"))
+			aggregator.report(client(2, "/orders"))
+		then:
+			reporter.spans == [client(2, "/orders")]
+	}
+}
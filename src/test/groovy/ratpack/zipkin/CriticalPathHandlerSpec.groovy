@@ -0,0 +1,254 @@
+/**
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin
+
+import brave.Span.Kind
+import brave.Tracing
+import brave.sampler.Sampler
+import ratpack.zipkin.support.TestReporter
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+import zipkin2.Span
+import zipkin2.reporter.brave.ZipkinSpanHandler
+
+import java.time.Duration
+
+import static ratpack.groovy.test.embed.GroovyEmbeddedApp.ratpack
+
+class CriticalPathHandlerSpec extends Specification {
+
+	TestReporter reporter = new TestReporter()
+
+	PollingConditions conditions = new PollingConditions(timeout: 5)
+
+	Span awaitServerSpan() {
+		conditions.eventually {
+			assert reporter.spans.any { it.kind() == Span.Kind.SERVER }
+		}
+		reporter.spans.find { it.kind() == Span.Kind.SERVER }
+	}
+
+	def 'Should tag the server span with the calls on its critical path'() {
+		given:
+			def handler = CriticalPathHandler.create(ZipkinSpanHandler.create(reporter))
+			def tracing = Tracing.newBuilder().addSpanHandler(handler).build()
+			def tracer = tracing.tracer()
+		when:
+			def server = tracer.newTrace().kind(Kind.SERVER).name("get /quote").start(1_000L)
+			// concurrent calls: only the slow one sets the latency
+			def stock = tracer.newChild(server.context()).kind(Kind.CLIENT).name("get").tag("http.path", "/stock").start(1_100L)
+			def prices = tracer.newChild(server.context()).kind(Kind.CLIENT).name("get").tag("http.path", "/prices").start(1_100L)
+			def render = tracer.newChild(server.context()).name("render").start(1_700L)
+			def cache = tracer.newChild(render.context()).kind(Kind.CLIENT).remoteServiceName("cache").name("get").start(1_750L)
+			stock.finish(1_300L)
+			prices.finish(1_600L)
+			cache.finish(1_850L)
+			render.finish(1_900L)
+			server.finish(2_000L)
+		then:
+			def span = awaitServerSpan()
+			span.tags()[CriticalPathHandler.CRITICAL_PATH_TAG] == "get /prices=500,render=100,cache get=100"
+			span.tags()[CriticalPathHandler.SELF_TAG] == "300"
+			handler.tracesTagged() == 1
+			reporter.spans.size() == 5
+		cleanup:
+			tracing?.close()
+			handler?.close()
+	}
+
+	def 'Should keep the longest child spans of a trace'() {
+		given:
+			def handler = CriticalPathHandler.newBuilder(ZipkinSpanHandler.create(reporter))
+				.maxSpansPerTrace(2)
+				.topContributors(5)
+				.build()
+			def tracing = Tracing.newBuilder().addSpanHandler(handler).build()
+			def tracer = tracing.tracer()
+		when:
+			def server = tracer.newTrace().kind(Kind.SERVER).name("get /batch").start(1_000L)
+			[a: 100L, b: 300L, c: 200L].each { name, duration ->
+				tracer.newChild(server.context()).name(name).start(1_000L).finish(1_000L + duration)
+			}
+			server.finish(1_400L)
+		then:
+			def span = awaitServerSpan()
+			span.tags()[CriticalPathHandler.CRITICAL_PATH_TAG] == "b=300"
+			span.tags()[CriticalPathHandler.SELF_TAG] == "100"
+			handler.spansEvicted() == 1
+		cleanup:
+			tracing?.close()
+			handler?.close()
+	}
+
+	def 'Should pass server spans without children on untagged'() {
+		given:
+			def handler = CriticalPathHandler.create(ZipkinSpanHandler.create(reporter))
+			def tracing = Tracing.newBuilder().addSpanHandler(handler).build()
+		when:
+			tracing.tracer().newTrace().kind(Kind.SERVER).name("get /ping").start(1_000L).finish(1_100L)
+		then:
+			!awaitServerSpan().tags().containsKey(CriticalPathHandler.SELF_TAG)
+			handler.tracesTagged() == 0
+		cleanup:
+			tracing?.close()
+			handler?.close()
+	}
+
+	def 'Should pass queued server spans on when closed'() {
+		given:
+			def handler = CriticalPathHandler.create(ZipkinSpanHandler.create(reporter))
+			def tracing = Tracing.newBuilder().addSpanHandler(handler).build()
+			def tracer = tracing.tracer()
+		when:
+			(1..10).each {
+				def server = tracer.newTrace().kind(Kind.SERVER).name("get /").start(1_000L)
+				tracer.newChild(server.context()).name("child").start(1_100L).finish(1_200L)
+				server.finish(2_000L)
+			}
+			handler.close()
+		then:
+			reporter.spans.count { it.kind() == Span.Kind.SERVER } == 10
+			handler.tracesTagged() + handler.tracesSkipped() == 10
+		cleanup:
+			tracing?.close()
+	}
+
+	def 'Should pass late children on without starting a new trace'() {
+		given:
+			def handler = CriticalPathHandler.newBuilder(ZipkinSpanHandler.create(reporter))
+				.maxTraces(1)
+				.build()
+			def tracing = Tracing.newBuilder().addSpanHandler(handler).build()
+			def tracer = tracing.tracer()
+		when: 'a child finishes after its server span, e.g. a fire-and-forget call'
+			def early = tracer.newTrace().kind(Kind.SERVER).name("get /early").start(1_000L)
+			def late = tracer.newChild(early.context()).kind(Kind.CLIENT).name("late").start(1_100L)
+			early.finish(1_200L)
+			late.finish(1_500L)
+		and: 'the next trace has a child'
+			def server = tracer.newTrace().kind(Kind.SERVER).name("get /next").start(2_000L)
+			tracer.newChild(server.context()).name("child").start(2_100L).finish(2_200L)
+			server.finish(2_300L)
+		then: 'the late child did not take the only trace'
+			conditions.eventually {
+				assert handler.tracesTagged() == 1
+			}
+			reporter.spans.find { it.name() == "get /next" }.tags().containsKey(CriticalPathHandler.SELF_TAG)
+			reporter.spans.any { it.name() == "late" }
+			handler.tracesSkipped() == 0
+		cleanup:
+			tracing?.close()
+			handler?.close()
+	}
+
+	def 'Should count server spans of untracked traces as skipped'() {
+		given:
+			def handler = CriticalPathHandler.newBuilder(ZipkinSpanHandler.create(reporter))
+				.maxTraces(1)
+				.build()
+			def tracing = Tracing.newBuilder().addSpanHandler(handler).build()
+			def tracer = tracing.tracer()
+		when: 'a second trace has children while the first is collected'
+			def first = tracer.newTrace().kind(Kind.SERVER).name("get /first").start(1_000L)
+			tracer.newChild(first.context()).name("child").start(1_100L).finish(1_200L)
+			def second = tracer.newTrace().kind(Kind.SERVER).name("get /second").start(1_000L)
+			tracer.newChild(second.context()).name("child").start(1_100L).finish(1_200L)
+			second.finish(1_300L)
+			first.finish(1_400L)
+		then:
+			conditions.eventually {
+				assert handler.tracesTagged() == 1
+			}
+			handler.tracesSkipped() == 1
+			!reporter.spans.find { it.name() == "get /second" }.tags().containsKey(CriticalPathHandler.SELF_TAG)
+		cleanup:
+			tracing?.close()
+			handler?.close()
+	}
+
+	def 'Should forget traces whose server span never finishes in the background'() {
+		given:
+			def now = 0L
+			def builder = CriticalPathHandler.newBuilder(ZipkinSpanHandler.create(reporter))
+				.maxTraces(1)
+				.maxAge(Duration.ofSeconds(1))
+			builder.nanoTime = { -> now }
+			def handler = builder.build()
+			def tracing = Tracing.newBuilder().addSpanHandler(handler).build()
+			def tracer = tracing.tracer()
+		and: 'a trace whose server span never finishes'
+			def abandoned = tracer.newTrace().kind(Kind.SERVER).name("get /abandoned").start(1_000L)
+			tracer.newChild(abandoned.context()).name("child").start(1_100L).finish(1_200L)
+		when: 'it expires, and a later span schedules a sweep'
+			now = Duration.ofSeconds(2).toNanos()
+			tracer.newTrace().name("tick").start(2_000L).finish(2_100L)
+		then: 'the next trace is collected again'
+			conditions.eventually {
+				def server = tracer.newTrace().kind(Kind.SERVER).name("get /next").start(3_000L)
+				tracer.newChild(server.context()).name("child").start(3_100L).finish(3_200L)
+				server.finish(3_300L)
+				assert handler.tracesTagged() >= 1
+			}
+		cleanup:
+			tracing?.close()
+			handler?.close()
+	}
+
+	def 'Should pass spans on untouched when disabled'() {
+		given:
+			def handler = CriticalPathHandler.disabled()
+			def tracing = Tracing.newBuilder().addSpanHandler(handler).build()
+		when:
+			def server = tracing.tracer().newTrace().kind(Kind.SERVER).name("get /").start(1_000L)
+			server.finish(2_000L)
+		then:
+			handler.tracesTagged() == 0
+		cleanup:
+			tracing?.close()
+			handler?.close()
+	}
+
+	def 'Should tag server spans when enabled in the module'() {
+		given:
+			def app = ratpack {
+				bindings {
+					module(ServerTracingModule.class, { config ->
+						config
+							.serviceName("embedded")
+							.sampler(Sampler.ALWAYS_SAMPLE)
+							.spanReporterV2(reporter)
+							.criticalPath(true)
+					})
+				}
+				handlers { chain ->
+					chain.get("quote") { ctx ->
+						def tracer = ctx.get(Tracing).tracer()
+						def price = tracer.nextSpan().name("price").start()
+						Thread.sleep(10)
+						price.finish()
+						ctx.render("quote")
+					}
+				}
+			}
+		when:
+			app.httpClient.getText("quote")
+		then:
+			def span = awaitServerSpan()
+			span.tags()[CriticalPathHandler.CRITICAL_PATH_TAG].startsWith("price=")
+			span.tags().containsKey(CriticalPathHandler.SELF_TAG)
+			app.server.registry.get().get(CriticalPathHandler).tracesTagged() == 1
+		cleanup:
+			app.close()
+	}
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin
+
+import brave.http.HttpServerRequest
+import brave.sampler.SamplerFunctions
+import spock.lang.Specification
+
+import java.util.concurrent.TimeUnit
+import java.util.function.LongSupplier
+
+class DebugSamplerSpec extends Specification {
+
+	long now = 0L
+	DebugSampler sampler = new DebugSampler("X-Debug-Trace", 2, { -> now } as LongSupplier)
+
+	static HttpServerRequest request(String debugHeader) {
+		new HttpServerRequest() {
+			@Override Object unwrap() { null }
+			@Override String method() { "GET" }
+			@Override String path() { "/" }
+			@Override String url() { null }
+			@Override String header(String name) { name == "X-Debug-Trace" ? debugHeader : null }
+		}
+	}
+
+	def 'Should not force requests without the header'() {
+		expect:
+			sampler.trySample(request(null)) == null
+			sampler.trySample(request("false")) == null
+			sampler.honoured() == 0
+			sampler.denied() == 0
+	}
+
+	def 'Should force sampling up to the limit, then fall back'() {
+		given:
+			def composed = sampler.orElse(SamplerFunctions.neverSample())
+		expect:
+			composed.trySample(request("1"))
+			composed.trySample(request("1"))
+			!composed.trySample(request("1"))
+			sampler.honoured() == 2
+			sampler.denied() == 1
+	}
+
+	def 'Should refill permits over time, up to the burst'() {
+		given:
+			sampler.trySample(request("1"))
+			sampler.trySample(request("1"))
+		when:
+			now += TimeUnit.MILLISECONDS.toNanos(500)
+		then:
+			sampler.trySample(request("1"))
+			sampler.trySample(request("1")) == null
+		when:
+			now += TimeUnit.SECONDS.toNanos(10)
+		then:
+			sampler.trySample(request("1"))
+			sampler.trySample(request("1"))
+			sampler.trySample(request("1")) == null
+	}
+}
@@ -0,0 +1,189 @@
+/**
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin
+
+import brave.Tracing
+import brave.sampler.Sampler
+import ratpack.exec.Promise
+import ratpack.zipkin.support.TestReporter
+import spock.lang.AutoCleanup
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.time.Duration
+import java.util.concurrent.TimeUnit
+import java.util.function.BooleanSupplier
+import java.util.function.LongSupplier
+
+import static ratpack.groovy.test.embed.GroovyEmbeddedApp.ratpack
+
+class InFlightRequestsSpec extends Specification {
+
+	TestReporter reporter = new TestReporter()
+
+	@AutoCleanup
+	Tracing tracing = Tracing.newBuilder().spanReporter(reporter).build()
+
+	long now = 0L
+
+	InFlightRequests tracker = new InFlightRequests(Duration.ofSeconds(30), { -> now } as LongSupplier)
+
+	brave.Span serverSpan() {
+		tracing.tracer().newTrace().kind(brave.Span.Kind.SERVER).name("get").start()
+	}
+
+	def 'Should report requests older than the timeout as abandoned'() {
+		given:
+			def hung = tracker.track(serverSpan(), "GET", "hung")
+			def done = tracker.track(serverSpan(), "GET", "done")
+		when:
+			tracker.complete(done)
+			now += TimeUnit.SECONDS.toNanos(31)
+			tracker.abandonExpired()
+		then:
+			reporter.spans.size() == 1
+			reporter.spans.first().id() == hung.spanId
+			reporter.spans.first().tags().error == InFlightRequests.ABANDONED
+			tracker.requestsAbandoned() == 1
+			tracker.size() == 0
+	}
+
+	def 'Should name abandoned spans with the method and path'() {
+		given:
+			tracker.track(serverSpan(), "GET", "items/1")
+		when:
+			now += TimeUnit.SECONDS.toNanos(31)
+			tracker.abandonExpired()
+		then:
+			reporter.spans.first().name() == "get /items/1"
+	}
+
+	def 'Should leave the span of a request whose response was sent concurrently'() {
+		given:
+			tracker.track(serverSpan(), "GET", "sent", { -> false } as BooleanSupplier)
+		when:
+			now += TimeUnit.SECONDS.toNanos(31)
+			tracker.abandonExpired()
+		then:
+			reporter.spans.empty
+			tracker.requestsAbandoned() == 0
+			tracker.size() == 0
+	}
+
+	def 'Should only stop tracking a span ID for the request which tracked it'() {
+		given: 'two requests joining the same client span'
+			def client = tracing.tracer().newTrace().context()
+			def first = tracker.track(tracing.tracer().joinSpan(client).start(), "GET", "first")
+			def second = tracker.track(tracing.tracer().joinSpan(client).start(), "GET", "second")
+		when:
+			tracker.complete(first)
+		then:
+			first.spanId == second.spanId
+			tracker.oldest(2)*.path == ["second"]
+	}
+
+	def 'Should not abandon expired requests while tracking new ones'() {
+		given:
+			tracker.track(serverSpan(), "GET", "hung")
+		when:
+			now += TimeUnit.SECONDS.toNanos(31)
+			tracker.track(serverSpan(), "GET", "new")
+		then:
+			tracker.requestsAbandoned() == 0
+			tracker.size() == 2
+	}
+
+	def 'Should abandon expired requests in the background once started, with no new requests'() {
+		given:
+			def background = InFlightRequests.create(Duration.ofMillis(200))
+			background.track(serverSpan(), "GET", "hung")
+		when:
+			background.start()
+		then:
+			new PollingConditions(timeout: 5).eventually {
+				assert background.requestsAbandoned() == 1
+			}
+			reporter.spans.first().tags().error == InFlightRequests.ABANDONED
+		cleanup:
+			background.close()
+	}
+
+	def 'Should stop looking for expired requests once closed'() {
+		given:
+			def background = InFlightRequests.create(Duration.ofMillis(200))
+			background.start()
+		when:
+			background.close()
+			background.track(serverSpan(), "GET", "hung")
+			Thread.sleep(500)
+		then:
+			background.requestsAbandoned() == 0
+	}
+
+	def 'Should close the scope of an abandoned request on its execution'() {
+		given:
+			List<Object> contexts = []
+			def app = ratpack {
+				bindings {
+					module(ServerTracingModule.class, { config ->
+						config
+							.serviceName("embedded")
+							.sampler(Sampler.ALWAYS_SAMPLE)
+							.spanReporterV2(reporter)
+							.inFlightRequestTimeout(Duration.ofMillis(200))
+					})
+				}
+				handlers { chain ->
+					chain.get("slow") { ctx ->
+						def current = ctx.get(Tracing).currentTraceContext()
+						Promise.value("slow").defer(Duration.ofSeconds(1)).then {
+							contexts << (current.get() ?: "none")
+							ctx.render(it)
+						}
+					}
+				}
+			}
+		when:
+			def response = app.httpClient.getText("slow")
+		then:
+			response == "slow"
+			contexts == ["none"]
+			reporter.spans.size() == 1
+			reporter.spans.first().name() == "get /slow"
+			reporter.spans.first().tags().error == InFlightRequests.ABANDONED
+		cleanup:
+			app.close()
+	}
+
+	def 'Should list the oldest requests in flight, oldest first'() {
+		given:
+			(1..5).each {
+				tracker.track(serverSpan(), "GET", "r" + it)
+				now += TimeUnit.MILLISECONDS.toNanos(10)
+			}
+		when:
+			def oldest = tracker.oldest(3)
+		then:
+			oldest*.path == ["r1", "r2", "r3"]
+			oldest.first().age == Duration.ofMillis(50)
+	}
+
+	def 'Should track nothing when disabled'() {
+		given:
+			def disabled = InFlightRequests.disabled()
+		expect:
+			disabled.track(serverSpan(), "GET", "path") == null
+			disabled.oldest(10).empty
+	}
+}
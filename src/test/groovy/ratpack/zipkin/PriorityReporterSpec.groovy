@@ -0,0 +1,122 @@
+/**
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin
+
+import ratpack.zipkin.PriorityReporter.Priority
+import ratpack.zipkin.support.TestReporter
+import spock.lang.Specification
+import spock.lang.Unroll
+import spock.util.concurrent.PollingConditions
+import zipkin2.Span
+import zipkin2.reporter.Reporter
+
+import java.time.Duration
+import java.util.function.LongSupplier
+
+class PriorityReporterSpec extends Specification {
+
+	TestReporter downstream = new TestReporter()
+
+	static Span span(String name, Map<String, String> tags = [:], long duration = 10L) {
+		def builder = Span.newBuilder().traceId("1").id(Integer.toHexString(name.hashCode() & 0xffff)).name(name).duration(duration)
+		tags.each { key, value -> builder.putTag(key, value) }
+		builder.build()
+	}
+
+	@Unroll
+	def 'Should classify #name as #priority'() {
+		given:
+			def reporter = PriorityReporter.newBuilder(downstream).drainInterval(Duration.ZERO).build()
+		expect:
+			reporter.classify(input) == priority
+		cleanup:
+			reporter.close()
+		where:
+			name           | input                                                  | priority
+			"a 5xx"        | span("get", ["http.status_code": "503", error: "503"]) | Priority.ERROR
+			"an exception" | span("get", [error: "boom"])                           | Priority.ERROR
+			"a 4xx"        | span("get", ["http.status_code": "404", error: "404"]) | Priority.NORMAL
+			"a slow span"  | span("get", [:], 2_000_000L)                           | Priority.SLOW
+			"a fast span"  | span("get")                                            | Priority.NORMAL
+	}
+
+	def 'Should drain errors first, then slow spans, then normal spans'() {
+		given:
+			def reporter = PriorityReporter.newBuilder(downstream).drainInterval(Duration.ZERO).build()
+			def normal = span("normal")
+			def slow = span("slow", [:], 5_000_000L)
+			def error = span("error", [error: "boom"])
+		when:
+			[normal, slow, error].each { reporter.report(it) }
+			reporter.flush()
+		then:
+			downstream.spans == [error, slow, normal]
+			Priority.values().every { reporter.spansReported(it) == 1 }
+		cleanup:
+			reporter.close()
+	}
+
+	def 'Should shed normal spans first when the delegate backlog is full'() {
+		given:
+			long backlog = 0L
+			def reporter = PriorityReporter.newBuilder({ Span span -> downstream.report(span); backlog++ } as Reporter)
+				.drainInterval(Duration.ZERO)
+				.queuedMaxSpans(Priority.NORMAL, 2)
+				.backlog({ -> backlog } as LongSupplier, 2)
+				.build()
+		when:
+			3.times { reporter.report(span("normal $it")) }
+			reporter.report(span("error", [error: "boom"]))
+			reporter.report(span("slow", [:], 5_000_000L))
+			reporter.flush()
+		then:
+			downstream.spans*.name() == ["error", "slow"]
+			reporter.spansDropped(Priority.NORMAL) == 1
+			reporter.spansDropped(Priority.ERROR) == 0
+			reporter.queuedSpans() == 2
+		when:
+			backlog = 0L
+			reporter.flush()
+		then:
+			downstream.spans*.name() == ["error", "slow", "normal 0", "normal 1"]
+		cleanup:
+			reporter.close()
+	}
+
+	def 'Should drop spans reported after close, counting them by class'() {
+		given:
+			def reporter = PriorityReporter.newBuilder(downstream).drainInterval(Duration.ZERO).build()
+		when:
+			reporter.close()
+			reporter.report(span("error", [error: "boom"]))
+			reporter.report(span("normal"))
+		then:
+			downstream.spans.empty
+			reporter.spansDropped(Priority.ERROR) == 1
+			reporter.spansDropped(Priority.NORMAL) == 1
+	}
+
+	def 'Should drain in the background'() {
+		given:
+			def reporter = PriorityReporter.newBuilder(downstream).drainInterval(Duration.ofMillis(10)).build()
+		when:
+			reporter.report(span("normal"))
+		then:
+			new PollingConditions(timeout: 5).eventually {
+				assert downstream.spans*.name() == ["normal"]
+			}
+		cleanup:
+			reporter.close()
+	}
+}
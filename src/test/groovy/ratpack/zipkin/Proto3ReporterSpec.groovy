@@ -0,0 +1,197 @@
+/**
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin
+
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.ByteBufUtil
+import io.netty.buffer.Unpooled
+import ratpack.zipkin.internal.Proto3SpanWriter
+import ratpack.zipkin.support.ZipkinCollector
+import spock.lang.Specification
+import zipkin2.Endpoint
+import zipkin2.Span
+import zipkin2.codec.SpanBytesDecoder
+import zipkin2.codec.Encoding
+import zipkin2.codec.SpanBytesEncoder
+
+import java.time.Duration
+
+class Proto3ReporterSpec extends Specification {
+
+	static Span serverSpan = Span.newBuilder()
+		.traceId("463ac35c9f6413ad48485a3953bb6124")
+		.parentId("1")
+		.id("2")
+		.kind(Span.Kind.SERVER)
+		.name("get /items/:id")
+		.timestamp(1472470996199000L)
+		.duration(207000L)
+		.localEndpoint(Endpoint.newBuilder().serviceName("frontend").ip("192.168.99.101").port(9000).build())
+		.remoteEndpoint(Endpoint.newBuilder().ip("2001:db8::c001").port(63000).build())
+		.addAnnotation(1472470996238000L, "ws")
+		.putTag("http.path", "/items/1")
+		.putTag("http.status_code", "200")
+		.putTag("empty", "")
+		.putTag("unicode", "ü€")
+		.shared(true)
+		.build()
+
+	static Span clientSpan = Span.newBuilder()
+		.traceId("7")
+		.id("8")
+		.kind(Span.Kind.CLIENT)
+		.name("")
+		.localEndpoint(Endpoint.newBuilder().serviceName("").build())
+		.debug(true)
+		.build()
+
+	List<byte[]> messages = []
+	ByteBufSender sender = { ByteBuf message -> messages << ByteBufUtil.getBytes(message) } as ByteBufSender
+
+	def 'Should write the same bytes as the zipkin Proto3 encoder'() {
+		given:
+			ByteBuf buf = Unpooled.buffer()
+		when:
+			Proto3SpanWriter.write(serverSpan, buf)
+			Proto3SpanWriter.write(clientSpan, buf)
+		then:
+			ByteBufUtil.getBytes(buf) == SpanBytesEncoder.PROTO3.encodeList([serverSpan, clientSpan])
+			buf.readableBytes() == Proto3SpanWriter.sizeInBytes(serverSpan) + Proto3SpanWriter.sizeInBytes(clientSpan)
+		cleanup:
+			buf.release()
+	}
+
+	def 'Should send queued spans when flushed'() {
+		given:
+			def reporter = Proto3Reporter.newBuilder(sender).messageTimeout(Duration.ZERO).build()
+		when:
+			reporter.report(serverSpan)
+			reporter.report(clientSpan)
+			reporter.flush()
+		then:
+			messages.size() == 1
+			SpanBytesDecoder.PROTO3.decodeList(messages[0]) == [serverSpan, clientSpan]
+			reporter.spansSent() == 2
+			reporter.queuedSpans() == 0
+		cleanup:
+			reporter.close()
+	}
+
+	def 'Should split batches at the maximum message size, reusing the buffer'() {
+		given:
+			int spanSize = Proto3SpanWriter.sizeInBytes(serverSpan)
+			def reporter = Proto3Reporter.newBuilder(sender)
+				.messageTimeout(Duration.ZERO)
+				.messageMaxBytes(spanSize * 2)
+				.build()
+		when:
+			5.times { reporter.report(serverSpan) }
+			reporter.flush()
+		then:
+			messages*.size() == [spanSize * 2, spanSize * 2, spanSize]
+			messages.collectMany { SpanBytesDecoder.PROTO3.decodeList(it) }.size() == 5
+		cleanup:
+			reporter.close()
+	}
+
+	def 'Should drop spans over capacity or too large for a message'() {
+		given:
+			def reporter = Proto3Reporter.newBuilder(sender)
+				.messageTimeout(Duration.ZERO)
+				.queuedMaxSpans(2)
+				.messageMaxBytes(Proto3SpanWriter.sizeInBytes(clientSpan))
+				.build()
+		when:
+			reporter.report(clientSpan)
+			reporter.report(serverSpan)
+			reporter.report(clientSpan)
+			reporter.flush()
+		then:
+			reporter.spansSent() == 1
+			reporter.spansDropped() == 2
+		cleanup:
+			reporter.close()
+	}
+
+	def 'Should count failed messages and keep reporting'() {
+		given:
+			int attempts = 0
+			def failing = { ByteBuf message -> if (attempts++ == 0) throw new IOException("down") } as ByteBufSender
+			def reporter = Proto3Reporter.newBuilder(failing).messageTimeout(Duration.ZERO).build()
+		when:
+			reporter.report(serverSpan)
+			reporter.flush()
+			reporter.report(serverSpan)
+			reporter.flush()
+		then:
+			reporter.messagesFailed() == 1
+			reporter.messagesSent() == 1
+			reporter.spansDropped() == 1
+		cleanup:
+			reporter.close()
+	}
+
+	def 'Should flush on close and drop spans reported afterwards'() {
+		given:
+			def reporter = Proto3Reporter.newBuilder(sender).messageTimeout(Duration.ZERO).build()
+		when:
+			reporter.report(serverSpan)
+			reporter.close()
+			reporter.report(serverSpan)
+			reporter.flush()
+		then:
+			messages.size() == 1
+			reporter.spansDropped() == 1
+	}
+
+	def 'Should post messages to a zipkin server'() {
+		given:
+			def collector = ZipkinCollector.start()
+			def reporter = Proto3Reporter.newBuilder(ByteBufSender.http(collector.spansEndpoint().toString()))
+				.messageTimeout(Duration.ZERO)
+				.build()
+		when:
+			reporter.report(serverSpan)
+			reporter.report(clientSpan)
+			reporter.flush()
+		then:
+			collector.spans == [serverSpan, clientSpan]
+			collector.messages*.encoding == [Encoding.PROTO3]
+			reporter.messagesSent() == 1
+		cleanup:
+			reporter.close()
+			collector.close()
+	}
+
+	def 'Should count messages rejected by a zipkin server and keep reporting'() {
+		given:
+			def collector = ZipkinCollector.start().failNext(1)
+			def reporter = Proto3Reporter.newBuilder(ByteBufSender.http(collector.spansEndpoint().toString()))
+				.messageTimeout(Duration.ZERO)
+				.build()
+		when:
+			reporter.report(clientSpan)
+			reporter.flush()
+			reporter.report(serverSpan)
+			reporter.flush()
+		then:
+			collector.messagesFailed() == 1
+			collector.spans == [serverSpan]
+			reporter.messagesFailed() == 1
+			reporter.messagesSent() == 1
+		cleanup:
+			reporter.close()
+			collector.close()
+	}
+}
@@ -1,5 +1,5 @@
 /**
- * Copyright 2016-2019 The OpenZipkin Authors
+ * Copyright 2016-2026 The OpenZipkin Authors
  *
  * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
  * in compliance with the License. You may obtain a copy of the License at
@@ -13,6 +13,7 @@
  */
 package ratpack.zipkin
 
+import brave.CurrentSpanCustomizer
 import brave.SpanCustomizer
 import brave.Tracer
 import brave.http.HttpSampler
@@ -21,6 +22,10 @@ import brave.sampler.Sampler
 import io.netty.handler.codec.http.HttpResponseStatus
 import okhttp3.mockwebserver.MockResponse
 import okhttp3.mockwebserver.MockWebServer
+import ratpack.exec.Blocking
+import ratpack.exec.Execution
+import ratpack.exec.Promise
+import ratpack.exec.util.Promised
 import ratpack.form.Form
 import ratpack.handling.Context
 import ratpack.handling.Handler
@@ -32,10 +37,15 @@ import ratpack.zipkin.support.B3PropagationHeaders
 import ratpack.zipkin.support.TestReporter
 import spock.lang.Specification
 import spock.lang.Unroll
+import spock.util.concurrent.PollingConditions
 import zipkin2.Span
 import zipkin2.reporter.Reporter
 
 import java.time.Duration
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
 
 import static org.assertj.core.api.Assertions.assertThat
 import static ratpack.groovy.test.embed.GroovyEmbeddedApp.ratpack
@@ -408,7 +418,8 @@ class ServerTracingModuleSpec extends Specification {
 			assertThat(reporter.getSpans()).isNotEmpty()
 	}
 
-	def 'Should nest client span and server span should have the same trace id'() {
+	@Unroll
+	def 'Should nest client span and server span should have the same trace id (lazy: #lazy)'() {
 		given:
 			def webServer = new MockWebServer()
 			webServer.start()
@@ -422,15 +433,16 @@ class ServerTracingModuleSpec extends Specification {
 								.serviceName("embedded")
 								.sampler(Sampler.ALWAYS_SAMPLE)
 								.spanReporterV2(reporter)
+								.lazyContextPropagation(lazy)
 					})
 				}
 				handlers {
 					chain ->
 						chain.all {
 							ctx ->
-								// this reconfiguration can be avoided if we can lookup a binding with an annotation.
+								// an untraced client: the registry may return the traced one bound with @Zipkin
 								def ic = ctx.get(ClientTracingInterceptor.class)
-								def client = ctx.get(HttpClient.class).copyWith({ s->
+								def client = HttpClient.of({ s->
 									s.requestIntercept(ic.&request)
 									s.responseIntercept(ic.&response)
 									s.errorIntercept(ic.&error)
@@ -447,15 +459,126 @@ class ServerTracingModuleSpec extends Specification {
 					spec.get()
 				}
 			}
-			def spans = reporter.getSpans()
 		then: 'the correct number of spans is reported (one server span, one client span)'
-			assertThat(spans).isNotEmpty()
-			assertThat(spans).hasSize(2)
+			// the client span is finished in the fork running the response intercept, which may
+			// still run after the response was sent
+			new PollingConditions(timeout: 5).eventually {
+				assert reporter.getSpans().size() == 2
+			}
+			def spans = reporter.getSpans()
 		and: 'contains both server and client span kinds'
 			assertThat(spans*.kind()).contains(Span.Kind.SERVER, Span.Kind.CLIENT)
+		and: 'the client span is a child of the server span'
+			spans.find { it.kind() == Span.Kind.CLIENT }.parentId() == spans.find { it.kind() == Span.Kind.SERVER }.id()
+		cleanup:
+			webServer.shutdown()
+		where:
+			lazy << [false, true]
+	}
+
+	@Unroll
+	def 'Should not complete a client span in flight with the error of a fork (lazy: #lazy)'() {
+		given:
+			def webServer = new MockWebServer()
+			webServer.start()
+			webServer.enqueue(new MockResponse().setResponseCode(200).setHeadersDelay(300, TimeUnit.MILLISECONDS))
+			def url = webServer.url("/backend")
+		and: 'a handler whose request fails in a fork, while a request of its own is in flight'
+			def app = ratpack {
+				bindings {
+					module(ServerTracingModule.class, { config ->
+						config
+								.serviceName("embedded")
+								.sampler(Sampler.ALWAYS_SAMPLE)
+								.spanReporterV2(reporter)
+								.lazyContextPropagation(lazy)
+					})
+				}
+				handlers {
+					chain ->
+						chain.all {
+							ctx ->
+								def ic = ctx.get(ClientTracingInterceptor.class)
+								def client = HttpClient.of({ s->
+									s.requestIntercept(ic.&request)
+									s.responseIntercept(ic.&response)
+									s.errorIntercept(ic.&error)
+								})
+								def forked = new Promised<String>()
+								Execution.fork().start {
+									Promise.value("invalid")
+										.defer(Duration.ofMillis(100))
+										.flatMap { client.get(URI.create("http://localhost:1/")) { spec -> throw new IllegalStateException("invalid request") } }
+										.result { r -> forked.success(r.throwable.message) }
+								}
+								client.get(url.url().toURI())
+									.flatMap { resp -> forked.promise() }
+									.then { message -> ctx.render(message) }
+						}
+				}
+			}
+		when:
+			def response = app.httpClient.get()
+		then:
+			response.body.text == "invalid request"
+		and: 'the request in flight is finished by its own response, without the error'
+			new PollingConditions(timeout: 5).eventually {
+				def span = reporter.spans.find { it.kind() == Span.Kind.CLIENT && it.tags()["http.path"] == "/backend" }
+				assert span != null
+				assert !span.tags().containsKey("error")
+			}
 		cleanup:
+			app.close()
 			webServer.shutdown()
+		where:
+			lazy << [false, true]
+	}
 
+	@Unroll
+	def 'Should keep a fork that traces after the response in the server trace (lazy: #lazy)'() {
+		given:
+			def finished = new CountDownLatch(1)
+			def app = ratpack {
+				bindings {
+					module(ServerTracingModule.class, { config ->
+						config
+								.serviceName("embedded")
+								.sampler(Sampler.ALWAYS_SAMPLE)
+								.spanReporterV2(reporter)
+								.lazyContextPropagation(lazy)
+					})
+				}
+				handlers {
+					chain ->
+						chain.all {
+							ctx ->
+								def tracer = ctx.get(Tracer)
+								Execution.fork().start {
+									Promise.value("after")
+										.defer(Duration.ofMillis(200))
+										.then { name ->
+											tracer.nextSpan().name(name).start().finish()
+											finished.countDown()
+										}
+								}
+								ctx.render("done")
+						}
+				}
+			}
+		when:
+			def response = app.httpClient.get()
+		then:
+			response.body.text == "done"
+			finished.await(5, TimeUnit.SECONDS)
+		and: 'the fork still has the context of the server span it was forked from'
+			def server = reporter.spans.find { it.kind() == Span.Kind.SERVER }
+			def after = reporter.spans.find { it.name() == "after" }
+			after.traceId() == server.traceId()
+			after.parentId() == server.id()
+		cleanup:
+			app.close()
+		where:
+			lazy << [false, true]
 	}
 
 	def 'Should customize current span'() {
@@ -491,6 +614,204 @@ class ServerTracingModuleSpec extends Specification {
 		span.tags().get("key1") == "one"
 		span.tags().get("key2") == "two"
 	}
+
+	def 'Should bind the server span customizer in the context registry'() {
+		given:
+		def app = ratpack {
+			bindings {
+				module(ServerTracingModule.class, { config ->
+					config
+							.serviceName("embedded")
+							.sampler(Sampler.create(1f))
+							.spanReporterV2(reporter)
+				})
+			}
+			handlers { chain ->
+				chain.all { ctx ->
+					def customizer = ctx.get(SpanCustomizer)
+					Blocking.get { "value" }.then { value ->
+						customizer.tag("after.blocking", value)
+						ctx.render(customizer instanceof CurrentSpanCustomizer ? "current" : "bound")
+					}
+				}
+			}
+		}
+		when:
+		String body = null
+		app.test { t -> body = t.getText() }
+		then:
+		body == "bound"
+		reporter.getSpans().size() == 1
+		reporter.getSpans().get(0).tags().get("after.blocking") == "value"
+	}
+
+	def 'Should record local spans for @Traced methods'() {
+		given:
+		def app = ratpack {
+			bindings {
+				module(ServerTracingModule.class, { config ->
+					config
+							.serviceName("embedded")
+							.sampler(Sampler.create(1f))
+							.spanReporterV2(reporter)
+				})
+				bind(TracedService)
+			}
+			handlers { chain ->
+				chain.all { ctx ->
+					def service = ctx.get(TracedService)
+					service.load(service.lookup()).then { value -> ctx.render(value) }
+				}
+			}
+		}
+		when:
+		String body = null
+		app.test { t -> body = t.getText() }
+		then:
+		body == "loaded key"
+		reporter.getSpans().size() == 3
+		Span server = reporter.getSpans().find { it.kind() == Span.Kind.SERVER }
+		Span lookup = reporter.getSpans().find { it.name() == "lookup" }
+		Span load = reporter.getSpans().find { it.name() == "load value" }
+		lookup.parentId() == server.id()
+		lookup.tags().get("class") == "TracedService"
+		load.parentId() == server.id()
+		load.tags().get("method") == "load"
+		load.timestampAsLong() + load.durationAsLong() >= lookup.timestampAsLong() + lookup.durationAsLong()
+	}
+
+	def 'Should not record local spans for @Traced methods when unsampled'() {
+		given:
+		def app = ratpack {
+			bindings {
+				module(ServerTracingModule.class, { config ->
+					config
+							.serviceName("embedded")
+							.sampler(Sampler.NEVER_SAMPLE)
+							.spanReporterV2(reporter)
+				})
+				bind(TracedService)
+			}
+			handlers { chain ->
+				chain.all { ctx -> ctx.render(ctx.get(TracedService).lookup()) }
+			}
+		}
+		when:
+		app.test { t -> t.get() }
+		then:
+		reporter.getSpans().isEmpty()
+	}
+
+	def 'Should call @Traced methods untouched outside a Ratpack execution'() {
+		given:
+		def app = ratpack {
+			bindings {
+				module(ServerTracingModule.class, { config ->
+					config
+							.serviceName("embedded")
+							.sampler(Sampler.ALWAYS_SAMPLE)
+							.spanReporterV2(reporter)
+				})
+				bind(TracedService)
+			}
+			handlers { chain ->
+				chain.all { ctx -> ctx.render("ok") }
+			}
+		}
+		app.address // starts the server
+		def service = app.server.registry.get().get(TracedService)
+		def executor = Executors.newSingleThreadExecutor()
+		when:
+		def value = executor.submit({ service.lookup() } as Callable).get()
+		then:
+		value == "key"
+		reporter.getSpans().isEmpty()
+		cleanup:
+		executor.shutdown()
+		app.close()
+	}
+
+	def 'Should start the span of a @Traced promise when it is subscribed to'() {
+		given:
+		def app = ratpack {
+			bindings {
+				module(ServerTracingModule.class, { config ->
+					config
+							.serviceName("embedded")
+							.sampler(Sampler.ALWAYS_SAMPLE)
+							.spanReporterV2(reporter)
+				})
+				bind(TracedService)
+			}
+			handlers { chain ->
+				chain.get("unused") { ctx ->
+					ctx.get(TracedService).load("key")
+					ctx.render("unused")
+				}
+				chain.get("late") { ctx ->
+					def promise = ctx.get(TracedService).load("key")
+					Blocking.op { Thread.sleep(100) }.then {
+						promise.then { value -> ctx.render(value) }
+					}
+				}
+			}
+		}
+		when:
+		app.test { t ->
+			t.getText("unused")
+			t.getText("late")
+		}
+		then: 'the promise which was never subscribed to has no span'
+		reporter.getSpans().findAll { it.name() == "load value" }.size() == 1
+		and: 'nor is the wait before subscribing part of it'
+		reporter.getSpans().find { it.name() == "load value" }.durationAsLong() < 100_000L
+	}
+
+	def 'Should not write a Server-Timing header by default'() {
+		given:
+		def app = ratpack {
+			bindings {
+				module(ServerTracingModule.class)
+			}
+			handlers { chain ->
+				chain.all { ctx -> ctx.render("foo") }
+			}
+		}
+		when:
+		def headers = null
+		app.test { t -> headers = t.get().headers }
+		then:
+		!headers.contains("Server-Timing")
+	}
+
+	def 'Should write a Server-Timing header with the time in blocking operations'() {
+		given:
+		def app = ratpack {
+			bindings {
+				module(ServerTracingModule.class, { config ->
+					config
+							.serviceName("embedded")
+							.sampler(Sampler.create(1f))
+							.spanReporterV2(reporter)
+							.serverTimingBreakdown(true)
+				})
+			}
+			handlers { chain ->
+				chain.all { ctx ->
+					Blocking.get { sleep(20); "foo" }.then { ctx.render(it) }
+				}
+			}
+		}
+		when:
+		String header = null
+		app.test { t -> header = t.get().headers.get("Server-Timing") }
+		then:
+		header ==~ /total;dur=\d+\.\d, client;dur=0\.0;desc="0", blocking;dur=\d+\.\d;desc="1"/
+		def durations = (header =~ /dur=(\d+\.\d)/).collect { it[1] as BigDecimal }
+		durations[2] >= 20
+		durations[0] >= durations[2]
+	}
+
 	def 'Should allow span name customization'() {
 		given:
             def app = ratpack {
@@ -653,3 +974,16 @@ class ServerTracingModuleSpec extends Specification {
 			((DefaultHttpClient)client).responseInterceptor
 	}
 }
+
+class TracedService {
+
+	@Traced
+	String lookup() {
+		"key"
+	}
+
+	@Traced("load value")
+	Promise<String> load(String key) {
+		Blocking.get { "loaded " + key }
+	}
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin
+
+import brave.Tracer
+import brave.http.HttpTracing
+import brave.sampler.Sampler
+import ratpack.http.client.HttpClient
+import ratpack.http.client.internal.DefaultHttpClient
+import ratpack.test.embed.EmbeddedApp
+import ratpack.zipkin.support.TestReporter
+import spock.lang.Specification
+import zipkin2.Span
+
+class ServerTracingRegistrySpec extends Specification {
+
+	TestReporter reporter = new TestReporter()
+
+	def 'Should collect server spans without Guice'() {
+		given:
+			def app = EmbeddedApp.of { server ->
+				server
+					.registry(ServerTracingRegistry.of { config ->
+						config
+							.serviceName("embedded")
+							.sampler(Sampler.ALWAYS_SAMPLE)
+							.spanReporterV2(reporter)
+					})
+					.handlers { chain ->
+						chain.all { ctx -> ctx.render("foo") }
+					}
+			}
+		when:
+			app.test { t -> t.get() }
+		then:
+			reporter.getSpans().size() == 1
+			reporter.getSpans().get(0).kind() == Span.Kind.SERVER
+	}
+
+	def 'Should provide tracing objects and a traced http client'() {
+		given:
+			def app = EmbeddedApp.of { server ->
+				server
+					.registry(ServerTracingRegistry.of { config -> config.serviceName("embedded") })
+					.handlers { chain ->
+						chain.all { ctx -> ctx.render("foo") }
+					}
+			}
+		when:
+			app.test { t -> t.get() }
+			def registry = app.server.registry.get()
+		then:
+			registry.get(HttpTracing)
+			registry.get(Tracer)
+			((DefaultHttpClient) registry.get(HttpClient)).requestInterceptor
+			((DefaultHttpClient) registry.get(HttpClient)).responseInterceptor
+	}
+}
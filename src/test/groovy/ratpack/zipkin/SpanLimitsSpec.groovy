@@ -0,0 +1,96 @@
+/**
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin
+
+import brave.Tracing
+import ratpack.zipkin.support.TestReporter
+import spock.lang.Specification
+
+class SpanLimitsSpec extends Specification {
+
+	TestReporter reporter = new TestReporter()
+
+	Tracing newTracing(SpanLimits limits) {
+		Tracing.newBuilder().addSpanHandler(limits).spanReporter(reporter).build()
+	}
+
+	def 'Should drop tags and annotations over the limits, in order'() {
+		given:
+			def limits = new SpanLimits(2, SpanLimits.UNLIMITED, 1)
+			def tracing = newTracing(limits)
+		when:
+			tracing.tracer().newTrace().start()
+				.tag("a", "1").tag("b", "2").tag("c", "3")
+				.annotate("one").annotate("two")
+				.finish()
+		then:
+			def span = reporter.spans.first()
+			span.tags() == [a: "1", b: "2"]
+			span.annotations()*.value() == ["one"]
+			limits.tagsDropped() == 1
+			limits.annotationsDropped() == 1
+		cleanup:
+			tracing.close()
+	}
+
+	def 'Should truncate long tag values'() {
+		given:
+			def limits = new SpanLimits(SpanLimits.UNLIMITED, 4, SpanLimits.UNLIMITED)
+			def tracing = newTracing(limits)
+		when:
+			tracing.tracer().newTrace().start()
+				.tag("http.url", "http://localhost/?q=long")
+				.tag("short", "ok")
+				.finish()
+		then:
+			reporter.spans.first().tags() == ["http.url": "http", short: "ok"]
+			limits.tagValuesTruncated() == 1
+		cleanup:
+			tracing.close()
+	}
+
+	def 'Should not split surrogate pairs'() {
+		given:
+			def limits = new SpanLimits(SpanLimits.UNLIMITED, 2, SpanLimits.UNLIMITED)
+			def tracing = newTracing(limits)
+		when:
+			tracing.tracer().newTrace().start().tag("emoji", "a😀").finish()
+		then:
+			reporter.spans.first().tags().emoji == "a"
+		cleanup:
+			tracing.close()
+	}
+
+	def 'Should truncate, but keep, the error derived from an exception'() {
+		given:
+			def limits = new SpanLimits(1, 5, SpanLimits.UNLIMITED)
+			def tracing = newTracing(limits)
+		when:
+			tracing.tracer().newTrace().start()
+				.tag("a", "1")
+				.tag("b", "2")
+				.error(new IllegalStateException("a very long message"))
+				.finish()
+		then:
+			reporter.spans.first().tags() == [a: "1", error: "a ver"]
+		cleanup:
+			tracing.close()
+	}
+
+	def 'Should only be limited when a limit is configured'() {
+		expect:
+			!ServerTracingModule.createSpanLimits(new ServerTracingModule.Config()).isLimited()
+			ServerTracingModule.createSpanLimits(new ServerTracingModule.Config().maxTagValueLength(256)).isLimited()
+	}
+}
@@ -0,0 +1,240 @@
+/**
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin
+
+import spock.lang.Specification
+import zipkin2.Call
+import zipkin2.Callback
+import zipkin2.Span
+import zipkin2.codec.Encoding
+import zipkin2.codec.SpanBytesDecoder
+import zipkin2.codec.SpanBytesEncoder
+import zipkin2.reporter.Sender
+
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.time.Duration
+
+class SpoolReporterSpec extends Specification {
+
+	static class StubSender extends Sender {
+		boolean down
+		int messageMaxBytes = 500_000
+		List<List<Span>> messages = []
+
+		@Override Encoding encoding() { Encoding.PROTO3 }
+		@Override int messageMaxBytes() { messageMaxBytes }
+		@Override int messageSizeInBytes(List<byte[]> encodedSpans) { encoding().listSizeInBytes(encodedSpans) }
+
+		@Override
+		Call<Void> sendSpans(List<byte[]> encodedSpans) {
+			if (down) {
+				return new Call.Base<Void>() {
+					@Override protected Void doExecute() throws IOException { throw new IOException("down") }
+					@Override protected void doEnqueue(Callback<Void> callback) { callback.onError(new IOException("down")) }
+					@Override Call<Void> clone() { this }
+				}
+			}
+			messages << encodedSpans.collect { SpanBytesDecoder.PROTO3.decodeOne(it) }
+			return Call.create(null)
+		}
+	}
+
+	static Span span(String id) {
+		Span.newBuilder().traceId("1").id(id).name("get /").timestamp(1L).duration(2L).putTag("http.path", "/").build()
+	}
+
+	Path directory
+	StubSender sender = new StubSender()
+
+	def setup() {
+		directory = Files.createTempDirectory("spool")
+	}
+
+	def cleanup() {
+		directory.toFile().deleteDir()
+	}
+
+	SpoolReporter newReporter(Duration messageTimeout = Duration.ZERO) {
+		SpoolReporter.newBuilder(directory, sender)
+			.messageTimeout(messageTimeout)
+			.segmentBytes(1024)
+			.maxBytes(3 * 1024)
+			.build()
+	}
+
+	def 'Should forward spooled spans to the sender'() {
+		given:
+			def reporter = newReporter()
+		when:
+			reporter.report(span("a"))
+			reporter.report(span("b"))
+			def forwarded = reporter.forward()
+		then:
+			forwarded == 2
+			sender.messages == [[span("a"), span("b")]]
+			reporter.spooledBytes() == 0
+		cleanup:
+			reporter.close()
+	}
+
+	def 'Should keep spans spooled while the sender fails'() {
+		given:
+			def reporter = newReporter()
+			sender.down = true
+			reporter.report(span("a"))
+		when:
+			reporter.forward()
+		then:
+			thrown(IOException)
+			reporter.messagesFailed() == 1
+			reporter.spooledBytes() > 0
+		when:
+			sender.down = false
+			reporter.forward()
+		then:
+			sender.messages == [[span("a")]]
+		cleanup:
+			reporter.close()
+	}
+
+	def 'Should rotate segments up to the disk cap, then drop spans'() {
+		given:
+			def reporter = newReporter()
+		when:
+			200.times { reporter.report(span(Integer.toHexString(it + 1))) }
+		then: 'spans are only queued by the reporting thread'
+			reporter.spansSpooled() == 0
+			Files.list(directory).count() == 1
+		when:
+			reporter.flush()
+		then:
+			Files.list(directory).count() == 3
+			reporter.spansDropped() > 0
+			reporter.spansSpooled() + reporter.spansDropped() == 200
+		when:
+			reporter.forward()
+		then: 'forwarded segments are deleted, except the one appended to'
+			sender.messages.flatten().size() == reporter.spansSpooled()
+			Files.list(directory).filter { it.toString().endsWith(".segment") }.count() == 1
+		cleanup:
+			reporter.close()
+	}
+
+	def 'Should split messages at the sender maximum'() {
+		given:
+			def reporter = newReporter()
+			sender.messageMaxBytes = 3 * SpanBytesEncoder.PROTO3.sizeInBytes(span("a"))
+			10.times { reporter.report(span("a")) }
+		when:
+			reporter.forward()
+		then:
+			sender.messages*.size() == [3, 3, 3, 1]
+			sender.messages.flatten().size() == 10
+		cleanup:
+			reporter.close()
+	}
+
+	def 'Should resume from the last forwarded span after a restart'() {
+		given:
+			def first = newReporter()
+			first.report(span("a"))
+			first.forward()
+			first.report(span("b"))
+			first.report(span("c"))
+			first.close()
+		when:
+			def second = newReporter()
+			second.forward()
+		then:
+			sender.messages == [[span("a")], [span("b"), span("c")]]
+		cleanup:
+			second.close()
+	}
+
+	def 'Should not forward a record torn by a crash'() {
+		given:
+			def first = newReporter()
+			first.report(span("a"))
+			first.report(span("b"))
+			first.close()
+			Path segment = Files.list(directory).filter { it.toString().endsWith(".segment") }.findFirst().get()
+			int secondRecord = SpoolReporter.HEADER_BYTES + firstRecordLength(segment)
+		and: 'corrupt the checksum of the second record'
+			FileChannel.open(segment, StandardOpenOption.WRITE).withCloseable {
+				it.write(ByteBuffer.allocate(4).putInt(0).flip() as ByteBuffer, secondRecord + 4)
+			}
+		when:
+			def second = newReporter()
+			second.forward()
+		then:
+			sender.messages == [[span("a")]]
+		cleanup:
+			second.close()
+	}
+
+	def 'Should forward in the background'() {
+		given:
+			def reporter = newReporter(Duration.ofMillis(10))
+		when:
+			reporter.report(span("a"))
+			def deadline = System.currentTimeMillis() + 5000
+			while (reporter.spansForwarded() == 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10)
+			}
+		then:
+			sender.messages == [[span("a")]]
+		cleanup:
+			reporter.close()
+	}
+
+	def 'Should drop spans when the queue is full'() {
+		given:
+			def reporter = SpoolReporter.newBuilder(directory, sender)
+				.messageTimeout(Duration.ZERO)
+				.queuedMaxSpans(2)
+				.build()
+		when:
+			3.times { reporter.report(span("a")) }
+			reporter.flush()
+		then:
+			reporter.spansSpooled() == 2
+			reporter.spansDropped() == 1
+		cleanup:
+			reporter.close()
+	}
+
+	def 'Should drop spans reported after close'() {
+		given:
+			def reporter = newReporter()
+		when:
+			reporter.close()
+			reporter.report(span("a"))
+		then:
+			reporter.spansDropped() == 1
+			reporter.spansSpooled() == 0
+	}
+
+	static int firstRecordLength(Path segment) {
+		FileChannel.open(segment, StandardOpenOption.READ).withCloseable {
+			ByteBuffer length = ByteBuffer.allocate(4)
+			it.read(length, 0)
+			length.flip()
+			length.getInt()
+		}
+	}
+}
@@ -0,0 +1,253 @@
+/**
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin
+
+import brave.Tracing
+import brave.propagation.TraceContext
+import brave.sampler.Sampler
+import ratpack.stream.Streams
+import ratpack.websocket.WebSocket
+import ratpack.websocket.WebSocketClose
+import ratpack.websocket.WebSocketHandler
+import ratpack.websocket.WebSocketMessage
+import ratpack.zipkin.internal.ProtocolUpgrade
+import ratpack.zipkin.support.TestReporter
+import ratpack.zipkin.support.WebSocketClient
+import spock.lang.AutoCleanup
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+import zipkin2.Span
+
+import static ratpack.groovy.test.embed.GroovyEmbeddedApp.ratpack
+
+class TracedConnectionsSpec extends Specification {
+
+	TestReporter reporter = new TestReporter()
+
+	@AutoCleanup
+	Tracing tracing = Tracing.newBuilder().spanReporter(reporter).build()
+
+	PollingConditions conditions = new PollingConditions(timeout: 5)
+
+	List<Object> sent = []
+	WebSocket socket = [send: { Object message -> sent << message }, isOpen: { true }] as WebSocket
+
+	static WebSocketMessage message(Object connection, String text) {
+		[getText: { text }, getOpenResult: { connection }, getConnection: { null }] as WebSocketMessage
+	}
+
+	static WebSocketClose close(Object connection, boolean fromClient) {
+		[isFromClient: { fromClient }, isFromServer: { !fromClient }, getOpenResult: { connection }] as WebSocketClose
+	}
+
+	WebSocketHandler<String> echo(List<TraceContext> contexts = []) {
+		def current = tracing.currentTraceContext()
+		new WebSocketHandler<String>() {
+			String onOpen(WebSocket webSocket) {
+				contexts << current.get()
+				webSocket.send("welcome")
+				"open"
+			}
+
+			void onMessage(WebSocketMessage<String> frame) {
+				contexts << current.get()
+				frame.connection.send(frame.text.toUpperCase())
+			}
+
+			void onClose(WebSocketClose<String> close) {
+			}
+		}
+	}
+
+	def 'Should record a WebSocket connection span with messages and bytes, and a span for one message in every N'() {
+		given:
+			List<Throwable> upgrades = []
+			def handler = TracedConnections.create(tracing, 2)
+				.traced("chat", echo(), null, { Throwable error -> upgrades << error } as ProtocolUpgrade)
+		when:
+			def connection = handler.onOpen(socket)
+			["a", "bb", "ü"].each { handler.onMessage(message(connection, it)) }
+			handler.onClose(close(connection, true))
+		then:
+			upgrades == [null]
+			sent == ["welcome", "A", "BB", "Ü"]
+			def span = reporter.spans.find { it.name() == "chat" }
+			span.tags()[TracedConnections.MESSAGES_RECEIVED_TAG] == "3"
+			span.tags()[TracedConnections.BYTES_RECEIVED_TAG] == "5"
+			span.tags()[TracedConnections.MESSAGES_SENT_TAG] == "4"
+			span.tags()[TracedConnections.BYTES_SENT_TAG] == "12"
+			span.tags()[TracedConnections.CLOSED_BY_TAG] == "client"
+			def messages = reporter.spans.findAll { it.name() == "chat message" }
+			messages*.tags()*.get(TracedConnections.MESSAGE_TAG) == ["0", "2"]
+			messages.every { it.parentId() == span.id() && it.traceId() == span.traceId() }
+	}
+
+	def 'Should run WebSocket handlers with the trace context in scope'() {
+		given:
+			List<TraceContext> contexts = []
+			def parent = tracing.tracer().newTrace().name("get /chat").start()
+			def handler = TracedConnections.create(tracing, 2).traced("chat", echo(contexts), parent.context(), null)
+		when:
+			def connection = handler.onOpen(socket)
+			["a", "b"].each { handler.onMessage(message(connection, it)) }
+			handler.onClose(close(connection, false))
+			parent.finish()
+		then:
+			def span = reporter.spans.find { it.name() == "chat" }
+			def message = reporter.spans.find { it.name() == "chat message" }
+			span.parentId() == parent.context().spanIdString()
+			span.tags()[TracedConnections.CLOSED_BY_TAG] == "server"
+			contexts*.spanIdString() == [span.id(), message.id(), span.id()]
+	}
+
+	def 'Should finish the connection span when the handler fails to open'() {
+		given:
+			List<Throwable> upgrades = []
+			def failing = [onOpen: { WebSocket webSocket -> throw new IllegalStateException("full") }] as WebSocketHandler
+			def handler = TracedConnections.create(tracing)
+				.traced("chat", failing, null, { Throwable error -> upgrades << error } as ProtocolUpgrade)
+		when:
+			handler.onOpen(socket)
+		then:
+			thrown(IllegalStateException)
+			upgrades*.message == ["full"]
+			def span = reporter.spans.find { it.name() == "chat" }
+			span.tags().error == "full"
+			span.tags()[TracedConnections.CLOSED_BY_TAG] == "server"
+	}
+
+	def 'Should finish the server span of a WebSocket with status 101, as the parent of the connection span'() {
+		given:
+			def app = ratpack {
+				bindings {
+					module(ServerTracingModule.class, { config ->
+						config
+							.serviceName("embedded")
+							.sampler(Sampler.ALWAYS_SAMPLE)
+							.spanReporterV2(reporter)
+					})
+				}
+				handlers { chain ->
+					chain.get("chat") { ctx ->
+						ctx.get(TracedConnections).websocket(ctx, "chat", new WebSocketHandler<String>() {
+							String onOpen(WebSocket webSocket) {
+								"open"
+							}
+
+							void onMessage(WebSocketMessage<String> frame) {
+								frame.connection.send(frame.text.toUpperCase())
+							}
+
+							void onClose(WebSocketClose<String> close) {
+							}
+						})
+					}
+				}
+			}
+			def uri = new URI("ws", null, app.address.host, app.address.port, "/chat", null, null)
+		when:
+			def client = WebSocketClient.connect(uri)
+			client.send("hello")
+			def reply = client.receive()
+			client.close()
+		then:
+			reply == "HELLO"
+			conditions.eventually {
+				assert reporter.spans.any { it.name() == "chat" }
+			}
+			def server = reporter.spans.find { it.kind() == Span.Kind.SERVER }
+			def connection = reporter.spans.find { it.name() == "chat" }
+			server.tags()["http.status_code"] == "101"
+			!server.tags().containsKey("error")
+			connection.parentId() == server.id()
+			connection.traceId() == server.traceId()
+			connection.tags()[TracedConnections.MESSAGES_RECEIVED_TAG] == "1"
+			connection.tags()[TracedConnections.MESSAGES_SENT_TAG] == "1"
+			connection.tags()[TracedConnections.CLOSED_BY_TAG] == "client"
+		cleanup:
+			app.close()
+	}
+
+	def 'Should leave the request scope to its execution when upgraded outside of it'() {
+		given:
+			List<Object> contexts = []
+			def app = ratpack {
+				bindings {
+					module(ServerTracingModule.class, { config ->
+						config
+							.serviceName("embedded")
+							.sampler(Sampler.ALWAYS_SAMPLE)
+							.spanReporterV2(reporter)
+					})
+				}
+				handlers { chain ->
+					chain.get("upgrade") { ctx ->
+						def current = ctx.get(Tracing).currentTraceContext()
+						def upgrade = ctx.get(ProtocolUpgrade)
+						upgrade.upgrading()
+						def thread = new Thread({ -> upgrade.upgraded(null) } as Runnable)
+						thread.start()
+						thread.join()
+						contexts << current.get().spanIdString()
+						ctx.execution.onComplete { contexts << (current.get() ?: "none") }
+						ctx.render("upgraded")
+					}
+				}
+			}
+		when:
+			app.httpClient.getText("upgrade")
+		then:
+			conditions.eventually {
+				assert contexts.size() == 2
+				assert reporter.spans.any { it.kind() == Span.Kind.SERVER }
+			}
+			def server = reporter.spans.find { it.kind() == Span.Kind.SERVER }
+			server.tags()["http.status_code"] == "101"
+			contexts == [server.id(), "none"]
+		cleanup:
+			app.close()
+	}
+
+	def 'Should trace server-sent events with a connection span'() {
+		given:
+			def app = ratpack {
+				bindings {
+					module(ServerTracingModule.class, { config ->
+						config
+							.serviceName("embedded")
+							.sampler(Sampler.ALWAYS_SAMPLE)
+							.spanReporterV2(reporter)
+					})
+				}
+				handlers { chain ->
+					chain.get("prices") { ctx ->
+						ctx.render(ctx.get(TracedConnections).serverSentEvents("prices", Streams.publish(1..3)) { event ->
+							event.id(event.item.toString()).event("price").data("€\n${event.item}")
+						})
+					}
+				}
+			}
+		when:
+			def body = app.httpClient.getText("prices")
+		then:
+			def server = reporter.spans.find { it.kind() == Span.Kind.SERVER }
+			def connection = reporter.spans.find { it.name() == "prices" }
+			connection.parentId() == server.id()
+			connection.traceId() == server.traceId()
+			connection.tags()[TracedConnections.MESSAGES_SENT_TAG] == "3"
+			connection.tags()[TracedConnections.BYTES_SENT_TAG] == body.getBytes("UTF-8").length.toString()
+		cleanup:
+			app.close()
+	}
+}
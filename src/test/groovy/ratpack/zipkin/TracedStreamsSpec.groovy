@@ -0,0 +1,118 @@
+/**
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin
+
+import brave.Tracing
+import brave.propagation.TraceContext
+import org.reactivestreams.Subscriber
+import org.reactivestreams.Subscription
+import ratpack.stream.Streams
+import ratpack.test.exec.ExecHarness
+import ratpack.zipkin.support.TestReporter
+import spock.lang.AutoCleanup
+import spock.lang.Specification
+
+class TracedStreamsSpec extends Specification {
+
+	@AutoCleanup
+	ExecHarness harness = ExecHarness.harness()
+
+	TestReporter reporter = new TestReporter()
+
+	@AutoCleanup
+	Tracing tracing = Tracing.newBuilder().spanReporter(reporter).build()
+
+	def 'Should record one span per stream and a span for one element in every N'() {
+		given:
+			def streams = TracedStreams.create(tracing, 10)
+		when:
+			def result = harness.yieldSingle {
+				streams.trace("numbers", Streams.publish(1..25)).toList()
+			}.valueOrThrow
+		then:
+			result == (1..25).toList()
+			def stream = reporter.spans.find { it.name() == "numbers" }
+			stream.tags()[TracedStreams.ELEMENTS_TAG] == "25"
+			stream.tags().containsKey(TracedStreams.THROUGHPUT_TAG)
+			def elements = reporter.spans.findAll { it.name() == "numbers element" }
+			elements*.tags()*.get(TracedStreams.ELEMENT_TAG) == ["0", "10", "20"]
+			elements.every { it.parentId() == stream.id() && it.traceId() == stream.traceId() }
+	}
+
+	def 'Should parent the stream span to the trace context current when the operator is applied'() {
+		given:
+			def streams = TracedStreams.create(tracing, 0)
+			def parent = tracing.tracer().newTrace().name("parent").start()
+		when:
+			def publisher
+			try (def scope = tracing.tracer().withSpanInScope(parent)) {
+				publisher = streams.trace("numbers", Streams.publish(1..3))
+			}
+			harness.yieldSingle { publisher.toList() }.valueOrThrow
+			parent.finish()
+		then:
+			def stream = reporter.spans.find { it.name() == "numbers" }
+			stream.parentId() == parent.context().spanIdString()
+			reporter.spans.findAll { it.name() == "numbers element" }.empty
+	}
+
+	def 'Should run the stages after the operator with the trace context in scope'() {
+		given:
+			def streams = TracedStreams.create(tracing, 2)
+			def current = tracing.currentTraceContext()
+		when:
+			List<TraceContext> contexts = harness.yieldSingle {
+				streams.trace("numbers", Streams.publish(1..4)).map { current.get() }.toList()
+			}.valueOrThrow
+		then:
+			def stream = reporter.spans.find { it.name() == "numbers" }
+			def elements = reporter.spans.findAll { it.name() == "numbers element" }
+			contexts*.spanIdString() == [elements[0].id(), stream.id(), elements[1].id(), stream.id()]
+			current.get() == null
+	}
+
+	def 'Should count stalls for a lack of demand'() {
+		given:
+			def streams = TracedStreams.create(tracing, 0)
+			Subscription subscription
+			def received = []
+			def subscriber = [
+				onSubscribe: { Subscription s -> subscription = s },
+				onNext     : { received << it },
+				onError    : { Throwable t -> },
+				onComplete : { -> }
+			] as Subscriber<Integer>
+		when:
+			streams.trace("numbers", Streams.publish(1..3)).subscribe(subscriber)
+			subscription.request(1)
+			subscription.request(1)
+			subscription.request(5)
+		then:
+			received == [1, 2, 3]
+			def stream = reporter.spans.find { it.name() == "numbers" }
+			stream.tags()[TracedStreams.STALLS_TAG] == "2"
+	}
+
+	def 'Should tag cancelled streams'() {
+		given:
+			def streams = TracedStreams.create(tracing)
+		when:
+			def result = harness.yieldSingle {
+				streams.trace("numbers", Streams.publish(1..10)).take(2).toList()
+			}.valueOrThrow
+		then:
+			result == [1, 2]
+			reporter.spans.find { it.name() == "numbers" }.tags()[TracedStreams.CANCELLED_TAG] == "true"
+	}
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin.internal
+
+import ratpack.http.HttpMethod
+import ratpack.path.PathBinding
+import ratpack.zipkin.ServerRequest
+import ratpack.zipkin.SpanNameProvider
+import spock.lang.Specification
+
+class CachingSpanNameProviderSpec extends Specification {
+
+    def delegate = Mock(SpanNameProvider)
+    def provider = new CachingSpanNameProvider(delegate)
+
+    def request(HttpMethod method) {
+        Stub(ServerRequest) {
+            getMethod() >> method
+        }
+    }
+
+    def binding(String description) {
+        Optional.of(Stub(PathBinding) {
+            getDescription() >> description
+        })
+    }
+
+    def 'should name each method and route once'() {
+        when:
+            def first = provider.spanName(request(HttpMethod.GET), binding("items/:id"))
+            def second = provider.spanName(request(HttpMethod.GET), binding("items/:id"))
+        then:
+            1 * delegate.spanName(_, _) >> "get items/:id"
+            first == "get items/:id"
+            second == "get items/:id"
+    }
+
+    def 'should not share names across methods'() {
+        when:
+            provider.spanName(request(HttpMethod.GET), binding("items/:id"))
+            def name = provider.spanName(request(HttpMethod.POST), binding("items/:id"))
+        then:
+            1 * delegate.spanName(_, _) >> "get items/:id"
+            1 * delegate.spanName(_, _) >> "post items/:id"
+            name == "post items/:id"
+    }
+
+    def 'should always delegate without a route'() {
+        when:
+            provider.spanName(request(HttpMethod.GET), binding(""))
+            provider.spanName(request(HttpMethod.GET), binding(""))
+            provider.spanName(request(HttpMethod.GET), Optional.empty())
+        then:
+            3 * delegate.spanName(_, _) >> "name"
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin.internal
+
+import ratpack.exec.Execution
+import ratpack.exec.Promise
+import ratpack.registry.MutableRegistry
+import ratpack.registry.Registry
+import ratpack.test.exec.ExecHarness
+import spock.lang.AutoCleanup
+import spock.lang.Specification
+
+import java.util.concurrent.TimeUnit
+import java.util.function.LongSupplier
+
+class ExecutionClockSpec extends Specification {
+
+    @AutoCleanup
+    ExecHarness harness = ExecHarness.harness()
+
+    def 'Should anchor the clock once per registry'() {
+        given:
+            MutableRegistry registry = Registry.mutable()
+            def clock = new ExecutionClock({ -> registry })
+        when:
+            def first = clock.currentTimeMicroseconds()
+            sleep(5)
+            def second = clock.currentTimeMicroseconds()
+        then:
+            registry.getAll(ExecutionClock.Anchor).size() == 1
+            second - first >= TimeUnit.MILLISECONDS.toMicros(5)
+            Math.abs(first - TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis())) < TimeUnit.SECONDS.toMicros(1)
+    }
+
+    def 'Should re-anchor once the anchor is older than its maximum age'() {
+        given:
+            MutableRegistry registry = Registry.mutable()
+            long wallMicros = 1_000_000L
+            long nanos = 0L
+            def clock = new ExecutionClock({ -> registry }, { -> wallMicros } as LongSupplier,
+                { -> nanos } as LongSupplier, TimeUnit.SECONDS.toNanos(10))
+            clock.currentTimeMicroseconds()
+        when: 'nanoTime runs 1% faster than the wall clock'
+            nanos += TimeUnit.SECONDS.toNanos(5)
+            wallMicros += TimeUnit.MILLISECONDS.toMicros(4_950)
+        then: 'the drift shows until the anchor expires'
+            clock.currentTimeMicroseconds() == 1_000_000L + TimeUnit.SECONDS.toMicros(5)
+        when:
+            nanos += TimeUnit.SECONDS.toNanos(5)
+            wallMicros += TimeUnit.MILLISECONDS.toMicros(4_950)
+        then:
+            clock.currentTimeMicroseconds() == wallMicros
+            registry.getAll(ExecutionClock.Anchor).size() == 1
+        when:
+            nanos += TimeUnit.SECONDS.toNanos(1)
+        then:
+            clock.currentTimeMicroseconds() == wallMicros + TimeUnit.SECONDS.toMicros(1)
+    }
+
+    def 'Should not inherit an expired anchor in forks'() {
+        given:
+            long nanos = 0L
+            def clock = new ExecutionClock({ -> Execution.currentOpt().orElse(null) },
+                { -> TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis()) } as LongSupplier,
+                { -> nanos } as LongSupplier, TimeUnit.SECONDS.toNanos(10))
+        when:
+            def sameAnchor = harness.yieldSingle {
+                clock.currentTimeMicroseconds()
+                def parent = Execution.current().get(ExecutionClock.Anchor)
+                nanos += TimeUnit.SECONDS.toNanos(10)
+                Promise.async { down ->
+                    Execution.fork().start {
+                        clock.currentTimeMicroseconds()
+                        down.success(Execution.current().get(ExecutionClock.Anchor).is(parent))
+                    }
+                }
+            }.valueOrThrow
+        then:
+            !sameAnchor
+    }
+
+    def 'Should use the anchor of the parent execution in forks'() {
+        given:
+            def clock = ExecutionClock.create()
+        when:
+            def sameAnchor = harness.yieldSingle {
+                clock.currentTimeMicroseconds()
+                def parent = Execution.current().get(ExecutionClock.Anchor)
+                Promise.async { down ->
+                    Execution.fork().start {
+                        clock.currentTimeMicroseconds()
+                        down.success(Execution.current().get(ExecutionClock.Anchor).is(parent))
+                    }
+                }
+            }.valueOrThrow
+        then:
+            sameAnchor
+    }
+
+    def 'Should read the wall clock outside of an execution'() {
+        given:
+            def clock = new ExecutionClock({ -> null })
+        expect:
+            Math.abs(clock.currentTimeMicroseconds() - TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis())) < TimeUnit.SECONDS.toMicros(1)
+    }
+}
@@ -1,5 +1,5 @@
 /**
- * Copyright 2016-2019 The OpenZipkin Authors
+ * Copyright 2016-2026 The OpenZipkin Authors
  *
  * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
  * in compliance with the License. You may obtain a copy of the License at
@@ -22,6 +22,9 @@ import ratpack.registry.Registry
 import spock.lang.Specification
 import ratpack.zipkin.internal.RatpackCurrentTraceContext.TraceContextHolder
 
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+
 class RatpackCurrentTraceContextSpec extends Specification {
     MutableRegistry registry = Registry.mutable()
     CurrentTraceContext traceContext
@@ -106,4 +109,56 @@ class RatpackCurrentTraceContextSpec extends Specification {
             registry.getAll(TraceContextHolder).size() == 1
     }
 
+    def 'An execution without context should not look at its parent'() {
+        given:
+            def execution = Mock(Execution)
+            def executionContext = RatpackCurrentTraceContext.newBuilder()
+                .registrySupplier({ -> execution })
+                .build()
+        when:
+            def result = executionContext.get()
+        then:
+            1 * execution.maybeGet(TraceContextHolder) >> Optional.empty()
+            0 * _
+            result == null
+    }
+
+    def 'When falling back to a thread local, context should be kept outside of an execution'() {
+        given:
+            def fallbackContext = RatpackCurrentTraceContext.newBuilder()
+                .registrySupplier({ -> null })
+                .threadLocalFallback(true)
+                .build()
+            def expected = dummyContext()
+        when:
+            def scope = fallbackContext.newScope(expected)
+        then:
+            fallbackContext.get() == expected
+        when:
+            scope.close()
+        then:
+            fallbackContext.get() == null
+    }
+
+    def 'When falling back to a thread local, wrapped executors should carry the context across'() {
+        given:
+            def fallbackContext = RatpackCurrentTraceContext.newBuilder()
+                .registrySupplier({ -> null })
+                .threadLocalFallback(true)
+                .build()
+            def pool = Executors.newSingleThreadExecutor()
+            def executor = fallbackContext.executorService(pool)
+            def expected = dummyContext()
+        when:
+            def scope = fallbackContext.newScope(expected)
+            def inTask = executor.submit({ -> fallbackContext.get() } as Callable).get()
+            scope.close()
+            def afterTask = pool.submit({ -> fallbackContext.get() } as Callable).get()
+        then:
+            inTask == expected
+            afterTask == null
+        cleanup:
+            pool.shutdown()
+    }
+
 }
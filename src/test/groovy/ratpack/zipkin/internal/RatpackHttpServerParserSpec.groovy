@@ -0,0 +1,61 @@
+/**
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin.internal
+
+import brave.SpanCustomizer
+import ratpack.http.HttpMethod
+import ratpack.http.Status
+import ratpack.path.PathBinding
+import ratpack.zipkin.ServerRequest
+import ratpack.zipkin.ServerResponse
+import ratpack.zipkin.SpanNameProvider
+import spock.lang.Specification
+
+class RatpackHttpServerParserSpec extends Specification {
+
+    def provider = Mock(SpanNameProvider)
+    def parser = new RatpackHttpServerParser(provider)
+    def adapter = new ServerHttpAdapter()
+    def customizer = Mock(SpanCustomizer)
+
+    def request = Stub(ServerRequest) {
+        getMethod() >> HttpMethod.GET
+        getPath() >> "items/1"
+    }
+
+    def 'should give server spans a default name when the request is received'() {
+        when:
+            parser.request(adapter, request, customizer)
+        then:
+            1 * customizer.name("GET")
+            0 * provider._
+    }
+
+    def 'should replace the name with the provider\'s once the response is sent'() {
+        given:
+            def binding = Optional.of(Stub(PathBinding) {
+                getDescription() >> "items/:id"
+            })
+            def response = Stub(ServerResponse) {
+                getRequest() >> request
+                pathBinding() >> binding
+                getStatus() >> Status.OK
+            }
+        when:
+            parser.response(adapter, response, null, customizer)
+        then:
+            1 * provider.spanName(request, binding) >> "get items/:id"
+            1 * customizer.name("get items/:id")
+    }
+}
@@ -1,5 +1,5 @@
 /**
- * Copyright 2016-2019 The OpenZipkin Authors
+ * Copyright 2016-2026 The OpenZipkin Authors
  *
  * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
  * in compliance with the License. You may obtain a copy of the License at
@@ -42,7 +42,6 @@ class TracePropagationExecInitializerSpec extends Specification {
         then:
             1 * execution.maybeParent() >> Optional.of(parent)
             1 * parent.maybeGet(TraceContextHolder.class) >> Optional.of(parentContextHolder)
-            1 * parent.maybeGet(DefaultClientTracingInterceptor.ClientSpanHolder.class) >> Optional.empty()
             1 * execution.add(parentContextHolder)
             0 * _
     }
@@ -68,7 +67,34 @@ class TracePropagationExecInitializerSpec extends Specification {
         then:
             1 * execution.maybeParent() >> Optional.of(parent)
             1 * parent.maybeGet(TraceContextHolder.class) >> Optional.empty()
-            1 * parent.maybeGet(DefaultClientTracingInterceptor.ClientSpanHolder.class) >> Optional.empty()
+            0 * _
+    }
+
+    def 'should copy context from parent when present and not eager'() {
+        given:
+            def initializer = new TracingPropagationExecInitializer(false)
+            def parent = Mock(ExecutionRef)
+            def execution = Mock(Execution)
+            def parentContextHolder = new TraceContextHolder(dummyContext())
+        when:
+            initializer.init(execution)
+        then:
+            1 * execution.maybeParent() >> Optional.of(parent)
+            1 * parent.maybeGet(TraceContextHolder.class) >> Optional.of(parentContextHolder)
+            1 * execution.add(parentContextHolder)
+            0 * _
+    }
+
+    def 'should not copy an empty parent context when not eager'() {
+        given:
+            def initializer = new TracingPropagationExecInitializer(false)
+            def parent = Mock(ExecutionRef)
+            def execution = Mock(Execution)
+        when:
+            initializer.init(execution)
+        then:
+            1 * execution.maybeParent() >> Optional.of(parent)
+            1 * parent.maybeGet(TraceContextHolder.class) >> Optional.of(new TraceContextHolder(null))
             0 * _
     }
 
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin.load;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import org.HdrHistogram.Histogram;
+
+/**
+ * Comparison of load test runs, written as a Markdown table for people and a CSV file for tools,
+ * along with the full latency distribution of each run.
+ */
+final class LoadReport {
+
+  private final Map<String, NettyLoadGenerator.Result> results = new LinkedHashMap<>();
+  private final List<String> notes = new ArrayList<>();
+
+  void add(String mode, NettyLoadGenerator.Result result) {
+    results.put(mode, result);
+  }
+
+  void note(String note) {
+    notes.add(note);
+  }
+
+  NettyLoadGenerator.Result get(String mode) {
+    return results.get(mode);
+  }
+
+  /**
+   * @param directory the directory to write {@code report.md}, {@code report.csv} and a
+   *                  {@code <mode>.hgrm} percentile distribution per mode to
+   */
+  void write(Path directory) throws IOException {
+    Files.createDirectories(directory);
+    Files.write(directory.resolve("report.md"), markdown().getBytes(StandardCharsets.UTF_8));
+    Files.write(directory.resolve("report.csv"), csv().getBytes(StandardCharsets.UTF_8));
+    for (Map.Entry<String, NettyLoadGenerator.Result> result : results.entrySet()) {
+      try (PrintStream out = new PrintStream(
+          Files.newOutputStream(directory.resolve(result.getKey() + ".hgrm")), false, "UTF-8")) {
+        // microseconds, reported in milliseconds
+        result.getValue().latencies.outputPercentileDistribution(out, 1000.0);
+      }
+    }
+  }
+
+  String markdown() {
+    StringBuilder md = new StringBuilder()
+        .append("| mode | requests | errors | throughput (req/s) | vs. baseline | p50 (ms) | p90 (ms) | p99 (ms) | p99.9 (ms) | max (ms) |\n")
+        .append("|---|---:|---:|---:|---:|---:|---:|---:|---:|---:|\n");
+    for (Map.Entry<String, NettyLoadGenerator.Result> entry : results.entrySet()) {
+      NettyLoadGenerator.Result result = entry.getValue();
+      Histogram h = result.latencies;
+      md.append(String.format(Locale.ROOT, "| %s | %d | %d | %.0f | %s | %.3f | %.3f | %.3f | %.3f | %.3f |%n",
+          entry.getKey(), result.requests, result.errors, result.throughput(), relative(entry.getKey()),
+          millis(h.getValueAtPercentile(50)), millis(h.getValueAtPercentile(90)),
+          millis(h.getValueAtPercentile(99)), millis(h.getValueAtPercentile(99.9)), millis(h.getMaxValue())));
+    }
+    for (String note : notes) {
+      md.append('\n').append(note).append('\n');
+    }
+    return md.toString();
+  }
+
+  String csv() {
+    StringBuilder csv = new StringBuilder("mode,requests,errors,throughput,p50_us,p90_us,p99_us,p999_us,max_us\n");
+    for (Map.Entry<String, NettyLoadGenerator.Result> entry : results.entrySet()) {
+      NettyLoadGenerator.Result result = entry.getValue();
+      Histogram h = result.latencies;
+      csv.append(String.format(Locale.ROOT, "%s,%d,%d,%.1f,%d,%d,%d,%d,%d%n",
+          entry.getKey(), result.requests, result.errors, result.throughput(),
+          h.getValueAtPercentile(50), h.getValueAtPercentile(90), h.getValueAtPercentile(99),
+          h.getValueAtPercentile(99.9), h.getMaxValue()));
+    }
+    return csv.toString();
+  }
+
+  /**
+   * Throughput relative to the first run without tracing of the same kind, with or without
+   * client calls.
+   */
+  private String relative(String mode) {
+    String baseline = mode.endsWith("+client") ? "off+client" : "off";
+    NettyLoadGenerator.Result base = results.get(baseline);
+    if (base == null || mode.equals(baseline)) {
+      return "-";
+    }
+    double change = (results.get(mode).throughput() / base.throughput() - 1.0) * 100.0;
+    return String.format(Locale.ROOT, "%+.1f%%", change);
+  }
+
+  private static double millis(long micros) {
+    return micros / 1000.0;
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin.load;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import java.net.URI;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Closed-loop HTTP load generator: a fixed number of keep-alive connections, each sending its
+ * next request as soon as the previous response arrived. Latencies of the responses received
+ * after the warmup are recorded in microseconds.
+ */
+final class NettyLoadGenerator {
+
+  static final class Result {
+    final long requests;
+    final long errors;
+    final long elapsedNanos;
+    final Histogram latencies;
+
+    Result(long requests, long errors, long elapsedNanos, Histogram latencies) {
+      this.requests = requests;
+      this.errors = errors;
+      this.elapsedNanos = elapsedNanos;
+      this.latencies = latencies;
+    }
+
+    double throughput() {
+      return requests * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    }
+  }
+
+  private final int concurrency;
+  private final Duration warmup;
+  private final Duration duration;
+
+  NettyLoadGenerator(int concurrency, Duration warmup, Duration duration) {
+    this.concurrency = concurrency;
+    this.warmup = warmup;
+    this.duration = duration;
+  }
+
+  Result run(URI uri) throws InterruptedException {
+    EventLoopGroup group = new NioEventLoopGroup(Math.min(concurrency, Runtime.getRuntime().availableProcessors()));
+    try {
+      return run(group, uri);
+    } finally {
+      group.shutdownGracefully(0, 1, TimeUnit.SECONDS).await();
+    }
+  }
+
+  private Result run(EventLoopGroup group, URI uri) throws InterruptedException {
+    Recorder recorder = new Recorder(3);
+    LongAdder requests = new LongAdder();
+    LongAdder errors = new LongAdder();
+    CountDownLatch done = new CountDownLatch(concurrency);
+    long start = System.nanoTime();
+    long measureFrom = start + warmup.toNanos();
+    long end = measureFrom + duration.toNanos();
+
+    Bootstrap bootstrap = new Bootstrap()
+        .group(group)
+        .channel(NioSocketChannel.class)
+        .option(ChannelOption.TCP_NODELAY, true)
+        .handler(new ChannelInitializer<Channel>() {
+          @Override
+          protected void initChannel(Channel ch) {
+            ch.pipeline()
+                .addLast(new HttpClientCodec())
+                .addLast(new HttpObjectAggregator(1024 * 1024))
+                .addLast(new Connection(uri, recorder, requests, errors, measureFrom, end));
+          }
+        });
+
+    for (int i = 0; i < concurrency; i++) {
+      // a connection which fails to connect is closed as well
+      bootstrap.connect(uri.getHost(), uri.getPort()).addListener(f -> {
+        if (!f.isSuccess()) {
+          errors.increment();
+        }
+      }).channel().closeFuture().addListener(f -> done.countDown());
+    }
+
+    long waitNanos = end - System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+    if (!done.await(waitNanos, TimeUnit.NANOSECONDS)) {
+      throw new IllegalStateException("connections did not finish");
+    }
+    Histogram latencies = recorder.getIntervalHistogram();
+    return new Result(requests.sum(), errors.sum(), end - measureFrom, latencies);
+  }
+
+  private static final class Connection extends SimpleChannelInboundHandler<FullHttpResponse> {
+    private final URI uri;
+    private final Recorder recorder;
+    private final LongAdder requests;
+    private final LongAdder errors;
+    private final long measureFrom;
+    private final long end;
+    private long sentAt;
+
+    Connection(URI uri, Recorder recorder, LongAdder requests, LongAdder errors, long measureFrom, long end) {
+      this.uri = uri;
+      this.recorder = recorder;
+      this.requests = requests;
+      this.errors = errors;
+      this.measureFrom = measureFrom;
+      this.end = end;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) {
+      send(ctx);
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse response) {
+      long now = System.nanoTime();
+      if (now - measureFrom >= 0 && now - end < 0) {
+        requests.increment();
+        recorder.recordValue(Math.max(1L, TimeUnit.NANOSECONDS.toMicros(now - sentAt)));
+        if (!HttpResponseStatus.OK.equals(response.status())) {
+          errors.increment();
+        }
+      }
+      if (now - end < 0) {
+        send(ctx);
+      } else {
+        ctx.close();
+      }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+      errors.increment();
+      ctx.close();
+    }
+
+    private void send(ChannelHandlerContext ctx) {
+      String path = uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+      FullHttpRequest request =
+          new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, path, Unpooled.EMPTY_BUFFER);
+      request.headers()
+          .set(HttpHeaderNames.HOST, uri.getHost() + ':' + uri.getPort())
+          .set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+      sentAt = System.nanoTime();
+      ctx.writeAndFlush(request);
+    }
+  }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin.load;
+
+import brave.sampler.Sampler;
+import java.net.URI;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import javax.inject.Inject;
+import org.junit.Test;
+import ratpack.exec.Promise;
+import ratpack.exec.util.ParallelBatch;
+import ratpack.guice.Guice;
+import ratpack.handling.Context;
+import ratpack.handling.Handler;
+import ratpack.http.client.HttpClient;
+import ratpack.test.embed.EmbeddedApp;
+import ratpack.zipkin.ServerTracingModule;
+import ratpack.zipkin.Zipkin;
+import zipkin2.Span;
+import zipkin2.reporter.Reporter;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Compares the throughput and latency of an embedded server without tracing, and with tracing
+ * at several sample rates, with and without a traced client call to a local backend per request.
+ * The fork-heavy modes fork {@code load.forks} (16) executions per request, with the trace
+ * context copied into every fork, and with {@code lazyContextPropagation}. The clock mode times
+ * spans with {@code executionClock}.
+ *
+ * Not part of the default build, run it with {@code ./mvnw test -Pload-test}. The report is
+ * written to {@code target/load-test}. The load is tuned with the system properties
+ * {@code load.concurrency} (32), {@code load.warmup} and {@code load.duration} (seconds, 5 and
+ * 10). Spans are counted rather than sent, to leave reporting out of the comparison.
+ */
+public class TracingLoadTest {
+
+  static final int CONCURRENCY = Integer.getInteger("load.concurrency", 32);
+  static final Duration WARMUP = Duration.ofSeconds(Long.getLong("load.warmup", 5L));
+  static final Duration DURATION = Duration.ofSeconds(Long.getLong("load.duration", 10L));
+  static final int FORKS = Integer.getInteger("load.forks", 16);
+  static final Path REPORT_DIR = Paths.get(System.getProperty("load.reportDir", "target/load-test"));
+
+  enum Mode {
+    OFF("off", null, false),
+    NEVER("0%", 0.0f, false),
+    ONE_PERCENT("1%", 0.01f, false),
+    ALWAYS("100%", 1.0f, false),
+    ALWAYS_CLOCK("100% clock", 1.0f, false, false, false, true),
+    OFF_CLIENT("off+client", null, true),
+    ALWAYS_CLIENT("100%+client", 1.0f, true),
+    OFF_FORKS("off+forks", null, false, true, false),
+    ALWAYS_FORKS("100%+forks", 1.0f, false, true, false),
+    ALWAYS_FORKS_LAZY("100%+forks lazy", 1.0f, false, true, true);
+
+    final String name;
+    final Float sampleRate;
+    final boolean clientCall;
+    final boolean forks;
+    final boolean lazy;
+    final boolean executionClock;
+
+    Mode(String name, Float sampleRate, boolean clientCall) {
+      this(name, sampleRate, clientCall, false, false);
+    }
+
+    Mode(String name, Float sampleRate, boolean clientCall, boolean forks, boolean lazy) {
+      this(name, sampleRate, clientCall, forks, lazy, false);
+    }
+
+    Mode(String name, Float sampleRate, boolean clientCall, boolean forks, boolean lazy,
+         boolean executionClock) {
+      this.name = name;
+      this.sampleRate = sampleRate;
+      this.clientCall = clientCall;
+      this.forks = forks;
+      this.lazy = lazy;
+      this.executionClock = executionClock;
+    }
+  }
+
+  final LongAdder spans = new LongAdder();
+  final Reporter<Span> countingReporter = span -> spans.increment();
+
+  @Test
+  public void compareTracingModes() throws Exception {
+    NettyLoadGenerator generator = new NettyLoadGenerator(CONCURRENCY, WARMUP, DURATION);
+    LoadReport report = new LoadReport();
+    report.note(String.format("%d connections, %ds warmup, %ds measured, %d cores, Java %s.",
+        CONCURRENCY, WARMUP.getSeconds(), DURATION.getSeconds(),
+        Runtime.getRuntime().availableProcessors(), System.getProperty("java.version")));
+
+    try (EmbeddedApp backend = EmbeddedApp.fromHandler(ctx -> ctx.getResponse().send("ok"))) {
+      URI backendUri = backend.getAddress().resolve("backend");
+      for (Mode mode : Mode.values()) {
+        spans.reset();
+        try (EmbeddedApp app = app(mode, backendUri)) {
+          NettyLoadGenerator.Result result = generator.run(app.getAddress());
+          report.add(mode.name, result);
+          assertThat(result.errors).as("errors in mode %s", mode.name).isZero();
+          assertThat(result.requests).as("requests in mode %s", mode.name).isPositive();
+        }
+        if (mode.sampleRate != null && mode.sampleRate == 1.0f) {
+          assertThat(spans.sum()).as("spans in mode %s", mode.name).isPositive();
+        }
+      }
+    }
+
+    report.write(REPORT_DIR);
+    System.out.println(report.markdown());
+  }
+
+  EmbeddedApp app(Mode mode, URI backendUri) throws Exception {
+    return EmbeddedApp.of(server -> server
+        .registry(Guice.registry(bindings -> {
+          if (mode.sampleRate != null) {
+            bindings.module(ServerTracingModule.class, config -> config
+                .serviceName("load-test")
+                .sampler(Sampler.create(mode.sampleRate))
+                .lazyContextPropagation(mode.lazy)
+                .executionClock(mode.executionClock)
+                .spanReporterV2(countingReporter));
+          }
+          bindings.bindInstance(URI.class, backendUri);
+          bindings.bind(mode.sampleRate != null ? TracedClientCall.class : ClientCall.class);
+        }))
+        .handlers(chain -> {
+          if (mode.clientCall) {
+            chain.get(mode.sampleRate != null ? TracedClientCall.class : ClientCall.class);
+          } else if (mode.forks) {
+            chain.get(new Forks());
+          } else {
+            chain.get(ctx -> ctx.getResponse().send("ok"));
+          }
+        }));
+  }
+
+  /**
+   * Forks an execution per item and responds once all of them completed.
+   */
+  static class Forks implements Handler {
+    @Override
+    public void handle(Context ctx) {
+      List<Promise<Integer>> work = IntStream.range(0, FORKS)
+          .mapToObj(Promise::value)
+          .collect(Collectors.toList());
+      ParallelBatch.of(work).yield().then(results -> ctx.getResponse().send("ok"));
+    }
+  }
+
+  /**
+   * Calls the backend with the server's default, untraced, client.
+   */
+  static class ClientCall implements Handler {
+    private final URI backend;
+
+    @Inject
+    ClientCall(URI backend) {
+      this.backend = backend;
+    }
+
+    HttpClient client(Context ctx) {
+      return ctx.get(HttpClient.class);
+    }
+
+    @Override
+    public void handle(Context ctx) {
+      client(ctx).get(backend).then(response -> ctx.getResponse().send(response.getBody().getText()));
+    }
+  }
+
+  static class TracedClientCall extends ClientCall {
+    private final HttpClient client;
+
+    @Inject
+    TracedClientCall(@Zipkin HttpClient client, URI backend) {
+      super(backend);
+      this.client = client;
+    }
+
+    @Override
+    HttpClient client(Context ctx) {
+      return client;
+    }
+  }
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin.stress;
+
+import brave.Tracer;
+import brave.http.HttpTracing;
+import brave.sampler.Sampler;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import javax.inject.Inject;
+import org.junit.Test;
+import ratpack.exec.Blocking;
+import ratpack.exec.Execution;
+import ratpack.exec.Promise;
+import ratpack.exec.util.ParallelBatch;
+import ratpack.exec.util.Promised;
+import ratpack.guice.Guice;
+import ratpack.handling.Context;
+import ratpack.handling.Handler;
+import ratpack.http.client.HttpClient;
+import ratpack.test.embed.EmbeddedApp;
+import ratpack.zipkin.ServerTracingModule;
+import ratpack.zipkin.Zipkin;
+import zipkin2.Span;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Fires thousands of concurrent requests, each mixing {@link Execution#fork()},
+ * {@link ParallelBatch}, {@link Blocking#get} and traced {@link HttpClient} calls, then checks
+ * every reported span: that it has the right parent, and that none was lost or reported twice.
+ *
+ * Runs once with the trace context copied into each new execution, and once with it resolved
+ * lazily from the parent executions. Like a jcstress test, each run tallies the outcome of every
+ * expected span and prints the table; any outcome other than {@code OK} fails the test.
+ *
+ * Not part of the default build, run it with {@code ./mvnw test -Pstress-test}, ideally on a
+ * machine with many cores. It is tuned with the system properties {@code stress.requests}
+ * (2000 per round), {@code stress.rounds} (3), {@code stress.concurrency} (four per core) and
+ * {@code stress.batch} (parallel jobs per request, 4).
+ */
+public class TraceContextStressTest {
+
+  static final int REQUESTS = Integer.getInteger("stress.requests", 2000);
+  static final int ROUNDS = Integer.getInteger("stress.rounds", 3);
+  static final int CONCURRENCY = Integer.getInteger("stress.concurrency",
+      4 * Runtime.getRuntime().availableProcessors());
+  static final int BATCH = Integer.getInteger("stress.batch", 4);
+
+  static final String ID_TAG = "stress.id";
+  // client calls per request: one from the request execution, one from a fork, one per batch job
+  static final int CALLS = BATCH + 2;
+  // local spans per request: one on a blocking thread, one in a fork, one per batch job
+  static final int LOCALS = BATCH + 2;
+
+  enum Outcome {
+    OK,
+    LOST,
+    DUPLICATE,
+    WRONG_TRACE,
+    WRONG_PARENT,
+    NOT_INJECTED,
+    UNEXPECTED
+  }
+
+  @Test
+  public void eagerPropagation() throws Exception {
+    stress(false);
+  }
+
+  @Test
+  public void lazyPropagation() throws Exception {
+    stress(true);
+  }
+
+  void stress(boolean lazy) throws Exception {
+    String mode = lazy ? "lazy" : "eager";
+    ConcurrentLinkedQueue<Span> spans = new ConcurrentLinkedQueue<>();
+    ConcurrentLinkedQueue<Received> received = new ConcurrentLinkedQueue<>();
+
+    try (EmbeddedApp backend = EmbeddedApp.fromHandler(ctx -> {
+      received.add(new Received(ctx.getRequest().getPath(),
+          ctx.getRequest().getHeaders().get("X-B3-TraceId"),
+          ctx.getRequest().getHeaders().get("X-B3-SpanId"),
+          ctx.getRequest().getHeaders().get("X-B3-ParentSpanId")));
+      ctx.getResponse().send("ok");
+    });
+         EmbeddedApp app = app(lazy, backend.getAddress(), spans)) {
+
+      ExecutorService clients = Executors.newFixedThreadPool(CONCURRENCY);
+      try {
+        for (int round = 0; round < ROUNDS; round++) {
+          spans.clear();
+          received.clear();
+          URI base = app.getAddress();
+          List<Future<String>> responses = new ArrayList<>(REQUESTS);
+          for (int i = 0; i < REQUESTS; i++) {
+            URI uri = base.resolve("stress?id=" + round + "-" + i);
+            responses.add(clients.submit(() -> get(uri)));
+          }
+          for (Future<String> response : responses) {
+            assertThat(response.get()).isEqualTo("ok");
+          }
+          awaitSpans(spans, REQUESTS * (1 + LOCALS + CALLS));
+
+          Map<Outcome, Integer> outcomes = check(new ArrayList<>(spans), new ArrayList<>(received));
+          System.out.printf("%s propagation, round %d, %d requests on %d connections: %s%n",
+              mode, round, REQUESTS, CONCURRENCY, outcomes);
+          assertThat(outcomes.keySet())
+              .as("outcomes of %s propagation in round %d", mode, round)
+              .containsOnly(Outcome.OK);
+          assertThat(outcomes.get(Outcome.OK)).isEqualTo(REQUESTS * (1 + LOCALS + CALLS));
+        }
+      } finally {
+        clients.shutdownNow();
+      }
+    }
+  }
+
+  EmbeddedApp app(boolean lazy, URI backend, ConcurrentLinkedQueue<Span> spans) throws Exception {
+    return EmbeddedApp.of(server -> server
+        .registry(Guice.registry(bindings -> {
+          bindings.module(ServerTracingModule.class, config -> config
+              .serviceName("stress-test")
+              .sampler(Sampler.ALWAYS_SAMPLE)
+              .lazyContextPropagation(lazy)
+              .spanReporterV2(spans::add));
+          bindings.bindInstance(URI.class, backend);
+          bindings.bind(StressHandler.class);
+        }))
+        .handlers(chain -> chain.get("stress", StressHandler.class)));
+  }
+
+  /**
+   * Tallies the outcome of every span a request should have produced: its server span, the local
+   * spans, which must be children of the server span, and the client spans, which must be children
+   * of the server span and have sent their own ids to the backend.
+   */
+  static Map<Outcome, Integer> check(List<Span> spans, List<Received> received) {
+    Map<Outcome, Integer> outcomes = new TreeMap<>();
+    Set<String> ids = new HashSet<>();
+    Map<String, List<Span>> traces = new HashMap<>();
+    for (Span span : spans) {
+      if (!ids.add(span.traceId() + '/' + span.id())) {
+        count(outcomes, Outcome.DUPLICATE);
+      } else {
+        traces.computeIfAbsent(span.traceId(), k -> new ArrayList<>()).add(span);
+      }
+    }
+    Map<String, Received> receivedByPath = new HashMap<>();
+    for (Received r : received) {
+      if (receivedByPath.put(r.path, r) != null) {
+        count(outcomes, Outcome.DUPLICATE);
+      }
+    }
+
+    Set<String> requestIds = new HashSet<>();
+    for (List<Span> trace : traces.values()) {
+      List<Span> servers = trace.stream()
+          .filter(s -> s.kind() == Span.Kind.SERVER)
+          .collect(Collectors.toList());
+      if (servers.size() != 1) {
+        // children that escaped into a trace of their own, or of another request
+        trace.forEach(s -> count(outcomes, Outcome.WRONG_TRACE));
+        continue;
+      }
+      Span server = servers.get(0);
+      count(outcomes, Outcome.OK);
+
+      String requestId = null;
+      int locals = 0;
+      int calls = 0;
+      for (Span span : trace) {
+        if (span == server) {
+          continue;
+        }
+        String id = span.kind() == Span.Kind.CLIENT
+            ? requestIdOfPath(span.tags().get("http.path"))
+            : span.tags().get(ID_TAG);
+        if (requestId == null) {
+          requestId = id;
+        }
+        if (id == null || !id.equals(requestId)) {
+          count(outcomes, Outcome.WRONG_TRACE);
+        } else if (!server.id().equals(span.parentId())) {
+          count(outcomes, Outcome.WRONG_PARENT);
+        } else if (span.kind() == Span.Kind.CLIENT) {
+          calls++;
+          Received r = receivedByPath.get(span.tags().get("http.path"));
+          count(outcomes, r != null && span.traceId().equals(r.traceId) && span.id().equals(r.spanId)
+              && server.id().equals(r.parentSpanId) ? Outcome.OK : Outcome.NOT_INJECTED);
+        } else if (span.kind() == null) {
+          locals++;
+          count(outcomes, Outcome.OK);
+        } else {
+          count(outcomes, Outcome.UNEXPECTED);
+        }
+      }
+      if (requestId != null && !requestIds.add(requestId)) {
+        count(outcomes, Outcome.DUPLICATE);
+      }
+      for (int i = locals; i < LOCALS; i++) {
+        count(outcomes, Outcome.LOST);
+      }
+      for (int i = calls; i < CALLS; i++) {
+        count(outcomes, Outcome.LOST);
+      }
+    }
+    for (int i = requestIds.size(); i < REQUESTS; i++) {
+      count(outcomes, Outcome.LOST);
+    }
+    return outcomes;
+  }
+
+  /**
+   * The http client finishes a client span in an execution it forks for the response, which can
+   * still be running after the traced request responded. Waits a little for the expected spans,
+   * so that only spans which never arrive count as lost.
+   */
+  static void awaitSpans(ConcurrentLinkedQueue<Span> spans, int expected) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (spans.size() < expected && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+  }
+
+  static void count(Map<Outcome, Integer> outcomes, Outcome outcome) {
+    outcomes.merge(outcome, 1, Integer::sum);
+  }
+
+  /**
+   * @return the request id of a backend path, {@code /backend/<id>/<call>}
+   */
+  static String requestIdOfPath(String path) {
+    if (path == null) {
+      return null;
+    }
+    String[] segments = path.split("/");
+    return segments.length == 4 ? segments[2] : null;
+  }
+
+  static String get(URI uri) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) uri.toURL().openConnection();
+    try (InputStream in = connection.getInputStream()) {
+      byte[] buffer = new byte[64];
+      StringBuilder body = new StringBuilder();
+      for (int n; (n = in.read(buffer)) != -1; ) {
+        body.append(new String(buffer, 0, n, "UTF-8"));
+      }
+      return body.toString();
+    }
+  }
+
+  static final class Received {
+    final String path;
+    final String traceId;
+    final String spanId;
+    final String parentSpanId;
+
+    Received(String path, String traceId, String spanId, String parentSpanId) {
+      // the server's path has no leading slash, the client span's http.path does
+      this.path = "/" + path;
+      this.traceId = traceId;
+      this.spanId = spanId;
+      this.parentSpanId = parentSpanId;
+    }
+  }
+
+  /**
+   * Calls the backend from the request execution and from a fork while the request continues,
+   * then from each job of a parallel batch. Local spans are recorded on a blocking thread, in the
+   * fork and in each job. Scopes are never left open across asynchronous boundaries, so every
+   * span's parent must be the server span.
+   */
+  static class StressHandler implements Handler {
+    private final HttpClient client;
+    private final Tracer tracer;
+    private final URI backend;
+
+    @Inject
+    StressHandler(@Zipkin HttpClient client, HttpTracing httpTracing, URI backend) {
+      this.client = client;
+      this.tracer = httpTracing.tracing().tracer();
+      this.backend = backend;
+    }
+
+    @Override
+    public void handle(Context ctx) {
+      String id = ctx.getRequest().getQueryParams().get("id");
+
+      Promised<String> forked = new Promised<>();
+      Execution.fork()
+          .onError(forked::error)
+          .start(execution -> {
+            local("fork", id);
+            call(id, "fork").then(forked::success);
+          });
+
+      Promise<List<String>> batch = ParallelBatch.of(IntStream.range(0, BATCH)
+          .mapToObj(job -> (job % 2 == 0
+              ? Blocking.get(() -> local("batch", id))
+              : Promise.sync(() -> local("batch", id)))
+              .flatMap(name -> call(id, "batch-" + job)))
+          .collect(Collectors.toList()))
+          .yield();
+
+      Blocking.get(() -> local("blocking", id))
+          .flatMap(name -> call(id, "request"))
+          .flatMap(response -> batch)
+          .flatMap(responses -> forked.promise())
+          .then(response -> ctx.getResponse().send(response));
+    }
+
+    String local(String name, String id) {
+      tracer.nextSpan().name(name).tag(ID_TAG, id).start().finish();
+      return name;
+    }
+
+    Promise<String> call(String id, String name) {
+      return client.get(backend.resolve("backend/" + id + "/" + name))
+          .map(response -> response.getBody().getText());
+    }
+  }
+}
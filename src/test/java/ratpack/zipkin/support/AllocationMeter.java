@@ -0,0 +1,151 @@
+/*
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin.support;
+
+import brave.propagation.CurrentTraceContext;
+import brave.propagation.TraceContext;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import ratpack.func.Action;
+import ratpack.func.Block;
+import ratpack.handling.Chain;
+import ratpack.handling.Context;
+import ratpack.handling.Handler;
+import ratpack.registry.MutableRegistry;
+import ratpack.test.handling.RequestFixture;
+import ratpack.zipkin.internal.RatpackCurrentTraceContext;
+import zipkin2.Span;
+import zipkin2.reporter.Reporter;
+
+/**
+ * Measures the bytes allocated by the current thread with {@link ThreadMXBean}, on JVMs which
+ * support it (HotSpot and OpenJ9).
+ *
+ * Measured code runs from Java, so that Groovy's dynamic dispatch in specs is not counted, and
+ * after a warmup, so that it is measured as compiled by the JIT.
+ */
+public final class AllocationMeter {
+
+  private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+  private AllocationMeter() {
+  }
+
+  public static boolean isSupported() {
+    if (!(THREADS instanceof com.sun.management.ThreadMXBean)) {
+      return false;
+    }
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+    if (!threads.isThreadAllocatedMemorySupported()) {
+      return false;
+    }
+    if (!threads.isThreadAllocatedMemoryEnabled()) {
+      threads.setThreadAllocatedMemoryEnabled(true);
+    }
+    return true;
+  }
+
+  static long allocatedBytes() {
+    return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  /**
+   * @return the mean bytes allocated per run of the block on the current thread
+   */
+  public static double bytesPerCall(int warmup, int iterations, Block block) throws Exception {
+    for (int i = 0; i < warmup; i++) {
+      block.execute();
+    }
+    long start = allocatedBytes();
+    for (int i = 0; i < iterations; i++) {
+      block.execute();
+    }
+    return (allocatedBytes() - start) / (double) iterations;
+  }
+
+  /**
+   * A reporter which discards spans. Unlike {@link Reporter#NOOP}, which Brave replaces with a
+   * handler that logs spans, it keeps recorded spans being converted and passed to a reporter.
+   */
+  public static Reporter<Span> discardingReporter() {
+    return span -> {
+    };
+  }
+
+  /**
+   * A request's use of the trace context kept in a registry: put it in scope, look it up a few
+   * times, and close the scope.
+   */
+  public static Block scopeCycle(MutableRegistry registry, TraceContext context) {
+    CurrentTraceContext currentTraceContext = RatpackCurrentTraceContext.newBuilder()
+        .registrySupplier(() -> registry)
+        .build();
+    return () -> {
+      try (CurrentTraceContext.Scope scope = currentTraceContext.newScope(context)) {
+        for (int i = 0; i < 3; i++) {
+          if (currentTraceContext.get() != context) {
+            throw new IllegalStateException("context not in scope");
+          }
+        }
+      }
+    };
+  }
+
+  /**
+   * Handles requests with and without the handler, and measures the bytes allocated on the
+   * request's thread from before the handler until the response is sent.
+   *
+   * @param handler the handler, which must call the next handler synchronously
+   * @param path the path of the requests
+   * @return the mean bytes allocated per request by the handler
+   */
+  public static double bytesPerRequest(int warmup, int iterations, Handler handler, String path) throws Exception {
+    double with = perRequest(warmup, iterations, handler, path);
+    double without = perRequest(warmup, iterations, Context::next, path);
+    return with - without;
+  }
+
+  private static double perRequest(int warmup, int iterations, Handler handler, String path) throws Exception {
+    AtomicLong start = new AtomicLong();
+    AtomicLong thread = new AtomicLong();
+    LongAdder allocated = new LongAdder();
+    Action<Chain> chain = c -> c
+        .all(ctx -> {
+          thread.set(Thread.currentThread().getId());
+          start.set(allocatedBytes());
+          ctx.next();
+        })
+        .all(handler)
+        .all(ctx -> {
+          // registered after the handler's own actions, so they are measured
+          ctx.getResponse().beforeSend(response -> {
+            if (thread.get() != Thread.currentThread().getId()) {
+              throw new IllegalStateException("request handled on more than one thread");
+            }
+            allocated.add(allocatedBytes() - start.get());
+          });
+          ctx.getResponse().send();
+        });
+    for (int i = 0; i < warmup; i++) {
+      RequestFixture.handle(chain, fixture -> fixture.uri(path));
+    }
+    allocated.reset();
+    for (int i = 0; i < iterations; i++) {
+      RequestFixture.handle(chain, fixture -> fixture.uri(path));
+    }
+    return allocated.sum() / (double) iterations;
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin.support;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketClientHandshakerFactory;
+import io.netty.handler.codec.http.websocketx.WebSocketClientProtocolHandler;
+import io.netty.handler.codec.http.websocketx.WebSocketVersion;
+import java.net.URI;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Minimal blocking WebSocket client, to open real connections to an embedded app:
+ *
+ * <pre>{@code
+ * try (WebSocketClient client = WebSocketClient.connect(URI.create("ws://localhost:5050/chat"))) {
+ *   client.send("hello");
+ *   String reply = client.receive();
+ * }
+ * }</pre>
+ */
+public final class WebSocketClient implements AutoCloseable {
+
+  static final long TIMEOUT_SECONDS = 5;
+
+  /**
+   * @param uri the {@code ws} URI to connect to
+   * @return a client whose handshake completed
+   */
+  public static WebSocketClient connect(URI uri) throws Exception {
+    WebSocketClient client = new WebSocketClient(uri);
+    try {
+      client.handshake.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (Exception e) {
+      client.close();
+      throw e;
+    }
+    return client;
+  }
+
+  private final EventLoopGroup group = new NioEventLoopGroup(1);
+  private final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+  private final CompletableFuture<Void> handshake = new CompletableFuture<>();
+  private final Channel channel;
+
+  private WebSocketClient(URI uri) throws InterruptedException {
+    WebSocketClientProtocolHandler protocol = new WebSocketClientProtocolHandler(
+        WebSocketClientHandshakerFactory.newHandshaker(uri, WebSocketVersion.V13, null, false,
+            new DefaultHttpHeaders()));
+    this.channel = new Bootstrap()
+        .group(group)
+        .channel(NioSocketChannel.class)
+        .handler(new ChannelInitializer<SocketChannel>() {
+          @Override
+          protected void initChannel(SocketChannel ch) {
+            ch.pipeline().addLast(new HttpClientCodec(), new HttpObjectAggregator(8192), protocol,
+                new SimpleChannelInboundHandler<TextWebSocketFrame>() {
+                  @Override
+                  protected void channelRead0(ChannelHandlerContext ctx, TextWebSocketFrame frame) {
+                    received.add(frame.text());
+                  }
+
+                  @Override
+                  public void userEventTriggered(ChannelHandlerContext ctx, Object event) {
+                    if (event == WebSocketClientProtocolHandler.ClientHandshakeStateEvent.HANDSHAKE_COMPLETE) {
+                      handshake.complete(null);
+                    }
+                    ctx.fireUserEventTriggered(event);
+                  }
+
+                  @Override
+                  public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+                    handshake.completeExceptionally(cause);
+                    ctx.close();
+                  }
+                });
+          }
+        })
+        .connect(uri.getHost(), uri.getPort())
+        .sync()
+        .channel();
+  }
+
+  public void send(String text) {
+    channel.writeAndFlush(new TextWebSocketFrame(text));
+  }
+
+  /**
+   * @return the next text message received
+   * @throws TimeoutException if none arrives in time
+   */
+  public String receive() throws InterruptedException, TimeoutException {
+    String text = received.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    if (text == null) {
+      throw new TimeoutException("no message received");
+    }
+    return text;
+  }
+
+  /**
+   * Close the connection from the client, and wait until the server closed it too.
+   */
+  @Override
+  public void close() throws InterruptedException {
+    try {
+      if (channel.isActive() && handshake.isDone()) {
+        channel.writeAndFlush(new CloseWebSocketFrame());
+      }
+      channel.closeFuture().await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } finally {
+      group.shutdownGracefully(0, TIMEOUT_SECONDS, TimeUnit.SECONDS).await();
+    }
+  }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2016-2026 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ratpack.zipkin.support;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import ratpack.exec.Promise;
+import ratpack.handling.Context;
+import ratpack.test.embed.EmbeddedApp;
+import zipkin2.Span;
+import zipkin2.codec.Encoding;
+import zipkin2.codec.SpanBytesDecoder;
+
+/**
+ * Embedded stand-in for a Zipkin server, accepting spans posted to {@code /api/v2/spans} in JSON
+ * or, with the content type {@code application/x-protobuf}, in Proto3, optionally gzipped.
+ *
+ * Received spans are kept for assertions. Latency and failures can be injected, to test how
+ * reporters behave when the collector is slow or down:
+ *
+ * <pre>{@code
+ * ZipkinCollector collector = ZipkinCollector.start().latency(Duration.ofMillis(50)).failNext(2);
+ * ByteBufSender sender = ByteBufSender.http(collector.spansEndpoint().toString());
+ * }</pre>
+ *
+ * A message which fails to decode is rejected with a 400 and counted.
+ */
+public final class ZipkinCollector implements AutoCloseable {
+
+  static final String PROTO3_CONTENT_TYPE = "application/x-protobuf";
+
+  public static ZipkinCollector start() throws Exception {
+    return new ZipkinCollector();
+  }
+
+  private final EmbeddedApp app;
+  private final ConcurrentLinkedQueue<Span> spans = new ConcurrentLinkedQueue<>();
+  private final ConcurrentLinkedQueue<Message> messages = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger messagesFailed = new AtomicInteger();
+  private final AtomicInteger messagesMalformed = new AtomicInteger();
+  private final AtomicInteger failNext = new AtomicInteger();
+  private volatile Duration latency = Duration.ZERO;
+  private volatile double failureRate;
+  private volatile int failureStatus = 503;
+
+  private ZipkinCollector() throws Exception {
+    this.app = EmbeddedApp.of(server -> server
+        .handlers(chain -> chain.post("api/v2/spans", this::collect)));
+  }
+
+  /**
+   * @return the URI reporters post spans to
+   */
+  public URI spansEndpoint() {
+    return app.getAddress().resolve("api/v2/spans");
+  }
+
+  /**
+   * Delay each response, after the message was read and before it is accepted or failed.
+   *
+   * @param latency the delay
+   * @return this collector
+   */
+  public ZipkinCollector latency(final Duration latency) {
+    if (latency.isNegative()) throw new IllegalArgumentException("latency < 0");
+    this.latency = latency;
+    return this;
+  }
+
+  /**
+   * Fail the next messages, whose spans are then not kept.
+   *
+   * @param count the number of messages to fail
+   * @return this collector
+   */
+  public ZipkinCollector failNext(final int count) {
+    if (count < 0) throw new IllegalArgumentException("count < 0");
+    failNext.set(count);
+    return this;
+  }
+
+  /**
+   * Fail messages at random, whose spans are then not kept.
+   *
+   * @param failureRate the share of messages to fail, from 0 to 1
+   * @return this collector
+   */
+  public ZipkinCollector failureRate(final double failureRate) {
+    if (failureRate < 0.0 || failureRate > 1.0) throw new IllegalArgumentException("failureRate not in [0, 1]");
+    this.failureRate = failureRate;
+    return this;
+  }
+
+  /**
+   * The status of failed messages. Defaults to 503.
+   *
+   * @param status the status code
+   * @return this collector
+   */
+  public ZipkinCollector failureStatus(final int status) {
+    if (status < 400 || status > 599) throw new IllegalArgumentException("status not in [400, 599]");
+    this.failureStatus = status;
+    return this;
+  }
+
+  /**
+   * @return the spans received in accepted messages, in the order they were accepted
+   */
+  public List<Span> getSpans() {
+    return new ArrayList<>(spans);
+  }
+
+  /**
+   * @return the accepted messages, in the order they were accepted
+   */
+  public List<Message> getMessages() {
+    return new ArrayList<>(messages);
+  }
+
+  /**
+   * @return the number of messages failed on purpose
+   */
+  public int messagesFailed() {
+    return messagesFailed.get();
+  }
+
+  /**
+   * @return the number of messages rejected because they could not be decoded
+   */
+  public int messagesMalformed() {
+    return messagesMalformed.get();
+  }
+
+  /**
+   * Wait until at least the given number of spans were received, e.g. from a reporter sending
+   * them in the background.
+   *
+   * @param count the number of spans
+   * @param timeout how long to wait
+   * @return the spans received
+   * @throws TimeoutException if fewer spans were received in time
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public List<Span> awaitSpans(final int count, final Duration timeout) throws TimeoutException, InterruptedException {
+    long deadline = System.nanoTime() + timeout.toNanos();
+    while (spans.size() < count) {
+      if (System.nanoTime() - deadline >= 0) {
+        throw new TimeoutException("received " + spans.size() + " of " + count + " spans");
+      }
+      Thread.sleep(10);
+    }
+    return getSpans();
+  }
+
+  /**
+   * Forget received spans and messages, and stop injecting failures.
+   */
+  public void reset() {
+    spans.clear();
+    messages.clear();
+    messagesFailed.set(0);
+    messagesMalformed.set(0);
+    failNext.set(0);
+    failureRate = 0.0;
+    latency = Duration.ZERO;
+  }
+
+  @Override
+  public void close() {
+    app.close();
+  }
+
+  private void collect(final Context ctx) {
+    String contentType = ctx.getRequest().getHeaders().get("Content-Type");
+    boolean gzip = "gzip".equalsIgnoreCase(ctx.getRequest().getHeaders().get("Content-Encoding"));
+    Encoding encoding = contentType != null && contentType.startsWith(PROTO3_CONTENT_TYPE)
+        ? Encoding.PROTO3
+        : Encoding.JSON;
+
+    ctx.getRequest().getBody()
+        .map(body -> body.getBytes())
+        .flatMap(bytes -> latency.isZero() ? Promise.value(bytes) : Promise.value(bytes).defer(latency))
+        .then(bytes -> {
+          if (shouldFail()) {
+            messagesFailed.incrementAndGet();
+            ctx.getResponse().status(failureStatus).send();
+            return;
+          }
+          List<Span> decoded;
+          try {
+            byte[] message = gzip ? gunzip(bytes) : bytes;
+            decoded = encoding == Encoding.PROTO3
+                ? SpanBytesDecoder.PROTO3.decodeList(message)
+                : SpanBytesDecoder.JSON_V2.decodeList(message);
+          } catch (IOException | RuntimeException e) {
+            messagesMalformed.incrementAndGet();
+            ctx.getResponse().status(400).send(String.valueOf(e.getMessage()));
+            return;
+          }
+          // messages before spans, so that a caller awaiting spans sees their message too
+          messages.add(new Message(encoding, gzip, bytes.length, decoded.size()));
+          spans.addAll(decoded);
+          ctx.getResponse().status(202).send();
+        });
+  }
+
+  private boolean shouldFail() {
+    while (true) {
+      int remaining = failNext.get();
+      if (remaining == 0) {
+        break;
+      }
+      if (failNext.compareAndSet(remaining, remaining - 1)) {
+        return true;
+      }
+    }
+    double rate = failureRate;
+    return rate > 0.0 && ThreadLocalRandom.current().nextDouble() < rate;
+  }
+
+  private static byte[] gunzip(final byte[] bytes) throws IOException {
+    try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length * 4);
+      byte[] buffer = new byte[4096];
+      for (int n; (n = in.read(buffer)) != -1; ) {
+        out.write(buffer, 0, n);
+      }
+      return out.toByteArray();
+    }
+  }
+
+  /**
+   * A message accepted by the collector.
+   */
+  public static final class Message {
+    private final Encoding encoding;
+    private final boolean gzipped;
+    private final int sizeInBytes;
+    private final int spanCount;
+
+    Message(final Encoding encoding, final boolean gzipped, final int sizeInBytes, final int spanCount) {
+      this.encoding = encoding;
+      this.gzipped = gzipped;
+      this.sizeInBytes = sizeInBytes;
+      this.spanCount = spanCount;
+    }
+
+    public Encoding getEncoding() {
+      return encoding;
+    }
+
+    public boolean isGzipped() {
+      return gzipped;
+    }
+
+    /**
+     * @return the size of the message as received, before decompressing it
+     */
+    public int getSizeInBytes() {
+      return sizeInBytes;
+    }
+
+    public int getSpanCount() {
+      return spanCount;
+    }
+
+    @Override
+    public String toString() {
+      return "Message{encoding=" + encoding + ", gzipped=" + gzipped + ", sizeInBytes=" + sizeInBytes
+          + ", spanCount=" + spanCount + "}";
+    }
+  }
+}